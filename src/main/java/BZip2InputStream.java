@@ -0,0 +1,408 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses a bzip2 stream, which the JDK has no support for. Concatenated streams, as
+ * written by parallel compressors such as pbzip2 and used for the OSM planet files, are read
+ * one after the other. Block and stream checksums are verified. The obsolete randomized
+ * block mode, which no bzip2 since 0.9.5 writes, is not supported.
+ *
+ * Each block is decoded in the usual steps: Huffman decoding of the symbols with the table
+ * chosen for each group of 50, undoing the move-to-front and zero run-length coding into the
+ * Burrows-Wheeler transformed block, inverting the transform, and finally expanding the runs
+ * of four or more equal bytes as the block is read.
+ */
+class BZip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_MAGIC = 0x177245385090L;
+    private static final int MAX_GROUPS = 6;
+    private static final int GROUP_SIZE = 50;
+    private static final int MAX_ALPHA_SIZE = 258;
+    private static final int MAX_CODE_LEN = 20;
+    private static final int MAX_SELECTORS = 18002;
+    private static final int RUNA = 0;
+    private static final int RUNB = 1;
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i << 24;
+            for (int j = 0; j < 8; j++) {
+                c = (c & 0x80000000) != 0 ? (c << 1) ^ 0x04c11db7 : c << 1;
+            }
+            CRC_TABLE[i] = c;
+        }
+    }
+
+    private final InputStream in;
+    private long bitBuffer;
+    private int bitCount;
+
+    private int blockSize;
+    /** Low 8 bits: the transformed block; high 24 bits: the inverse transform links. */
+    private int[] tt;
+    private int blockCrc;
+    private int streamCrc;
+    private int computedBlockCrc;
+    private int computedStreamCrc;
+
+    /* Output state of the current block. */
+    private int tPos;
+    private int remaining;
+    private int last = -1;
+    private int runLength;
+    private int repeats;
+    private boolean eof;
+
+    /**
+     * @param in The compressed input, starting with the "BZh" signature.
+     * @throws IOException If the input cannot be read or is not a bzip2 stream.
+     */
+    BZip2InputStream(InputStream in) throws IOException {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 1 << 16);
+        if (!readStreamHeader()) {
+            throw new IOException("Not a bzip2 stream.");
+        }
+        startBlock();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len && !eof) {
+            if (repeats > 0) {
+                b[off + n++] = (byte) last;
+                updateCrc(last);
+                repeats -= 1;
+            } else if (remaining > 0) {
+                tPos = tt[tPos];
+                int ch = tPos & 0xff;
+                tPos >>>= 8;
+                remaining -= 1;
+                if (runLength == 4) {
+                    repeats = ch;
+                    runLength = 0;
+                    continue;
+                }
+                if (ch == last) {
+                    runLength += 1;
+                } else {
+                    last = ch;
+                    runLength = 1;
+                }
+                b[off + n++] = (byte) ch;
+                updateCrc(ch);
+            } else {
+                endBlock();
+                startBlock();
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void updateCrc(int ch) {
+        computedBlockCrc = (computedBlockCrc << 8) ^ CRC_TABLE[((computedBlockCrc >>> 24) ^ ch)
+                & 0xff];
+    }
+
+    /**
+     * Reads "BZh" and the block size digit, or returns false at the end of the input.
+     */
+    private boolean readStreamHeader() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return false;
+        }
+        if (b != 'B' || in.read() != 'Z' || in.read() != 'h') {
+            throw new IOException("Not a bzip2 stream.");
+        }
+        int level = in.read() - '0';
+        if (level < 1 || level > 9) {
+            throw new IOException("Bad bzip2 block size.");
+        }
+        blockSize = level * 100000;
+        if (tt == null || tt.length < blockSize) {
+            tt = new int[blockSize];
+        }
+        bitBuffer = 0;
+        bitCount = 0;
+        computedStreamCrc = 0;
+        return true;
+    }
+
+    private void endBlock() throws IOException {
+        if (~computedBlockCrc != blockCrc) {
+            throw new IOException("bzip2 block checksum mismatch.");
+        }
+        computedStreamCrc = ((computedStreamCrc << 1) | (computedStreamCrc >>> 31)) ^ blockCrc;
+    }
+
+    /**
+     * Decodes the next block, moving on to the next concatenated stream at the end of one,
+     * or sets eof at the end of the input.
+     */
+    private void startBlock() throws IOException {
+        while (true) {
+            long magic = bits(48);
+            if (magic == BLOCK_MAGIC) {
+                break;
+            }
+            if (magic != END_MAGIC) {
+                throw new IOException("Bad bzip2 block header.");
+            }
+            streamCrc = (int) bits(32);
+            if (streamCrc != computedStreamCrc) {
+                throw new IOException("bzip2 stream checksum mismatch.");
+            }
+            if (!readStreamHeader()) {
+                eof = true;
+                return;
+            }
+        }
+        blockCrc = (int) bits(32);
+        computedBlockCrc = -1;
+        if (bits(1) != 0) {
+            throw new IOException("Randomized bzip2 blocks are not supported.");
+        }
+        int origPtr = (int) bits(24);
+        int nblock = decodeBlock();
+        if (origPtr >= nblock) {
+            throw new IOException("Bad bzip2 block origin.");
+        }
+        tPos = tt[origPtr] >>> 8;
+        remaining = nblock;
+        last = -1;
+        runLength = 0;
+        repeats = 0;
+    }
+
+    /**
+     * Reads the Huffman-coded symbols of a block and undoes the move-to-front and zero run
+     * coding, leaving the transformed block in the low bytes of tt and the inverse transform
+     * links in the high bytes.
+     * @return The number of bytes in the block.
+     */
+    private int decodeBlock() throws IOException {
+        byte[] seqToUnseq = new byte[256];
+        int inUse = 0;
+        int used16 = (int) bits(16);
+        for (int i = 0; i < 16; i++) {
+            if ((used16 & (0x8000 >>> i)) != 0) {
+                int used = (int) bits(16);
+                for (int j = 0; j < 16; j++) {
+                    if ((used & (0x8000 >>> j)) != 0) {
+                        seqToUnseq[inUse++] = (byte) (i * 16 + j);
+                    }
+                }
+            }
+        }
+        if (inUse == 0) {
+            throw new IOException("Bad bzip2 symbol map.");
+        }
+        int alphaSize = inUse + 2;
+        int nGroups = (int) bits(3);
+        int nSelectors = (int) bits(15);
+        if (nGroups < 2 || nGroups > MAX_GROUPS || nSelectors < 1) {
+            throw new IOException("Bad bzip2 Huffman tables.");
+        }
+
+        byte[] pos = new byte[MAX_GROUPS];
+        for (int g = 0; g < nGroups; g++) {
+            pos[g] = (byte) g;
+        }
+        byte[] selectors = new byte[Math.min(nSelectors, MAX_SELECTORS)];
+        for (int i = 0; i < nSelectors; i++) {
+            int j = 0;
+            while (bits(1) != 0) {
+                j += 1;
+                if (j >= nGroups) {
+                    throw new IOException("Bad bzip2 selector.");
+                }
+            }
+            byte v = pos[j];
+            System.arraycopy(pos, 0, pos, 1, j);
+            pos[0] = v;
+            if (i < selectors.length) {
+                selectors[i] = v;
+            }
+        }
+
+        int[][] limit = new int[nGroups][MAX_CODE_LEN + 1];
+        int[][] base = new int[nGroups][MAX_CODE_LEN + 2];
+        int[][] perm = new int[nGroups][MAX_ALPHA_SIZE];
+        int[] minLens = new int[nGroups];
+        int[] length = new int[alphaSize];
+        for (int g = 0; g < nGroups; g++) {
+            int curr = (int) bits(5);
+            for (int i = 0; i < alphaSize; i++) {
+                while (true) {
+                    if (curr < 1 || curr > MAX_CODE_LEN) {
+                        throw new IOException("Bad bzip2 code length.");
+                    }
+                    if (bits(1) == 0) {
+                        break;
+                    }
+                    curr += bits(1) == 0 ? 1 : -1;
+                }
+                length[i] = curr;
+            }
+            minLens[g] = createDecodeTables(length, alphaSize, limit[g], base[g], perm[g]);
+        }
+
+        int[] counts = new int[256];
+        byte[] mtf = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            mtf[i] = (byte) i;
+        }
+        int eob = inUse + 1;
+        int nblock = 0;
+        int groupIndex = -1;
+        int groupLeft = 0;
+        int runTotal = 0;
+        int runWeight = 1;
+        int[] gLimit = null;
+        int[] gBase = null;
+        int[] gPerm = null;
+        int gMinLen = 0;
+        while (true) {
+            if (groupLeft == 0) {
+                groupIndex += 1;
+                if (groupIndex >= selectors.length) {
+                    throw new IOException("Bad bzip2 selector count.");
+                }
+                int g = selectors[groupIndex];
+                gLimit = limit[g];
+                gBase = base[g];
+                gPerm = perm[g];
+                gMinLen = minLens[g];
+                groupLeft = GROUP_SIZE;
+            }
+            groupLeft -= 1;
+            int zn = gMinLen;
+            int zvec = (int) bits(zn);
+            while (zvec > gLimit[zn]) {
+                zn += 1;
+                if (zn > MAX_CODE_LEN) {
+                    throw new IOException("Bad bzip2 Huffman code.");
+                }
+                zvec = (zvec << 1) | (int) bits(1);
+            }
+            int sym = gPerm[zvec - gBase[zn]];
+
+            if (sym == RUNA || sym == RUNB) {
+                runTotal += (sym == RUNA ? 1 : 2) * runWeight;
+                runWeight <<= 1;
+                if (runTotal > blockSize) {
+                    throw new IOException("bzip2 block overflow.");
+                }
+                continue;
+            }
+            if (runTotal > 0) {
+                int ch = seqToUnseq[mtf[0] & 0xff] & 0xff;
+                if (nblock + runTotal > blockSize) {
+                    throw new IOException("bzip2 block overflow.");
+                }
+                counts[ch] += runTotal;
+                for (; runTotal > 0; runTotal--) {
+                    tt[nblock++] = ch;
+                }
+                runWeight = 1;
+            }
+            if (sym == eob) {
+                break;
+            }
+            int nn = sym - 1;
+            byte v = mtf[nn];
+            System.arraycopy(mtf, 0, mtf, 1, nn);
+            mtf[0] = v;
+            int ch = seqToUnseq[v & 0xff] & 0xff;
+            if (nblock >= blockSize) {
+                throw new IOException("bzip2 block overflow.");
+            }
+            counts[ch] += 1;
+            tt[nblock++] = ch;
+        }
+
+        int[] cftab = new int[257];
+        for (int i = 0; i < 256; i++) {
+            cftab[i + 1] = cftab[i] + counts[i];
+        }
+        for (int i = 0; i < nblock; i++) {
+            int ch = tt[i] & 0xff;
+            tt[cftab[ch]++] |= i << 8;
+        }
+        return nblock;
+    }
+
+    /**
+     * Builds the canonical Huffman decoding tables for one group, as in the reference
+     * implementation: codes of length n are the values up to limit[n], and the symbol of
+     * code v of length n is perm[v - base[n]].
+     * @return The shortest code length.
+     */
+    private static int createDecodeTables(int[] length, int alphaSize, int[] limit,
+                                          int[] base, int[] perm) {
+        int minLen = MAX_CODE_LEN;
+        int maxLen = 0;
+        for (int i = 0; i < alphaSize; i++) {
+            minLen = Math.min(minLen, length[i]);
+            maxLen = Math.max(maxLen, length[i]);
+        }
+        int pp = 0;
+        for (int len = minLen; len <= maxLen; len++) {
+            for (int i = 0; i < alphaSize; i++) {
+                if (length[i] == len) {
+                    perm[pp++] = i;
+                }
+            }
+        }
+        for (int i = 0; i < alphaSize; i++) {
+            base[length[i] + 1] += 1;
+        }
+        for (int i = 1; i < base.length; i++) {
+            base[i] += base[i - 1];
+        }
+        int vec = 0;
+        for (int len = minLen; len <= maxLen; len++) {
+            vec += base[len + 1] - base[len];
+            limit[len] = vec - 1;
+            vec <<= 1;
+        }
+        for (int len = maxLen + 1; len <= MAX_CODE_LEN; len++) {
+            limit[len] = -1;
+        }
+        for (int len = minLen + 1; len <= maxLen; len++) {
+            base[len] = ((limit[len - 1] + 1) << 1) - base[len];
+        }
+        return minLen;
+    }
+
+    /** Reads n bits, most significant first, for n of at most 48. */
+    private long bits(int n) throws IOException {
+        while (bitCount < n) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of bzip2 stream.");
+            }
+            bitBuffer = (bitBuffer << 8) | b;
+            bitCount += 8;
+        }
+        bitCount -= n;
+        return (bitBuffer >>> bitCount) & ((1L << n) - 1);
+    }
+}
@@ -0,0 +1,519 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Compressed-sparse-row form of the road graph. Every vertex gets a dense int index, its
+ * coordinates live in parallel lat/lon arrays, and the neighbors of vertex i are
+ * targets[offsets[i]] through targets[offsets[i + 1] - 1]. OSM ids are only kept in the
+ * ids array and in a primitive id-to-index map, so the graph costs a few dozen bytes per
+ * vertex instead of a Node object, a boxed id, and an ArrayList of boxed neighbor ids.
+ * Edge lengths are computed once here so that searches never evaluate the haversine formula
+ * for an edge.
+ *
+ * Vertices are numbered in Z-order of their coordinates, so vertices that are close on the
+ * map are also close in memory, which keeps a search that moves outwards from one point
+ * mostly inside the same cache lines.
+ *
+ * The arrays either live on the heap (Heap) or are read in place from a memory-mapped graph
+ * snapshot (Mapped). The mapped form keeps the heap small for large regions and lets several
+ * server processes on one machine share the same pages. Both are read through the accessors
+ * below, so searches do not care which one they run on.
+ */
+abstract class CompactGraph {
+    /** Bits of precision per coordinate in the Z-order key. */
+    private static final int MORTON_BITS = 16;
+
+    /**
+     * Builds the compact graph from the Node objects collected while parsing.
+     * Every neighbor id of every node must itself be one of the given nodes.
+     * @param nodes The vertices of the graph.
+     * @return The compact graph, on the heap.
+     */
+    static CompactGraph fromNodes(Collection<Node> nodes) {
+        int n = nodes.size();
+        long[] ids = new long[n];
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        LongIntMap index = new LongIntMap(n);
+        int m = 0;
+        int i = 0;
+        for (Node node : nodes) {
+            ids[i] = node.getid();
+            lats[i] = node.getlat();
+            lons[i] = node.getlon();
+            index.put(ids[i], i);
+            m += node.getedges().size();
+            i += 1;
+        }
+        int[] from = new int[m];
+        int[] to = new int[m];
+        int e = 0;
+        i = 0;
+        for (Node node : nodes) {
+            for (long w : node.getedges()) {
+                from[e] = i;
+                to[e] = index.get(w);
+                e += 1;
+            }
+            i += 1;
+        }
+        return fromArcs(ids, lats, lons, from, to, m);
+    }
+
+    /**
+     * Builds the compact graph from vertex arrays in any order and a list of directed arcs
+     * between positions in those arrays. The arcs leaving a vertex become its edges in the
+     * order they appear in the list. The numbering of the result only depends on the ids and
+     * coordinates, not on the order the vertices are given in.
+     * @param ids The OSM id of each vertex.
+     * @param lats The latitude of each vertex.
+     * @param lons The longitude of each vertex.
+     * @param from The position of the vertex each arc leaves.
+     * @param to The position of the vertex each arc enters.
+     * @param m The number of arcs.
+     * @return The compact graph, on the heap.
+     */
+    static CompactGraph fromArcs(long[] ids, double[] lats, double[] lons, int[] from,
+                                 int[] to, int m) {
+        int n = ids.length;
+        int[] order = zOrder(ids, lats, lons);
+        int[] rank = new int[n];
+        long[] sortedIds = new long[n];
+        double[] sortedLats = new double[n];
+        double[] sortedLons = new double[n];
+        for (int k = 0; k < n; k++) {
+            rank[order[k]] = k;
+            sortedIds[k] = ids[order[k]];
+            sortedLats[k] = lats[order[k]];
+            sortedLons[k] = lons[order[k]];
+        }
+        int[] offsets = new int[n + 1];
+        for (int e = 0; e < m; e++) {
+            offsets[rank[from[e]] + 1] += 1;
+        }
+        for (int k = 0; k < n; k++) {
+            offsets[k + 1] += offsets[k];
+        }
+        int[] next = Arrays.copyOf(offsets, n);
+        int[] targets = new int[m];
+        double[] weights = new double[m];
+        for (int e = 0; e < m; e++) {
+            int a = rank[from[e]];
+            int b = rank[to[e]];
+            int pos = next[a]++;
+            targets[pos] = b;
+            weights[pos] = GraphDB.distance(sortedLons[a], sortedLats[a],
+                    sortedLons[b], sortedLats[b]);
+        }
+        return new Heap(sortedIds, sortedLats, sortedLons, offsets, targets, weights);
+    }
+
+    /**
+     * Writes the graph in the layout expected by readFrom and map: the vertex and edge
+     * counts, then the ids, latitudes, longitudes and edge weights, then the ids in sorted
+     * order, then the offsets and targets, and finally the index of each sorted id. The
+     * sorted ids let a mapped graph look up OSM ids by binary search without building a
+     * hash map on the heap. The eight-byte arrays come first so that they stay aligned if
+     * the counts start at an eight-byte boundary.
+     * @param out The stream to write to.
+     * @throws IOException If writing fails.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        int n = size();
+        int m = numEdges();
+        out.writeInt(n);
+        out.writeInt(m);
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = idAt(i);
+            out.writeLong(sorted[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(latAt(i));
+        }
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(lonAt(i));
+        }
+        for (int e = 0; e < m; e++) {
+            out.writeDouble(weight(e));
+        }
+        Arrays.sort(sorted);
+        for (long id : sorted) {
+            out.writeLong(id);
+        }
+        for (int i = 0; i <= n; i++) {
+            out.writeInt(edgeStart(i));
+        }
+        for (int e = 0; e < m; e++) {
+            out.writeInt(target(e));
+        }
+        for (long id : sorted) {
+            out.writeInt(indexOf(id));
+        }
+    }
+
+    /**
+     * Reads a graph written by writeTo into heap arrays, starting at the buffer's position
+     * and leaving the position just past the graph.
+     * @param buf The buffer to read from.
+     * @return The graph, on the heap.
+     */
+    static CompactGraph readFrom(ByteBuffer buf) {
+        int n = buf.getInt();
+        int m = buf.getInt();
+        long[] ids = new long[n];
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        double[] weights = new double[m];
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[m];
+        buf.asLongBuffer().get(ids);
+        skip(buf, 8 * n);
+        buf.asDoubleBuffer().get(lats);
+        skip(buf, 8 * n);
+        buf.asDoubleBuffer().get(lons);
+        skip(buf, 8 * n);
+        buf.asDoubleBuffer().get(weights);
+        skip(buf, 8 * m);
+        skip(buf, 8 * n); // sorted ids, replaced by the hash index
+        buf.asIntBuffer().get(offsets);
+        skip(buf, 4 * (n + 1));
+        buf.asIntBuffer().get(targets);
+        skip(buf, 4 * m);
+        skip(buf, 4 * n); // sorted id positions
+        return new Heap(ids, lats, lons, offsets, targets, weights);
+    }
+
+    /**
+     * Wraps a graph written by writeTo without copying it, starting at the buffer's position
+     * and leaving the position just past the graph. The returned graph reads the buffer on
+     * every access, so the buffer must not be modified while it is in use.
+     * @param buf The buffer to read from, usually a mapping of a graph snapshot.
+     * @return The graph, backed by buf.
+     */
+    static CompactGraph map(ByteBuffer buf) {
+        Mapped graph = new Mapped(buf, buf.position());
+        skip(buf, 8 + graph.n * 32 + graph.m * 12 + (graph.n + 1) * 4 + graph.n * 4);
+        return graph;
+    }
+
+    private static void skip(ByteBuffer buf, int bytes) {
+        buf.position(buf.position() + bytes);
+    }
+
+    /**
+     * Orders the vertices along a Z-order (Morton) curve over their bounding box, breaking
+     * ties between vertices in the same cell by id.
+     * @return The positions of the vertices in the given arrays, in Z-order.
+     */
+    private static int[] zOrder(long[] ids, double[] lats, double[] lons) {
+        int n = ids.length;
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+        }
+        double scale = (1 << MORTON_BITS) - 1;
+        double latScale = maxLat > minLat ? scale / (maxLat - minLat) : 0;
+        double lonScale = maxLon > minLon ? scale / (maxLon - minLon) : 0;
+
+        long[] byId = ids.clone();
+        Arrays.sort(byId);
+        LongIntMap position = new LongIntMap(n);
+        for (int i = 0; i < n; i++) {
+            position.put(ids[i], i);
+        }
+        /* Pack the key into the high half and the rank of the id into the low half, so that
+         * a single primitive sort orders the vertices. */
+        long[] keys = new long[n];
+        for (int r = 0; r < n; r++) {
+            int i = position.get(byId[r]);
+            int x = (int) ((lons[i] - minLon) * lonScale);
+            int y = (int) ((lats[i] - minLat) * latScale);
+            keys[r] = ((interleave(x, y) & 0xffffffffL) << 32) | r;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = position.get(byId[(int) keys[k]]);
+        }
+        return order;
+    }
+
+    /**
+     * Interleaves the low 16 bits of x and y into a 32 bit Morton code.
+     */
+    private static int interleave(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    private static int spread(int v) {
+        v &= 0xffff;
+        v = (v | (v << 8)) & 0x00ff00ff;
+        v = (v | (v << 4)) & 0x0f0f0f0f;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+
+    /** Returns the number of vertices. */
+    abstract int size();
+
+    /** Returns the dense index of the vertex with OSM id v, or -1 if there is none. */
+    abstract int indexOf(long v);
+
+    /** Returns the OSM id of the vertex at index i. */
+    abstract long idAt(int i);
+
+    abstract double latAt(int i);
+
+    abstract double lonAt(int i);
+
+    /**
+     * Returns the position of the first edge of vertex i in the edge arrays. For i equal
+     * to size() this is the total number of edges.
+     */
+    abstract int edgeStart(int i);
+
+    /** Returns one past the position of the last edge of vertex i in the edge arrays. */
+    int edgeEnd(int i) {
+        return edgeStart(i + 1);
+    }
+
+    /** Returns the index of the vertex that edge e points to. */
+    abstract int target(int e);
+
+    /** Returns the length of edge e in miles. */
+    abstract double weight(int e);
+
+    /** Returns the number of edges, counting each direction of a road separately. */
+    int numEdges() {
+        return edgeStart(size());
+    }
+
+    /**
+     * Returns a hash of the vertex ids, coordinates and edges, in index order. Files
+     * derived from the graph store it to detect that they were built for a different one.
+     */
+    long fingerprint() {
+        long h = 0xcbf29ce484222325L;
+        int n = size();
+        for (int i = 0; i < n; i++) {
+            h = (h ^ idAt(i)) * 0x100000001b3L;
+            h = (h ^ Double.doubleToLongBits(latAt(i))) * 0x100000001b3L;
+            h = (h ^ Double.doubleToLongBits(lonAt(i))) * 0x100000001b3L;
+            h = (h ^ edgeEnd(i)) * 0x100000001b3L;
+        }
+        for (int e = 0, m = numEdges(); e < m; e++) {
+            h = (h ^ target(e)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** Returns the OSM ids of all vertices. */
+    Iterable<Long> ids() {
+        return () -> new IdIterator(0, size(), false);
+    }
+
+    /** Returns the OSM ids of the neighbors of the vertex at index i. */
+    Iterable<Long> neighborIds(int i) {
+        return () -> new IdIterator(edgeStart(i), edgeEnd(i), true);
+    }
+
+    /**
+     * Iterates over a range of either the vertex array or the edge array, translating
+     * indices back into OSM ids.
+     */
+    private class IdIterator implements Iterator<Long> {
+        private int pos;
+        private final int end;
+        private final boolean edges;
+
+        IdIterator(int start, int end, boolean edges) {
+            this.pos = start;
+            this.end = end;
+            this.edges = edges;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pos < end;
+        }
+
+        @Override
+        public Long next() {
+            if (pos >= end) {
+                throw new NoSuchElementException();
+            }
+            int i = edges ? target(pos) : pos;
+            pos += 1;
+            return idAt(i);
+        }
+    }
+
+    /** A compact graph whose arrays are on the heap. */
+    private static final class Heap extends CompactGraph {
+        private final long[] ids;
+        private final double[] lats;
+        private final double[] lons;
+        private final int[] offsets;
+        private final int[] targets;
+        /** Great-circle length of each edge in miles, parallel to targets. */
+        private final double[] weights;
+        private final LongIntMap index;
+
+        Heap(long[] ids, double[] lats, double[] lons, int[] offsets, int[] targets,
+             double[] weights) {
+            this.ids = ids;
+            this.lats = lats;
+            this.lons = lons;
+            this.offsets = offsets;
+            this.targets = targets;
+            this.weights = weights;
+            this.index = new LongIntMap(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                index.put(ids[i], i);
+            }
+        }
+
+        @Override
+        int size() {
+            return ids.length;
+        }
+
+        @Override
+        int indexOf(long v) {
+            return index.get(v);
+        }
+
+        @Override
+        long idAt(int i) {
+            return ids[i];
+        }
+
+        @Override
+        double latAt(int i) {
+            return lats[i];
+        }
+
+        @Override
+        double lonAt(int i) {
+            return lons[i];
+        }
+
+        @Override
+        int edgeStart(int i) {
+            return offsets[i];
+        }
+
+        @Override
+        int edgeEnd(int i) {
+            return offsets[i + 1];
+        }
+
+        @Override
+        int target(int e) {
+            return targets[e];
+        }
+
+        @Override
+        double weight(int e) {
+            return weights[e];
+        }
+    }
+
+    /**
+     * A compact graph read in place from a buffer in the layout written by writeTo. Only
+     * absolute reads are used, so any number of threads can search it at once. Ids are
+     * looked up by binary search over the sorted id section. Buffer positions are ints, so
+     * the graph must fit in 2 GB.
+     */
+    private static final class Mapped extends CompactGraph {
+        private final ByteBuffer buf;
+        private final int n;
+        private final int m;
+        private final int ids;
+        private final int lats;
+        private final int lons;
+        private final int weights;
+        private final int sortedIds;
+        private final int offsets;
+        private final int targets;
+        private final int positions;
+
+        Mapped(ByteBuffer buf, int start) {
+            this.buf = buf;
+            n = buf.getInt(start);
+            m = buf.getInt(start + 4);
+            ids = start + 8;
+            lats = ids + 8 * n;
+            lons = lats + 8 * n;
+            weights = lons + 8 * n;
+            sortedIds = weights + 8 * m;
+            offsets = sortedIds + 8 * n;
+            targets = offsets + 4 * (n + 1);
+            positions = targets + 4 * m;
+        }
+
+        @Override
+        int size() {
+            return n;
+        }
+
+        @Override
+        int indexOf(long v) {
+            int lo = 0;
+            int hi = n - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long id = buf.getLong(sortedIds + 8 * mid);
+                if (id < v) {
+                    lo = mid + 1;
+                } else if (id > v) {
+                    hi = mid - 1;
+                } else {
+                    return buf.getInt(positions + 4 * mid);
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        long idAt(int i) {
+            return buf.getLong(ids + 8 * i);
+        }
+
+        @Override
+        double latAt(int i) {
+            return buf.getDouble(lats + 8 * i);
+        }
+
+        @Override
+        double lonAt(int i) {
+            return buf.getDouble(lons + 8 * i);
+        }
+
+        @Override
+        int edgeStart(int i) {
+            return buf.getInt(offsets + 4 * i);
+        }
+
+        @Override
+        int target(int e) {
+            return buf.getInt(targets + 4 * e);
+        }
+
+        @Override
+        double weight(int e) {
+            return buf.getDouble(weights + 8 * e);
+        }
+    }
+}
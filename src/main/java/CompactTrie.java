@@ -0,0 +1,244 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only form of a Trie, packed into a few arrays. A Trie node is an object with a
+ * HashMap of boxed characters to child objects, which costs about a hundred bytes even for
+ * the nodes of a chain with one child each, and there is a node per character of every name.
+ *
+ * Here chains of nodes with one child and no word of their own are merged into one node
+ * whose edge is labelled with the whole chain (a radix trie). These nodes have the same
+ * words below them as the last node of their chain, so nothing is lost. Nodes are numbered
+ * breadth first, which puts the children of every node next to each other and in order of
+ * their first character, and the labels and the lists of best words of all the nodes in
+ * one array each:
+ *
+ * - the label of node i is labels[labelStart[i]] to labels[labelStart[i + 1] - 1],
+ * - its children are the nodes firstChild[i] to firstChild[i + 1] - 1,
+ * - its best words are tops[topStart[i]] to tops[topStart[i + 1] - 1],
+ * - and the value of its own word is values[i], or -1.
+ *
+ * A child is found by binary search over the first characters of the labels of the
+ * children. Queries return the same values as the Trie they were built from.
+ */
+class CompactTrie {
+    private final int k;
+    private final int size;
+    private final char[] labels;
+    private final int[] labelStart;
+    private final int[] firstChild;
+    private final int[] values;
+    private final int[] tops;
+    private final int[] topStart;
+
+    /** Packs the nodes of a trie, given breadth first with their chains merged. */
+    CompactTrie(int k, int size, List<Trie.Chain> nodes) {
+        this.k = k;
+        this.size = size;
+        int n = nodes.size();
+        int labelLength = 0;
+        int topLength = 0;
+        for (Trie.Chain node : nodes) {
+            labelLength += node.label.length();
+            topLength += node.top.length;
+        }
+        labels = new char[labelLength];
+        labelStart = new int[n + 1];
+        firstChild = new int[n + 1];
+        values = new int[n];
+        tops = new int[topLength];
+        topStart = new int[n + 1];
+        int nextChild = 1;
+        for (int i = 0; i < n; i++) {
+            Trie.Chain node = nodes.get(i);
+            node.label.getChars(0, node.label.length(), labels, labelStart[i]);
+            labelStart[i + 1] = labelStart[i] + node.label.length();
+            firstChild[i] = nextChild;
+            nextChild += node.children;
+            values[i] = node.value;
+            System.arraycopy(node.top, 0, tops, topStart[i], node.top.length);
+            topStart[i + 1] = topStart[i] + node.top.length;
+        }
+        firstChild[n] = nextChild;
+    }
+
+    /** Returns the child of node whose label starts with c, or -1. */
+    private int child(int node, char c) {
+        int lo = firstChild[node];
+        int hi = firstChild[node + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char first = labels[labelStart[mid]];
+            if (first < c) {
+                lo = mid + 1;
+            } else if (first > c) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the node below which are the words that start with prefix, or -1 if there are
+     * none. Sets matched[0] to whether the prefix ends exactly at the end of its label.
+     */
+    private int find(String prefix, boolean[] matched) {
+        int node = 0;
+        int i = 0;
+        matched[0] = true;
+        while (i < prefix.length()) {
+            node = child(node, prefix.charAt(i));
+            if (node < 0) {
+                return -1;
+            }
+            int end = labelStart[node + 1];
+            for (int j = labelStart[node]; j < end; j++, i++) {
+                if (i == prefix.length()) {
+                    matched[0] = false;
+                    return node;
+                }
+                if (labels[j] != prefix.charAt(i)) {
+                    return -1;
+                }
+            }
+        }
+        return node;
+    }
+
+    /** Returns whether the word is in the trie. */
+    boolean contains(String word) {
+        boolean[] matched = new boolean[1];
+        int node = find(word, matched);
+        return node >= 0 && matched[0] && values[node] >= 0;
+    }
+
+    /**
+     * Returns the values of the heaviest words that start with a prefix, best first.
+     * @param prefix The prefix; the empty prefix matches every word.
+     * @param limit The most values to return. At most k are returned whatever the limit.
+     */
+    int[] top(String prefix, int limit) {
+        int node = find(prefix, new boolean[1]);
+        if (node < 0) {
+            return new int[0];
+        }
+        int count = Math.min(Math.max(limit, 0), topStart[node + 1] - topStart[node]);
+        return Arrays.copyOfRange(tops, topStart[node], topStart[node] + count);
+    }
+
+    /**
+     * Finds the words that start with a string within maxDistance edits of prefix, for
+     * search that tolerates typos. The trie is walked depth first with the row of the
+     * Levenshtein distance table between prefix and the path so far, one row per character,
+     * which is what a Levenshtein automaton of prefix would compute. A path is given up when
+     * every entry of its row is over maxDistance. When its last entry, the distance from
+     * prefix to the path, is at most maxDistance, the best words below are taken. Deeper
+     * down, words are only taken again where they are fewer edits away, and the path is
+     * given up once no entry of its row is under the distance already taken, since going
+     * deeper cannot bring the distance below the least entry of the row.
+     *
+     * The words of a node are taken from its list of best words, at most limit of them. No
+     * word left out can be among the limit best by distance and then weight: the words
+     * taken from the same node are as close and at least as heavy. The distance returned
+     * for a word may be more than its least distance, but only when it is not among the
+     * limit best words of the node it is nearest through.
+     *
+     * @param prefix The string typed.
+     * @param maxDistance The most edits allowed.
+     * @param limit The most words taken below each node, at most k.
+     * @return The value of each word found and its distance.
+     */
+    Map<Integer, Integer> fuzzy(String prefix, int maxDistance, int limit) {
+        Map<Integer, Integer> found = new HashMap<>();
+        int[] row = new int[prefix.length() + 1];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = j;
+        }
+        fuzzy(0, row, prefix, maxDistance + 1, limit, found);
+        return found;
+    }
+
+    /**
+     * Searches below node, whose row is the distance table row at the end of its label. The
+     * words below it within covered - 1 edits have been taken higher up already.
+     */
+    private void fuzzy(int node, int[] row, String prefix, int covered, int limit,
+                       Map<Integer, Integer> found) {
+        covered = reached(node, row, covered, limit, found);
+        if (covered < 0) {
+            return;
+        }
+        for (int c = firstChild[node]; c < firstChild[node + 1]; c++) {
+            /* The characters of the label before the last are inside the edge to c. */
+            int[] r = row;
+            int last = labelStart[c + 1] - 1;
+            int below = covered;
+            for (int j = labelStart[c]; j < last && below >= 0; j++) {
+                r = step(r, labels[j], prefix);
+                below = reached(c, r, below, limit, found);
+            }
+            if (below >= 0) {
+                fuzzy(c, step(r, labels[last], prefix), prefix, below, limit, found);
+            }
+        }
+    }
+
+    /**
+     * Takes the best words below node if row, the distance table row at a character of its
+     * label, puts them fewer than covered edits away.
+     * @return The distance words below must be under to be worth taking, or -1 if no word
+     *         below can be.
+     */
+    private int reached(int node, int[] row, int covered, int limit,
+                        Map<Integer, Integer> found) {
+        int distance = row[row.length - 1];
+        int least = distance;
+        for (int d : row) {
+            least = Math.min(least, d);
+        }
+        if (distance < covered) {
+            int end = Math.min(topStart[node + 1], topStart[node] + limit);
+            for (int t = topStart[node]; t < end; t++) {
+                found.merge(tops[t], distance, Math::min);
+            }
+            covered = distance;
+        }
+        return least < covered ? covered : -1;
+    }
+
+    /** Returns the distance table row after row for one more character c of the path. */
+    private static int[] step(int[] row, char c, String prefix) {
+        int[] next = new int[row.length];
+        next[0] = row[0] + 1;
+        for (int j = 1; j < row.length; j++) {
+            int replace = row[j - 1] + (prefix.charAt(j - 1) == c ? 0 : 1);
+            next[j] = Math.min(replace, Math.min(row[j], next[j - 1]) + 1);
+        }
+        return next;
+    }
+
+    /** Returns the most words a query returns. */
+    int k() {
+        return k;
+    }
+
+    /** Returns the number of words. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the number of nodes, after merging chains. */
+    int nodes() {
+        return values.length;
+    }
+
+    /** Returns the bytes taken by the arrays of the trie, leaving out object headers. */
+    long bytes() {
+        return 2L * labels.length + 4L * (labelStart.length + firstChild.length
+                + values.length + tops.length + topStart.length);
+    }
+}
@@ -0,0 +1,524 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Contraction hierarchy over the road graph of a GraphDB, for answering shortest path
+ * queries while settling only a few hundred vertices.
+ *
+ * Preprocessing contracts the vertices one at a time, cheapest first. Contracting v removes
+ * it from the graph and, for every pair of its neighbors u and w whose shortest connection
+ * runs through v, adds a shortcut edge u-w remembering v as its middle vertex. The order in
+ * which vertices were contracted is their rank. Every shortest path then has an equally
+ * short path in the graph plus shortcuts that first only climbs in rank and then only
+ * descends, so a query is a bidirectional Dijkstra that only follows edges to higher ranked
+ * vertices from both ends. Shortcuts on the result are expanded through their middle
+ * vertices to give back the path in the original graph.
+ *
+ * Hierarchies are built offline with the main method and stored in a file that MapServer
+ * loads at startup. A file records the vertex ids it was built for, and is rejected if they
+ * do not match the graph.
+ */
+class ContractionHierarchy {
+    /** First four bytes of a hierarchy file, "CH01". */
+    private static final int MAGIC = 0x43483031;
+    private static final int VERSION = 1;
+    /** Bytes of the magic number, version, vertex count and edge count. */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * Bytes per vertex (its id, rank and end offset) and per edge (its target, weight and
+     * middle vertex).
+     */
+    private static final int RECORD_SIZE = 16;
+    /** Vertices a witness search may settle before giving up and keeping the shortcut. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    /** The id of every vertex, in the graph's index order. */
+    private final long[] ids;
+    private final int[] rank;
+    /** Upward edges of vertex i are positions offsets[i] to offsets[i + 1] - 1. */
+    private final int[] offsets;
+    private final int[] targets;
+    private final double[] weights;
+    /** The vertex a shortcut skips over, or -1 for an edge of the original graph. */
+    private final int[] middles;
+
+    private ContractionHierarchy(long[] ids, int[] rank, int[] offsets, int[] targets,
+                                 double[] weights, int[] middles) {
+        this.ids = ids;
+        this.rank = rank;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.middles = middles;
+    }
+
+    /**
+     * Contracts the graph and builds the hierarchy.
+     * @param g The graph to preprocess.
+     * @return The contraction hierarchy of g.
+     */
+    static ContractionHierarchy build(GraphDB g) {
+        int n = g.numVertices();
+        Contraction c = new Contraction(g);
+        IndexedMinHeap queue = new IndexedMinHeap();
+        queue.ensureCapacity(n);
+        for (int v = 0; v < n; v++) {
+            queue.push(v, c.priority(v));
+        }
+
+        int[] rank = new int[n];
+        int[][] upTargets = new int[n][];
+        double[][] upWeights = new double[n][];
+        int[][] upMiddles = new int[n][];
+        int next = 0;
+        while (!queue.isEmpty()) {
+            int v = queue.poll();
+            /* Priorities go stale as neighbors are contracted. Rather than recomputing
+             * them for every neighbor, re-check the front of the queue and put it back
+             * if it is no longer the cheapest vertex. */
+            double p = c.priority(v);
+            if (!queue.isEmpty() && p > queue.minKey()) {
+                queue.push(v, p);
+                continue;
+            }
+            int deg = c.deg[v];
+            upTargets[v] = Arrays.copyOf(c.nbrs[v], deg);
+            upWeights[v] = Arrays.copyOf(c.wts[v], deg);
+            upMiddles[v] = Arrays.copyOf(c.mids[v], deg);
+            c.contract(v);
+            rank[v] = next;
+            next += 1;
+        }
+
+        int[] offsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            offsets[v + 1] = offsets[v] + upTargets[v].length;
+        }
+        int m = offsets[n];
+        int[] targets = new int[m];
+        double[] weights = new double[m];
+        int[] middles = new int[m];
+        long[] ids = new long[n];
+        for (int v = 0; v < n; v++) {
+            ids[v] = g.idAt(v);
+            System.arraycopy(upTargets[v], 0, targets, offsets[v], upTargets[v].length);
+            System.arraycopy(upWeights[v], 0, weights, offsets[v], upWeights[v].length);
+            System.arraycopy(upMiddles[v], 0, middles, offsets[v], upMiddles[v].length);
+        }
+        return new ContractionHierarchy(ids, rank, offsets, targets, weights, middles);
+    }
+
+    /**
+     * Mutable copy of the graph used while contracting. Each vertex keeps arrays of its
+     * remaining neighbors, the edge lengths and shortcut middles, with at most one edge per
+     * neighbor; contracted vertices are removed from their neighbors' arrays.
+     */
+    private static class Contraction {
+        private final int[][] nbrs;
+        private final double[][] wts;
+        private final int[][] mids;
+        private final int[] deg;
+        private final int[] contractedNeighbors;
+        /** One more than the highest level of any contracted neighbor. */
+        private final int[] level;
+        private final SearchSpace witness = new SearchSpace();
+        /** isTarget[v] == generation iff v is a target of the current witness search. */
+        private final int[] isTarget;
+        private int generation;
+
+        Contraction(GraphDB g) {
+            int n = g.numVertices();
+            nbrs = new int[n][];
+            wts = new double[n][];
+            mids = new int[n][];
+            deg = new int[n];
+            contractedNeighbors = new int[n];
+            level = new int[n];
+            isTarget = new int[n];
+            for (int v = 0; v < n; v++) {
+                int size = Math.max(1, g.edgeEnd(v) - g.edgeStart(v));
+                nbrs[v] = new int[size];
+                wts[v] = new double[size];
+                mids[v] = new int[size];
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    if (g.edgeTarget(e) != v) {
+                        addArc(v, g.edgeTarget(e), g.edgeWeight(e), -1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds an edge from a to b, or shortens the existing one.
+         */
+        private void addArc(int a, int b, double w, int mid) {
+            for (int i = 0; i < deg[a]; i++) {
+                if (nbrs[a][i] == b) {
+                    if (w < wts[a][i]) {
+                        wts[a][i] = w;
+                        mids[a][i] = mid;
+                    }
+                    return;
+                }
+            }
+            if (deg[a] == nbrs[a].length) {
+                nbrs[a] = Arrays.copyOf(nbrs[a], deg[a] * 2);
+                wts[a] = Arrays.copyOf(wts[a], deg[a] * 2);
+                mids[a] = Arrays.copyOf(mids[a], deg[a] * 2);
+            }
+            nbrs[a][deg[a]] = b;
+            wts[a][deg[a]] = w;
+            mids[a][deg[a]] = mid;
+            deg[a] += 1;
+        }
+
+        private void removeArc(int a, int b) {
+            for (int i = 0; i < deg[a]; i++) {
+                if (nbrs[a][i] == b) {
+                    deg[a] -= 1;
+                    nbrs[a][i] = nbrs[a][deg[a]];
+                    wts[a][i] = wts[a][deg[a]];
+                    mids[a][i] = mids[a][deg[a]];
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns how attractive v is to contract next; lower is better. The main term is
+         * the number of shortcuts it would add minus the edges it would remove. The number
+         * of neighbors already contracted and the depth of v in the hierarchy so far are
+         * added so that contraction spreads evenly over the graph instead of building long
+         * chains, which keeps upward searches short.
+         */
+        double priority(int v) {
+            return 2 * (shortcuts(v, false) - deg[v]) + contractedNeighbors[v] + level[v];
+        }
+
+        /** Removes v from the graph, adding the shortcuts needed to bypass it. */
+        void contract(int v) {
+            shortcuts(v, true);
+            for (int i = 0; i < deg[v]; i++) {
+                removeArc(nbrs[v][i], v);
+                contractedNeighbors[nbrs[v][i]] += 1;
+                level[nbrs[v][i]] = Math.max(level[nbrs[v][i]], level[v] + 1);
+            }
+            deg[v] = 0;
+        }
+
+        /**
+         * Finds every pair of neighbors of v whose shortest path is through v, by running a
+         * bounded Dijkstra from each neighbor that avoids v.
+         * @param v The vertex being contracted.
+         * @param add Whether to add the shortcuts or only count them.
+         * @return The number of shortcuts needed.
+         */
+        private int shortcuts(int v, boolean add) {
+            int d = deg[v];
+            int[] n = Arrays.copyOf(nbrs[v], d);
+            double[] w = Arrays.copyOf(wts[v], d);
+            int count = 0;
+            for (int i = 0; i < d - 1; i++) {
+                double limit = 0;
+                for (int j = i + 1; j < d; j++) {
+                    limit = Math.max(limit, w[i] + w[j]);
+                }
+                witnessSearch(n[i], v, limit, n, i + 1, d);
+                for (int j = i + 1; j < d; j++) {
+                    double via = w[i] + w[j];
+                    if (witness.isReached(n[j]) && witness.dist(n[j]) <= via) {
+                        continue;
+                    }
+                    count += 1;
+                    if (add) {
+                        addArc(n[i], n[j], via, v);
+                        addArc(n[j], n[i], via, v);
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Dijkstra from source that never enters avoid. It stops once targets[from] to
+         * targets[to - 1] are all settled, past the given distance, or after settling
+         * WITNESS_SETTLE_LIMIT vertices.
+         */
+        private void witnessSearch(int source, int avoid, double limit,
+                                   int[] targets, int from, int to) {
+            generation += 1;
+            for (int j = from; j < to; j++) {
+                isTarget[targets[j]] = generation;
+            }
+            int remaining = to - from;
+            witness.reset(deg.length);
+            IndexedMinHeap heap = witness.heap;
+            witness.reach(source, 0.0, -1, 0.0);
+            heap.push(source, 0.0);
+            while (!heap.isEmpty() && heap.minKey() <= limit
+                    && witness.numSettled() < WITNESS_SETTLE_LIMIT) {
+                int x = heap.poll();
+                witness.settle(x);
+                if (isTarget[x] == generation) {
+                    remaining -= 1;
+                    if (remaining == 0) {
+                        return;
+                    }
+                }
+                for (int i = 0; i < deg[x]; i++) {
+                    int y = nbrs[x][i];
+                    if (y == avoid || witness.isSettled(y)) {
+                        continue;
+                    }
+                    double dist = witness.dist(x) + wts[x][i];
+                    if (!witness.isReached(y)) {
+                        witness.reach(y, dist, x, 0.0);
+                    } else if (dist < witness.dist(y)) {
+                        witness.improve(y, dist, x);
+                    } else {
+                        continue;
+                    }
+                    heap.push(y, dist);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds a shortest path between two vertices.
+     * @param g The graph this hierarchy was built for.
+     * @param source Index of the start vertex.
+     * @param goal Index of the destination vertex.
+     * @param forward Scratch state for the upward search from source.
+     * @param backward Scratch state for the upward search from goal.
+     * @return The ids of the vertices on the path, or an empty list if there is none.
+     */
+    List<Long> shortestPath(GraphDB g, int source, int goal,
+                            SearchSpace forward, SearchSpace backward) {
+        forward.reset(rank.length);
+        backward.reset(rank.length);
+        forward.reach(source, 0.0, -1, 0.0);
+        forward.heap.push(source, 0.0);
+        backward.reach(goal, 0.0, -1, 0.0);
+        backward.heap.push(goal, 0.0);
+
+        double best = source == goal ? 0.0 : Double.POSITIVE_INFINITY;
+        int meet = source == goal ? source : -1;
+        while (true) {
+            boolean forwardOpen = !forward.heap.isEmpty() && forward.heap.minKey() < best;
+            boolean backwardOpen = !backward.heap.isEmpty() && backward.heap.minKey() < best;
+            if (!forwardOpen && !backwardOpen) {
+                break;
+            }
+            boolean isForward = forwardOpen
+                    && (!backwardOpen || forward.heap.minKey() <= backward.heap.minKey());
+            SearchSpace self = isForward ? forward : backward;
+            SearchSpace other = isForward ? backward : forward;
+            int v = self.heap.poll();
+            self.settle(v);
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = targets[e];
+                double d = self.dist(v) + weights[e];
+                if (!self.isReached(w)) {
+                    self.reach(w, d, v, 0.0);
+                } else if (d < self.dist(w)) {
+                    self.improve(w, d, v);
+                } else {
+                    continue;
+                }
+                self.heap.push(w, d);
+                if (other.isReached(w) && d + other.dist(w) < best) {
+                    best = d + other.dist(w);
+                    meet = w;
+                }
+            }
+        }
+        if (meet < 0) {
+            return new ArrayList<>();
+        }
+
+        List<Integer> up = new ArrayList<>();
+        for (int v = meet; v >= 0; v = forward.prev(v)) {
+            up.add(v);
+        }
+        Collections.reverse(up);
+        for (int v = backward.prev(meet); v >= 0; v = backward.prev(v)) {
+            up.add(v);
+        }
+        List<Long> path = new ArrayList<>();
+        path.add(g.idAt(up.get(0)));
+        for (int i = 1; i < up.size(); i++) {
+            unpack(g, up.get(i - 1), up.get(i), path);
+        }
+        return path;
+    }
+
+    /**
+     * Appends the original-graph path from a to b, excluding a, to path.
+     */
+    private void unpack(GraphDB g, int a, int b, List<Long> path) {
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = a;
+        stack[size++] = b;
+        while (size > 0) {
+            int to = stack[--size];
+            int from = stack[--size];
+            int mid = middles[edge(from, to)];
+            if (mid < 0) {
+                path.add(g.idAt(to));
+                continue;
+            }
+            if (size + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            /* Expand the second half after the first by pushing it underneath. */
+            stack[size++] = mid;
+            stack[size++] = to;
+            stack[size++] = from;
+            stack[size++] = mid;
+        }
+    }
+
+    /** Returns the position of the upward edge between a and b. */
+    private int edge(int a, int b) {
+        int low = rank[a] < rank[b] ? a : b;
+        int high = low == a ? b : a;
+        for (int e = offsets[low]; e < offsets[low + 1]; e++) {
+            if (targets[e] == high) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("No edge between " + ids[a] + " and " + ids[b]);
+    }
+
+    /** Returns the number of shortcut edges in the hierarchy. */
+    int numShortcuts() {
+        int count = 0;
+        for (int mid : middles) {
+            if (mid >= 0) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the hierarchy to a file. The file is written under a temporary name and then
+     * renamed, so a crash while writing never leaves a truncated hierarchy behind.
+     * @param path The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    void save(String path) throws IOException {
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.length);
+            out.writeInt(targets.length);
+            for (int v = 0; v < ids.length; v++) {
+                out.writeLong(ids[v]);
+                out.writeInt(rank[v]);
+                out.writeInt(offsets[v + 1]);
+            }
+            for (int e = 0; e < targets.length; e++) {
+                out.writeInt(targets[e]);
+                out.writeDouble(weights[e]);
+                out.writeInt(middles[e]);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a hierarchy written by save.
+     * @param path The file to read.
+     * @param g The graph the hierarchy will be used with.
+     * @return The hierarchy.
+     * @throws IOException If the file cannot be read, is not a hierarchy file, is truncated
+     * or damaged, or was built for a graph with different vertices than g.
+     */
+    static ContractionHierarchy load(String path, GraphDB g) throws IOException {
+        long length = new File(path).length();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a version " + VERSION
+                        + " contraction hierarchy file.");
+            }
+            int n = in.readInt();
+            int m = in.readInt();
+            if (n != g.numVertices()) {
+                throw new IOException(path + " was built for a different graph.");
+            }
+            if (m < 0 || length != HEADER_SIZE + RECORD_SIZE * ((long) n + m)) {
+                throw new IOException(path + " is truncated or damaged.");
+            }
+            long[] ids = new long[n];
+            int[] rank = new int[n];
+            int[] offsets = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                ids[v] = in.readLong();
+                if (ids[v] != g.idAt(v)) {
+                    throw new IOException(path + " was built for a different graph.");
+                }
+                rank[v] = in.readInt();
+                offsets[v + 1] = in.readInt();
+                if (rank[v] < 0 || rank[v] >= n || offsets[v + 1] < offsets[v]) {
+                    throw new IOException(path + " is damaged at vertex " + v + ".");
+                }
+            }
+            if (offsets[n] != m) {
+                throw new IOException(path + " is damaged: its offsets do not end at " + m
+                        + ".");
+            }
+            int[] targets = new int[m];
+            double[] weights = new double[m];
+            int[] middles = new int[m];
+            for (int e = 0; e < m; e++) {
+                targets[e] = in.readInt();
+                weights[e] = in.readDouble();
+                middles[e] = in.readInt();
+                if (targets[e] < 0 || targets[e] >= n || middles[e] < -1 || middles[e] >= n
+                        || !(weights[e] >= 0)) {
+                    throw new IOException(path + " is damaged at edge " + e + ".");
+                }
+            }
+            return new ContractionHierarchy(ids, rank, offsets, targets, weights, middles);
+        }
+    }
+
+    /**
+     * Builds the hierarchy for an OSM file and saves it.
+     * Usage: java ContractionHierarchy [osm file] [output file]
+     */
+    public static void main(String[] args) throws IOException {
+        String dbPath = args.length > 0 ? args[0] : MapServer.OSM_DB_PATH;
+        String outPath = args.length > 1 ? args[1] : MapServer.CH_PATH;
+        GraphDB g = new GraphDB(dbPath);
+        long start = System.currentTimeMillis();
+        ContractionHierarchy ch = build(g);
+        System.out.println("Contracted " + g.numVertices() + " vertices in "
+                + (System.currentTimeMillis() - start) + " ms, adding "
+                + ch.numShortcuts() + " shortcuts.");
+        ch.save(outPath);
+        System.out.println("Wrote " + outPath);
+    }
+}
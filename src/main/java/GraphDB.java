@@ -32,13 +32,54 @@ public class GraphDB {
 
 
 
+    /**
+     * Prefix queries for up to this many names are answered from the ranked trie of the
+     * location index; longer ones rank all the matches when asked.
+     */
+    static final int RANKED_MATCHES = 100;
+
+    /** Vertices collected while parsing; emptied once the compact graph has been built. */
     private HashMap<Long, Node> map = new HashMap<>();
     public HashMap<Node, String> names = new HashMap<>();
+    /** The cleaned graph in compressed-sparse-row form, used for all queries. */
+    private CompactGraph store;
+    /** Spatial index over the vertices of store, used to answer closest queries. */
+    private KdTree spatial;
+    /** Optional preprocessed hierarchy for fast routing; null if none was loaded. */
+    private ContractionHierarchy hierarchy;
+    /** Optional landmark distances for the ALT heuristic; null if none were loaded. */
+    private Landmarks landmarks;
+    /** Index of the names of the named locations, used to answer prefix queries. */
+    private LocationIndex locations;
 
 
 
 
+    /**
+     * Builds the graph from an OSM file with the streaming OsmIngest. The file may be XML,
+     * XML compressed with gzip (".gz") or bzip2 (".bz2"), or PBF (".pbf").
+     * @param dbPath Path to the OSM file to be parsed.
+     */
     public GraphDB(String dbPath) {
+        this(OsmIngest.read(dbPath));
+    }
+
+    private GraphDB(OsmIngest ingest) {
+        this(ingest.graph(), ingest.names());
+    }
+
+    private GraphDB() {
+    }
+
+    /**
+     * Builds the graph the original way, by parsing the whole file with GraphBuildingHandler
+     * into a Node per OSM node and then removing the nodes that are on no road. The
+     * constructor reads files with OsmIngest instead; this is kept to compare the two.
+     * @param dbPath Path to the XML file to be parsed.
+     * @return The graph.
+     */
+    static GraphDB parseWithHandler(String dbPath) {
+        GraphDB g = new GraphDB();
         try {
             File inputFile = new File(dbPath);
             FileInputStream inputStream = new FileInputStream(inputFile);
@@ -46,24 +87,66 @@ public class GraphDB {
 
             SAXParserFactory factory = SAXParserFactory.newInstance();
             SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
+            GraphBuildingHandler gbh = new GraphBuildingHandler(g);
             saxParser.parse(inputStream, gbh);
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
-        clean();
+        g.clean();
+        g.store = CompactGraph.fromNodes(g.map.values());
+        g.map = new HashMap<>();
+        g.spatial = new KdTree(g);
+        g.locations = new LocationIndex(g.names, RANKED_MATCHES);
+        return g;
     }
 
-    public List<String> getLocationsByPrefix (String input) {
-        String cleaned = cleanString(input);
-        Trie trie = new Trie();
-        for(String loc: getLocations()) {
-            trie.insert(loc);
-        }
-        //trie.searchNode(input).kids;
+    /**
+     * Creates a graph from an already built compact graph, as read back from a snapshot.
+     * @param store The vertices and edges.
+     * @param names The named locations.
+     */
+    GraphDB(CompactGraph store, HashMap<Node, String> names) {
+        this.store = store;
+        this.names = names;
+        spatial = new KdTree(this);
+        locations = new LocationIndex(names, RANKED_MATCHES);
+    }
+
+    /**
+     * Returns the full names of all locations whose cleaned name starts with the cleaned
+     * prefix, the names of the most locations first.
+     * @param prefix The prefix, in any case and with or without punctuation.
+     */
+    public List<String> getLocationsByPrefix(String prefix) {
+        return getLocationsByPrefix(prefix, Integer.MAX_VALUE);
+    }
 
-        return null;
+    /**
+     * Returns the full names of the locations whose cleaned name starts with the cleaned
+     * prefix, at most limit of them, the names of the most locations first.
+     */
+    List<String> getLocationsByPrefix(String prefix, int limit) {
+        return locations.byPrefix(prefix, limit);
+    }
 
+    /**
+     * Returns the full names of the locations whose cleaned name starts with a string a few
+     * edits from the cleaned prefix, the fewest edits first and then the names of the most
+     * locations. See LocationIndex.byFuzzyPrefix.
+     * @param prefix The prefix, in any case and with or without punctuation.
+     * @param maxEdits The most edits tolerated.
+     * @param limit The most names to return, at most RANKED_MATCHES.
+     */
+    List<String> getLocationsByFuzzyPrefix(String prefix, int maxEdits, int limit) {
+        return locations.byFuzzyPrefix(prefix, maxEdits, limit);
+    }
+
+    /**
+     * Returns the locations whose cleaned name is the cleaned name given, in order of id.
+     * @param locationName The name, in any case and with or without punctuation.
+     */
+    List<LocationIndex.Location> getLocations(String locationName) {
+        return locations.byName(locationName);
     }
 
     public ArrayList<String> getLocations() {
@@ -80,7 +163,18 @@ public class GraphDB {
      * @return Cleaned string.
      */
     static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        /* A loop rather than replaceAll, which compiles its pattern on every call; this runs
+         * once per keystroke of a search. */
+        StringBuilder cleaned = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                cleaned.append((char) (c + ('a' - 'A')));
+            } else if (c >= 'a' && c <= 'z' || c == ' ') {
+                cleaned.append(c);
+            }
+        }
+        return cleaned.toString();
     }
 
     /**
@@ -100,6 +194,9 @@ public class GraphDB {
         }
     }
 
+    /**
+     * Returns the vertices collected so far. Only meaningful while the graph is being built.
+     */
     public HashMap<Long, Node> getMap() {
         return map;
     }
@@ -109,8 +206,7 @@ public class GraphDB {
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
-        //YOUR CODE HERE, this currently returns only an empty list.
-        return map.keySet();
+        return store.ids();
     }
 
     /**
@@ -119,7 +215,7 @@ public class GraphDB {
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        return map.get(v).getedges();
+        return store.neighborIds(vertexIndex(v));
     }
 
     /**
@@ -180,20 +276,38 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        long closest = 0;
-        for (Long i: vertices()) {
-            if (closest == 0) {
-                closest = i;
-            }
-            double loni = map.get(i).getlon();
-            double lati = map.get(i).getlat();
-            double closlon = map.get(closest).getlon();
-            double closlat = map.get(closest).getlat();
-            if (distance(loni, lati, lon, lat) < distance(closlon, closlat, lon, lat)) {
-                closest = i;
-            }
+        int closest = spatial.nearest(lon, lat);
+        return closest < 0 ? 0 : store.idAt(closest);
+    }
+
+    /**
+     * Returns the k vertices closest to the given longitude and latitude, nearest first.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param k The maximum number of vertices to return.
+     * @return The ids of up to k nodes in the graph, ordered by distance to the target.
+     */
+    List<Long> closest(double lon, double lat, int k) {
+        return toIds(spatial.nearest(lon, lat, k));
+    }
+
+    /**
+     * Returns all vertices within the given great-circle distance of a point, nearest first.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param radius The search radius in miles.
+     * @return The ids of the nodes within radius miles of the target.
+     */
+    List<Long> within(double lon, double lat, double radius) {
+        return toIds(spatial.within(lon, lat, radius));
+    }
+
+    private List<Long> toIds(int[] indices) {
+        List<Long> result = new ArrayList<>(indices.length);
+        for (int i : indices) {
+            result.add(store.idAt(i));
         }
-        return closest;
+        return result;
     }
 
     /**
@@ -202,7 +316,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        return map.get(v).getlon();
+        return store.lonAt(vertexIndex(v));
     }
 
     /**
@@ -211,7 +325,97 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        return map.get(v).getlat();
+        return store.latAt(vertexIndex(v));
+    }
+
+    /* Index-based accessors. These expose the dense vertex numbering of the compact graph
+     * so that search code can keep its state in primitive arrays instead of maps keyed by
+     * OSM id. Indices run from 0 to numVertices() - 1. */
+
+    /** Returns the number of vertices in the graph. */
+    int numVertices() {
+        return store.size();
+    }
+
+    /** Returns the dense index of vertex v, or -1 if v is not in the graph. */
+    int indexOf(long v) {
+        return store.indexOf(v);
+    }
+
+    /**
+     * Returns the dense index of vertex v. An off-heap graph would read whatever lies before
+     * its arrays at index -1, so unknown ids are rejected here rather than by the store.
+     * @throws IllegalArgumentException If v is not in the graph.
+     */
+    private int vertexIndex(long v) {
+        int i = store.indexOf(v);
+        if (i < 0) {
+            throw new IllegalArgumentException("No vertex " + v + " in the graph.");
+        }
+        return i;
+    }
+
+    /** Returns the id of the vertex with index i. */
+    long idAt(int i) {
+        return store.idAt(i);
+    }
+
+    double lonAt(int i) {
+        return store.lonAt(i);
+    }
+
+    double latAt(int i) {
+        return store.latAt(i);
+    }
+
+    /** Returns the first position of vertex i's edges, for use with edgeTarget. */
+    int edgeStart(int i) {
+        return store.edgeStart(i);
+    }
+
+    /** Returns one past the last position of vertex i's edges. */
+    int edgeEnd(int i) {
+        return store.edgeEnd(i);
+    }
+
+    /** Returns the index of the vertex at the far end of edge e. */
+    int edgeTarget(int e) {
+        return store.target(e);
+    }
+
+    /** Returns the great-circle length of edge e in miles. */
+    double edgeWeight(int e) {
+        return store.weight(e);
+    }
+
+    /** Returns the compact graph backing this GraphDB, for writing snapshots. */
+    CompactGraph compactGraph() {
+        return store;
+    }
+
+    /** Returns a hash of the graph's vertices and edges, for validating derived files. */
+    long fingerprint() {
+        return store.fingerprint();
+    }
+
+    /** Returns the landmark distances attached to this graph, or null if there are none. */
+    Landmarks landmarks() {
+        return landmarks;
+    }
+
+    /** Attaches landmark distances computed for this graph, for Router to use. */
+    void setLandmarks(Landmarks lm) {
+        landmarks = lm;
+    }
+
+    /** Returns the contraction hierarchy attached to this graph, or null if there is none. */
+    ContractionHierarchy contractionHierarchy() {
+        return hierarchy;
+    }
+
+    /** Attaches a contraction hierarchy built for this graph, for Router to use. */
+    void setContractionHierarchy(ContractionHierarchy ch) {
+        hierarchy = ch;
     }
 
     public void addNode(Node node) {
@@ -0,0 +1,187 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of a built GraphDB, so that the server does not have to parse and clean
+ * the OSM XML file on every start. The snapshot holds the compact graph exactly as it was
+ * numbered when built, which keeps the contraction hierarchy and landmark files derived from
+ * it valid, followed by the named locations.
+ *
+ * The file starts with a fixed-size header: the magic number "GDB1", the format version,
+ * the length and modification time of the OSM file the graph was built from, the length of
+ * the rest of the file and its CRC-32. A snapshot whose version or source file does not
+ * match, or whose checksum is wrong, is treated as stale.
+ *
+ * A snapshot is always read through a memory mapping. By default the graph arrays are
+ * copied out of it onto the heap in bulk. In off-heap mode the graph is searched in the
+ * mapping itself, and the pages are shared with any other process that maps the same file.
+ * Of the graph, the heap then holds only the names, the location index and the spatial
+ * index. The contraction hierarchy and landmark files are always read onto the heap, so
+ * MapServer does not load them in off-heap mode.
+ */
+class GraphSnapshot {
+    /** First four bytes of a snapshot file, "GDB1". */
+    private static final int MAGIC = 0x47444231;
+    private static final int VERSION = 2;
+    /** Bytes before the payload; a multiple of eight so the payload arrays stay aligned. */
+    private static final int HEADER_SIZE = 40;
+
+    private GraphSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of g. The file is written under a temporary name and then renamed,
+     * so a server starting at the same time never maps a half-written snapshot.
+     * @param g The graph, built from source.
+     * @param path The snapshot file to write.
+     * @param source The OSM file g was built from.
+     * @throws IOException If the file cannot be written.
+     */
+    static void save(GraphDB g, String path, File source) throws IOException {
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        CRC32 crc = new CRC32();
+        long payloadLength;
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+            file.write(new byte[HEADER_SIZE]);
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(file), crc));
+            g.compactGraph().writeTo(out);
+            writeNames(out, g.names);
+            out.flush();
+            payloadLength = file.getChannel().size() - HEADER_SIZE;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw")) {
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeLong(source.length());
+            file.writeLong(source.lastModified());
+            file.writeLong(payloadLength);
+            file.writeLong(crc.getValue());
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeNames(DataOutputStream out, Map<Node, String> names)
+            throws IOException {
+        out.writeInt(names.size());
+        for (Map.Entry<Node, String> entry : names.entrySet()) {
+            Node node = entry.getKey();
+            byte[] name = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            out.writeLong(node.getid());
+            out.writeDouble(node.getlat());
+            out.writeDouble(node.getlon());
+            out.writeInt(name.length);
+            out.write(name);
+        }
+    }
+
+    /**
+     * Reads a snapshot written by save.
+     * @param path The snapshot file.
+     * @param source The OSM file the snapshot should have been built from.
+     * @param offHeap Whether to search the graph inside the mapping instead of copying it
+     *                onto the heap.
+     * @return The graph.
+     * @throws IOException If the file cannot be read, is not a snapshot of this version, was
+     * built from a different source file, or is corrupt.
+     */
+    static GraphDB load(String path, File source, boolean offHeap) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(path + " is not a graph snapshot.");
+            }
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map.");
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException(path + " is not a version " + VERSION
+                        + " graph snapshot.");
+            }
+            if (buf.getLong() != source.length() || buf.getLong() != source.lastModified()) {
+                throw new IOException(path + " was built from a different version of "
+                        + source + ".");
+            }
+            long payloadLength = buf.getLong();
+            long checksum = buf.getLong();
+            if (payloadLength != channel.size() - HEADER_SIZE) {
+                throw new IOException(path + " is truncated.");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException(path + " is corrupt.");
+            }
+            CompactGraph store = offHeap ? CompactGraph.map(buf) : CompactGraph.readFrom(buf);
+            return new GraphDB(store, readNames(buf));
+        }
+    }
+
+    private static HashMap<Node, String> readNames(ByteBuffer buf) {
+        int count = buf.getInt();
+        HashMap<Node, String> names = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            long id = buf.getLong();
+            double lat = buf.getDouble();
+            double lon = buf.getDouble();
+            byte[] name = new byte[buf.getInt()];
+            buf.get(name);
+            names.put(new Node(id, lat, lon), new String(name, StandardCharsets.UTF_8));
+        }
+        return names;
+    }
+
+    /**
+     * Loads the graph from the snapshot at path, or parses the OSM file and writes a new
+     * snapshot there if the snapshot is missing or stale.
+     * @param path The snapshot file.
+     * @param dbPath The OSM file.
+     * @param offHeap Whether to search the graph inside the mapping of the snapshot. A
+     *                freshly parsed graph is then replaced by the mapping of the snapshot
+     *                just written.
+     * @return The graph.
+     */
+    static GraphDB loadOrParse(String path, String dbPath, boolean offHeap) {
+        File source = new File(dbPath);
+        if (new File(path).exists()) {
+            try {
+                return load(path, source, offHeap);
+            } catch (IOException e) {
+                System.out.println("Rebuilding graph snapshot: " + e.getMessage());
+            }
+        }
+        GraphDB g = new GraphDB(dbPath);
+        if (!source.exists()) {
+            return g;
+        }
+        try {
+            save(g, path, source);
+            if (offHeap) {
+                return load(path, source, true);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return g;
+    }
+}
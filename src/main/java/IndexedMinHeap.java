@@ -0,0 +1,130 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of int items (vertex indices) keyed by double priorities, with an index
+ * from item to heap position so that the priority of an item already in the heap can be
+ * lowered in place. This replaces a PriorityQueue of boxed ids, which has no decrease-key
+ * and so collects stale duplicate entries, and which compares through a Comparator.
+ */
+class IndexedMinHeap {
+    private int[] items = new int[16];
+    private double[] keys = new double[16];
+    /** Position of each item in the heap, or -1 if it is not in the heap. */
+    private int[] pos = new int[0];
+    private int size;
+
+    /**
+     * Makes room for items 0 through n - 1.
+     */
+    void ensureCapacity(int n) {
+        if (pos.length < n) {
+            int old = pos.length;
+            pos = Arrays.copyOf(pos, n);
+            Arrays.fill(pos, old, n, -1);
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int item) {
+        return pos[item] >= 0;
+    }
+
+    /** Returns the smallest key in the heap. The heap must not be empty. */
+    double minKey() {
+        return keys[0];
+    }
+
+    /**
+     * Inserts item with the given key, or lowers its key if it is already in the heap
+     * with a larger one.
+     */
+    void push(int item, double key) {
+        int i = pos[item];
+        if (i < 0) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            i = size;
+            size += 1;
+            items[i] = item;
+            pos[item] = i;
+        } else if (key >= keys[i]) {
+            return;
+        }
+        keys[i] = key;
+        siftUp(i);
+    }
+
+    /** Removes and returns the item with the smallest key. The heap must not be empty. */
+    int poll() {
+        int top = items[0];
+        pos[top] = -1;
+        size -= 1;
+        if (size > 0) {
+            items[0] = items[size];
+            keys[0] = keys[size];
+            pos[items[0]] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    /** Empties the heap in time proportional to its current size. */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            pos[items[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int i) {
+        int item = items[i];
+        double key = keys[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        items[i] = item;
+        keys[i] = key;
+        pos[item] = i;
+    }
+
+    private void siftDown(int i) {
+        int item = items[i];
+        double key = keys[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child += 1;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        items[i] = item;
+        keys[i] = key;
+        pos[item] = i;
+    }
+
+    /** Copies the entry at position from into position to. */
+    private void move(int from, int to) {
+        items[to] = items[from];
+        keys[to] = keys[from];
+        pos[items[to]] = to;
+    }
+}
@@ -0,0 +1,55 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * This class provides a main method for comparing the two ways of building the graph from
+ * an OSM file: the original SAX parse with GraphBuildingHandler, and the streaming OsmIngest
+ * used by the GraphDB constructor. For each it prints the wall-clock build time, the peak
+ * heap use during the build, the heap still in use after a full collection, and the size
+ * and fingerprint of the graph, which should be the same for both.
+ *
+ * Peak heap is the sum of the peaks of the heap memory pools, so it depends on when the
+ * collector runs. For the most comparable numbers run each method in its own JVM with the
+ * same -Xmx, by passing the method name as the second argument.
+ *
+ * Usage: java IngestBenchmark [osm file] [handler | streaming]
+ */
+public class IngestBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+
+    public static void main(String[] args) {
+        String dbPath = args.length > 0 ? args[0] : OSM_DB_PATH;
+        String method = args.length > 1 ? args[1] : null;
+        System.out.printf("%-10s %10s %15s %17s %10s %18s%n", "method", "ms",
+                "peak heap MB", "retained heap MB", "vertices", "fingerprint");
+        if (method == null || method.equals("handler")) {
+            measure("handler", dbPath);
+        }
+        if (method == null || method.equals("streaming")) {
+            measure("streaming", dbPath);
+        }
+    }
+
+    private static void measure(String method, String dbPath) {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        GraphDB g = method.equals("handler") ? GraphDB.parseWithHandler(dbPath)
+                : new GraphDB(dbPath);
+        long millis = (System.nanoTime() - start) / 1000000;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long retained = rt.totalMemory() - rt.freeMemory();
+        System.out.printf("%-10s %10d %15.1f %17.1f %10d %18x%n", method, millis,
+                peak / 1e6, retained / 1e6, g.numVertices(), g.fingerprint());
+    }
+}
@@ -0,0 +1,257 @@
+import java.util.Arrays;
+
+/**
+ * Static 3-d tree over the vertices of a graph, used to snap query points to the road
+ * network. Each vertex is placed on the unit sphere as an (x, y, z) point. The straight-line
+ * (chord) distance between two such points grows monotonically with their great-circle
+ * distance, so ordinary Euclidean k-d tree pruning returns exactly the vertices that are
+ * nearest by great-circle distance, without any trig during the search itself.
+ *
+ * The tree is implicit: the permutation array holds the vertex indices so that the median of
+ * every range [lo, hi) is the splitting point of that subtree, with smaller coordinates to
+ * its left. Nothing but four arrays is allocated.
+ */
+class KdTree {
+    /** Mean Earth radius in miles, matching GraphDB.distance. */
+    private static final double EARTH_RADIUS = 3963;
+
+    private final int[] perm;
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+
+    /**
+     * Builds the tree over all vertices of g.
+     * @param g The graph whose vertices should be indexed.
+     */
+    KdTree(GraphDB g) {
+        int n = g.numVertices();
+        perm = new int[n];
+        xs = new double[n];
+        ys = new double[n];
+        zs = new double[n];
+        for (int i = 0; i < n; i++) {
+            perm[i] = i;
+            double phi = Math.toRadians(g.latAt(i));
+            double lambda = Math.toRadians(g.lonAt(i));
+            xs[i] = Math.cos(phi) * Math.cos(lambda);
+            ys[i] = Math.cos(phi) * Math.sin(lambda);
+            zs[i] = Math.sin(phi);
+        }
+        build(0, n, 0);
+    }
+
+    private void build(int lo, int hi, int dim) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, dim);
+        build(lo, mid, (dim + 1) % 3);
+        build(mid + 1, hi, (dim + 1) % 3);
+    }
+
+    /**
+     * Rearranges perm[lo..hi] so that perm[k] holds the point that would be there if the
+     * range were sorted by the given dimension (quickselect).
+     */
+    private void select(int lo, int hi, int k, int dim) {
+        while (hi > lo) {
+            double pivot = coord(perm[(lo + hi) >>> 1], dim);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (coord(perm[i], dim) < pivot) {
+                    i += 1;
+                }
+                while (coord(perm[j], dim) > pivot) {
+                    j -= 1;
+                }
+                if (i <= j) {
+                    int t = perm[i];
+                    perm[i] = perm[j];
+                    perm[j] = t;
+                    i += 1;
+                    j -= 1;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double coord(int v, int dim) {
+        if (dim == 0) {
+            return xs[v];
+        } else if (dim == 1) {
+            return ys[v];
+        }
+        return zs[v];
+    }
+
+    /**
+     * Returns the index of the vertex nearest to the given point, or -1 if the tree is empty.
+     */
+    int nearest(double lon, double lat) {
+        int[] result = nearest(lon, lat, 1);
+        return result.length == 0 ? -1 : result[0];
+    }
+
+    /**
+     * Returns the indices of the k vertices nearest to the given point, closest first.
+     * Fewer than k indices are returned if the graph has fewer than k vertices.
+     */
+    int[] nearest(double lon, double lat, int k) {
+        k = Math.min(k, perm.length);
+        Search s = new Search(lon, lat, k, Double.MAX_VALUE);
+        if (k > 0) {
+            nearest(s, 0, perm.length, 0);
+        }
+        return s.sorted();
+    }
+
+    /**
+     * Returns the indices of all vertices within radius miles (great-circle) of the
+     * given point, closest first. A negative radius contains no vertex.
+     */
+    int[] within(double lon, double lat, double radius) {
+        if (radius < 0) {
+            return new int[0];
+        }
+        double angle = Math.min(radius / EARTH_RADIUS, Math.PI);
+        double chord = 2 * Math.sin(angle / 2);
+        Search s = new Search(lon, lat, perm.length, chord * chord);
+        nearest(s, 0, perm.length, 0);
+        return s.sorted();
+    }
+
+    private void nearest(Search s, int lo, int hi, int dim) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int v = perm[mid];
+        double dx = xs[v] - s.x;
+        double dy = ys[v] - s.y;
+        double dz = zs[v] - s.z;
+        s.offer(v, dx * dx + dy * dy + dz * dz);
+
+        double diff = (dim == 0 ? s.x : dim == 1 ? s.y : s.z) - coord(v, dim);
+        int next = (dim + 1) % 3;
+        if (diff < 0) {
+            nearest(s, lo, mid, next);
+            if (diff * diff <= s.bound()) {
+                nearest(s, mid + 1, hi, next);
+            }
+        } else {
+            nearest(s, mid + 1, hi, next);
+            if (diff * diff <= s.bound()) {
+                nearest(s, lo, mid, next);
+            }
+        }
+    }
+
+    /**
+     * State of a single query: the query point and a bounded max-heap of the best
+     * candidates found so far, keyed by squared chord length.
+     */
+    private static class Search {
+        private final double x;
+        private final double y;
+        private final double z;
+        private final int capacity;
+        private final double limit;
+        private int[] heap;
+        private double[] keys;
+        private int size;
+
+        Search(double lon, double lat, int capacity, double limit) {
+            double phi = Math.toRadians(lat);
+            double lambda = Math.toRadians(lon);
+            x = Math.cos(phi) * Math.cos(lambda);
+            y = Math.cos(phi) * Math.sin(lambda);
+            z = Math.sin(phi);
+            this.capacity = capacity;
+            this.limit = limit;
+            int initial = Math.max(1, Math.min(capacity, 64));
+            heap = new int[initial];
+            keys = new double[initial];
+        }
+
+        /** Squared distance a candidate must beat to be kept. */
+        double bound() {
+            return size < capacity ? limit : keys[0];
+        }
+
+        void offer(int v, double key) {
+            if (key > limit) {
+                return;
+            }
+            if (size < capacity) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, Math.min(capacity, size * 2));
+                    keys = Arrays.copyOf(keys, heap.length);
+                }
+                heap[size] = v;
+                keys[size] = key;
+                siftUp(size);
+                size += 1;
+            } else if (key < keys[0]) {
+                heap[0] = v;
+                keys[0] = key;
+                siftDown(0, size);
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[parent] >= keys[i]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int n) {
+            while (2 * i + 1 < n) {
+                int child = 2 * i + 1;
+                if (child + 1 < n && keys[child + 1] > keys[child]) {
+                    child += 1;
+                }
+                if (keys[i] >= keys[child]) {
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int t = heap[i];
+            heap[i] = heap[j];
+            heap[j] = t;
+            double k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+        }
+
+        /** Empties the heap into an array ordered from nearest to farthest. */
+        int[] sorted() {
+            int[] result = new int[size];
+            for (int n = size; n > 0; n--) {
+                result[n - 1] = heap[0];
+                swap(0, n - 1);
+                siftDown(0, n - 1);
+            }
+            size = 0;
+            return result;
+        }
+    }
+}
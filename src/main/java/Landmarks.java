@@ -0,0 +1,273 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Landmark distances for the ALT (A*, landmarks, triangle inequality) heuristic. A few
+ * landmark vertices are chosen far apart near the edge of the graph, and the road distance
+ * from every landmark to every vertex is computed once. For any landmark L the triangle
+ * inequality gives |d(L, t) - d(L, v)| <= d(v, t), so the largest such difference over the
+ * landmarks is a lower bound on the remaining road distance from v to t. Unlike the
+ * great-circle distance it accounts for detours the roads force, so A* explores far fewer
+ * vertices.
+ *
+ * Computing the table takes one Dijkstra run over the whole graph per landmark, so it is
+ * saved to a file and reused on the next start as long as the graph has not changed.
+ *
+ * Distances are stored as floats, which halves the table, by far the largest part of it
+ * being k floats per vertex. Rounding them to floats can make a difference of two of them
+ * larger than the true one, by up to the gap between floats near the largest distance, so
+ * that gap is taken off every bound to keep it a lower bound.
+ */
+class Landmarks {
+    /** First four bytes of a landmark file, "LM01". */
+    private static final int MAGIC = 0x4c4d3031;
+    private static final int VERSION = 2;
+    /** Number of landmarks chosen by default. */
+    static final int DEFAULT_COUNT = 16;
+    /** Number of landmarks used by a single query, chosen per query as the most useful. */
+    private static final int ACTIVE_COUNT = 4;
+
+    private final long fingerprint;
+    private final int numVertices;
+    private final int[] vertices;
+    /** Distance from landmark l to vertex v at dist[v * k + l], or infinity. */
+    private final float[] dist;
+    private final int k;
+    /** The most rounding to floats can add to the difference of two distances. */
+    private final double slack;
+
+    private Landmarks(long fingerprint, int numVertices, int[] vertices, float[] dist) {
+        this.fingerprint = fingerprint;
+        this.numVertices = numVertices;
+        this.vertices = vertices;
+        this.dist = dist;
+        this.k = vertices.length;
+        float longest = 0;
+        for (float d : dist) {
+            if (d != Float.POSITIVE_INFINITY) {
+                longest = Math.max(longest, d);
+            }
+        }
+        this.slack = Math.ulp(longest);
+    }
+
+    /**
+     * Chooses landmarks by farthest-point selection and computes their distances. The
+     * first landmark is the vertex farthest from an arbitrary start, and each following
+     * one is the vertex whose road distance to the nearest landmark so far is largest.
+     * @param g The graph.
+     * @param count The number of landmarks to choose.
+     * @return The landmarks of g.
+     */
+    static Landmarks select(GraphDB g, int count) {
+        int n = g.numVertices();
+        count = Math.min(count, n);
+        int[] chosen = new int[count];
+        float[] dist = new float[n * count];
+        double[] nearest = new double[n];
+        SearchSpace space = new SearchSpace();
+
+        if (count > 0) {
+            dijkstra(g, 0, space);
+            chosen[0] = farthest(space, n);
+        }
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        for (int l = 0; l < count; l++) {
+            dijkstra(g, chosen[l], space);
+            for (int v = 0; v < n; v++) {
+                double d = space.isReached(v) ? space.dist(v) : Double.POSITIVE_INFINITY;
+                dist[v * count + l] = (float) d;
+                nearest[v] = Math.min(nearest[v], d);
+            }
+            if (l + 1 < count) {
+                int next = chosen[l];
+                for (int v = 0; v < n; v++) {
+                    if (nearest[v] != Double.POSITIVE_INFINITY && nearest[v] > nearest[next]) {
+                        next = v;
+                    }
+                }
+                chosen[l + 1] = next;
+            }
+        }
+        return new Landmarks(g.fingerprint(), n, chosen, dist);
+    }
+
+    /** Runs a full Dijkstra from source, leaving the distances in space. */
+    private static void dijkstra(GraphDB g, int source, SearchSpace space) {
+        space.reset(g.numVertices());
+        IndexedMinHeap heap = space.heap;
+        space.reach(source, 0.0, -1, 0.0);
+        heap.push(source, 0.0);
+        while (!heap.isEmpty()) {
+            int v = heap.poll();
+            space.settle(v);
+            for (int e = g.edgeStart(v), end = g.edgeEnd(v); e < end; e++) {
+                int w = g.edgeTarget(e);
+                double d = space.dist(v) + g.edgeWeight(e);
+                if (!space.isReached(w)) {
+                    space.reach(w, d, v, 0.0);
+                } else if (d < space.dist(w)) {
+                    space.improve(w, d, v);
+                } else {
+                    continue;
+                }
+                heap.push(w, d);
+            }
+        }
+    }
+
+    private static int farthest(SearchSpace space, int n) {
+        int best = 0;
+        for (int v = 0; v < n; v++) {
+            if (space.isReached(v) && space.dist(v) > space.dist(best)) {
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks the landmarks that give the best lower bound between source and goal, which
+     * tend to be the ones lying behind source or beyond goal.
+     * @return Up to ACTIVE_COUNT landmark positions, for use with lowerBound.
+     */
+    int[] active(int source, int goal) {
+        int[] best = new int[Math.min(ACTIVE_COUNT, k)];
+        double[] bounds = new double[best.length];
+        Arrays.fill(bounds, -1);
+        for (int l = 0; l < k; l++) {
+            double b = bound(source, goal, l);
+            for (int i = 0; i < best.length; i++) {
+                if (b > bounds[i]) {
+                    System.arraycopy(best, i, best, i + 1, best.length - i - 1);
+                    System.arraycopy(bounds, i, bounds, i + 1, bounds.length - i - 1);
+                    best[i] = l;
+                    bounds[i] = b;
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns a lower bound on the road distance between v and goal using the given
+     * landmarks.
+     */
+    double lowerBound(int v, int goal, int[] active) {
+        double best = 0;
+        for (int l : active) {
+            best = Math.max(best, bound(v, goal, l));
+        }
+        return best;
+    }
+
+    private double bound(int v, int goal, int l) {
+        float dv = dist[v * k + l];
+        float dg = dist[goal * k + l];
+        if (dv == Float.POSITIVE_INFINITY || dg == Float.POSITIVE_INFINITY) {
+            return 0;
+        }
+        return Math.max(0, Math.abs((double) dg - dv) - slack);
+    }
+
+    /** Returns the number of landmarks. */
+    int size() {
+        return k;
+    }
+
+    /**
+     * Writes the landmark table to a file. The file is written under a temporary name and
+     * then renamed, so a server starting at the same time never reads a half-written table.
+     * @param path The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    void save(String path) throws IOException {
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(numVertices);
+            out.writeInt(k);
+            for (int v : vertices) {
+                out.writeInt(v);
+            }
+            for (float d : dist) {
+                out.writeFloat(d);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a landmark table written by save.
+     * @param path The file to read.
+     * @param g The graph the landmarks will be used with.
+     * @return The landmarks.
+     * @throws IOException If the file cannot be read, is not a landmark file, or was
+     * computed for a different graph.
+     */
+    static Landmarks load(String path, GraphDB g) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a version " + VERSION
+                        + " landmark file.");
+            }
+            long fingerprint = in.readLong();
+            int n = in.readInt();
+            int count = in.readInt();
+            if (fingerprint != g.fingerprint() || n != g.numVertices()) {
+                throw new IOException(path + " was computed for a different graph.");
+            }
+            int[] vertices = new int[count];
+            for (int l = 0; l < count; l++) {
+                vertices[l] = in.readInt();
+            }
+            float[] dist = new float[n * count];
+            for (int i = 0; i < dist.length; i++) {
+                dist[i] = in.readFloat();
+            }
+            return new Landmarks(fingerprint, n, vertices, dist);
+        }
+    }
+
+    /**
+     * Loads the landmark table for g from path, or computes it and saves it there if the
+     * file is missing or was computed for a different graph.
+     * @param path The landmark file.
+     * @param g The graph.
+     * @return The landmarks of g.
+     */
+    static Landmarks loadOrSelect(String path, GraphDB g) {
+        if (new File(path).exists()) {
+            try {
+                return load(path, g);
+            } catch (IOException e) {
+                System.out.println("Recomputing landmarks: " + e.getMessage());
+            }
+        }
+        Landmarks lm = select(g, DEFAULT_COUNT);
+        try {
+            lm.save(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return lm;
+    }
+}
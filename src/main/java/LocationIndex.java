@@ -0,0 +1,235 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Static index of the names of the named locations of a graph, for answering prefix queries
+ * as the user types and for finding the locations with a name. Built once when the graph is
+ * loaded, so a query costs a walk down to the prefix plus the matches returned, not a pass
+ * over every name.
+ *
+ * The distinct cleaned names (see GraphDB.cleanString) are kept in a sorted array, and the
+ * distinct full names of each cleaned name, sorted, in a second array, with an array of
+ * offsets saying where the full names of each cleaned name start. The locations of each
+ * cleaned name, sorted by id, are kept the same way, and a hash map from cleaned name to its
+ * index finds them in constant time. Names that clean to the empty string cannot be
+ * matched by a prefix and are left out.
+ *
+ * Matches are ranked by importance, which is the number of locations with the cleaned name:
+ * a chain or a name that is everywhere is more likely to be what is being typed than a
+ * name that appears once. A ranked Trie of the cleaned names, packed into a CompactTrie,
+ * answers queries for up to capacity names; longer queries fall back to the run of matches
+ * in the sorted array. Searches that tolerate typos walk the same trie, and return at most
+ * capacity names.
+ */
+class LocationIndex {
+    /** A named location. */
+    static final class Location {
+        final long id;
+        final double lat;
+        final double lon;
+        final String name;
+
+        Location(long id, double lat, double lon, String name) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+            this.name = name;
+        }
+    }
+
+    /** The distinct cleaned names, sorted. */
+    private final String[] keys;
+    /** The index in keys of each cleaned name. */
+    private final HashMap<String, Integer> keyIndex;
+    /** The full names of keys[i] are names[starts[i]] to names[starts[i + 1] - 1]. */
+    private final int[] starts;
+    private final String[] names;
+    /** The locations of keys[i] are locations[locationStarts[i]] and on. */
+    private final int[] locationStarts;
+    private final Location[] locations;
+    /** The cleaned names, ranked by their number of locations; values are indexes into keys. */
+    private final CompactTrie ranked;
+
+    /**
+     * Indexes the names of locations.
+     * @param named The named locations and their names.
+     * @param capacity The most names a query is answered from the ranked trie for.
+     */
+    LocationIndex(Map<Node, String> named, int capacity) {
+        TreeMap<String, List<Location>> byKey = new TreeMap<>();
+        for (Map.Entry<Node, String> entry : named.entrySet()) {
+            String key = GraphDB.cleanString(entry.getValue());
+            if (!key.isEmpty()) {
+                Node node = entry.getKey();
+                byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(new Location(
+                        node.getid(), node.getlat(), node.getlon(), entry.getValue()));
+            }
+        }
+        keys = new String[byKey.size()];
+        keyIndex = new HashMap<>(2 * byKey.size());
+        starts = new int[byKey.size() + 1];
+        locationStarts = new int[byKey.size() + 1];
+        Trie trie = new Trie(capacity);
+        List<String> allNames = new ArrayList<>();
+        List<Location> all = new ArrayList<>();
+        int i = 0;
+        for (Map.Entry<String, List<Location>> entry : byKey.entrySet()) {
+            List<Location> group = entry.getValue();
+            group.sort((a, b) -> Long.compare(a.id, b.id));
+            TreeSet<String> distinct = new TreeSet<>();
+            for (Location location : group) {
+                distinct.add(location.name);
+            }
+            keys[i] = entry.getKey();
+            keyIndex.put(keys[i], i);
+            starts[i] = allNames.size();
+            allNames.addAll(distinct);
+            locationStarts[i] = all.size();
+            all.addAll(group);
+            trie.insert(keys[i], i, group.size());
+            i += 1;
+        }
+        starts[i] = allNames.size();
+        locationStarts[i] = all.size();
+        names = allNames.toArray(new String[0]);
+        locations = all.toArray(new Location[0]);
+        ranked = trie.compact();
+    }
+
+    /** Returns the number of locations with the cleaned name keys[i]. */
+    private int count(int i) {
+        return locationStarts[i + 1] - locationStarts[i];
+    }
+
+    /**
+     * Returns the locations whose cleaned name is the cleaned name given, by id.
+     * @param name The name, in any case and with or without punctuation.
+     * @return The locations, none if there are none or the name cleans to the empty string.
+     */
+    List<Location> byName(String name) {
+        Integer i = keyIndex.get(GraphDB.cleanString(name));
+        if (i == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(Arrays.asList(locations).subList(locationStarts[i],
+                locationStarts[i + 1]));
+    }
+
+    /**
+     * Returns the full names of the locations whose cleaned name starts with the cleaned
+     * prefix, the names of the most locations first.
+     * @param prefix The prefix, in any case and with or without punctuation.
+     * @param limit The most names to return.
+     * @return The matching names, none if the prefix cleans to the empty string.
+     */
+    List<String> byPrefix(String prefix, int limit) {
+        String key = GraphDB.cleanString(prefix);
+        List<String> matches = new ArrayList<>();
+        if (key.isEmpty()) {
+            return matches;
+        }
+        int[] best;
+        if (limit <= ranked.k()) {
+            best = ranked.top(key, limit);
+        } else {
+            best = matchesOf(key);
+        }
+        return namesOf(best, limit);
+    }
+
+    /** Returns the full names of the cleaned names keys[i] for i in order, at most limit. */
+    private List<String> namesOf(int[] order, int limit) {
+        List<String> matches = new ArrayList<>();
+        for (int i : order) {
+            for (int j = starts[i]; j < starts[i + 1]; j++) {
+                if (matches.size() == limit) {
+                    return matches;
+                }
+                matches.add(names[j]);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the most edits a search for a prefix of the given length tolerates: none up to
+     * two characters, where one edit would match nearly everything, one up to five, and two
+     * from six on.
+     */
+    static int allowedEdits(int length) {
+        return length <= 2 ? 0 : length <= 5 ? 1 : 2;
+    }
+
+    /**
+     * Returns the full names of the locations whose cleaned name starts with a string within
+     * a few edits (insertions, deletions or replacements of a character) of the cleaned
+     * prefix, the fewest edits first and then the names of the most locations. The edits
+     * tolerated grow with the length of the prefix, as allowedEdits says.
+     * @param prefix The prefix, in any case and with or without punctuation.
+     * @param maxEdits The most edits tolerated whatever the length of the prefix.
+     * @param limit The most names to return, at most the capacity of the index.
+     * @return The matching names, none if the prefix cleans to the empty string.
+     */
+    List<String> byFuzzyPrefix(String prefix, int maxEdits, int limit) {
+        String key = GraphDB.cleanString(prefix);
+        if (key.isEmpty()) {
+            return new ArrayList<>();
+        }
+        limit = Math.min(limit, ranked.k());
+        int edits = Math.min(maxEdits, allowedEdits(key.length()));
+        /* Names with fewer edits come first, so once there are limit of them, names with more
+         * edits cannot be returned, and the wider search, which costs much more, is left out. */
+        Map<Integer, Integer> within = ranked.fuzzy(key, 0, limit);
+        for (int e = 1; e <= edits && within.size() < limit; e++) {
+            within = ranked.fuzzy(key, e, limit);
+        }
+        Map<Integer, Integer> found = within;
+        Integer[] order = found.keySet().toArray(new Integer[0]);
+        Arrays.sort(order, (a, b) -> {
+            int byEdits = Integer.compare(found.get(a), found.get(b));
+            if (byEdits != 0) {
+                return byEdits;
+            }
+            int byCount = Integer.compare(count(b), count(a));
+            return byCount != 0 ? byCount : Integer.compare(a, b);
+        });
+        int[] best = new int[Math.min(order.length, limit)];
+        for (int i = 0; i < best.length; i++) {
+            best[i] = order[i];
+        }
+        return namesOf(best, limit);
+    }
+
+    /** Returns the indexes of all the cleaned names that start with key, ranked. */
+    private int[] matchesOf(String key) {
+        int first = Arrays.binarySearch(keys, key);
+        if (first < 0) {
+            first = -first - 1;
+        }
+        int end = first;
+        while (end < keys.length && keys[end].startsWith(key)) {
+            end += 1;
+        }
+        Integer[] matches = new Integer[end - first];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = first + i;
+        }
+        /* Stable, so equal counts stay in the order of their cleaned names, as in the trie. */
+        Arrays.sort(matches, (a, b) -> Integer.compare(count(b), count(a)));
+        int[] ranking = new int[matches.length];
+        for (int i = 0; i < ranking.length; i++) {
+            ranking[i] = matches[i];
+        }
+        return ranking;
+    }
+
+    /** Returns the number of distinct cleaned names. */
+    int size() {
+        return keys.length;
+    }
+}
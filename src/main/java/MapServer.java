@@ -1,17 +1,24 @@
-import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.BasicStroke;
 import java.awt.Color;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 
 
@@ -40,17 +47,140 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response to a request with a parameter that has no meaning. */
+    private static final int BAD_REQUEST_RESPONSE = 400;
+    /** HTTP response to a binary raster request whose query failed. */
+    private static final int NO_CONTENT_RESPONSE = 204;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
     /** The tile images are in the IMG_ROOT folder. */
-    private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+    static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+    /**
+     * The tiles of IMG_ROOT packed into one file, written by running TileArchive. Tiles are
+     * read from it instead of IMG_ROOT when it exists. Set with -Dmapserver.tileArchive=path.
+     **/
+    static final String TILE_ARCHIVE_PATH = System.getProperty("mapserver.tileArchive",
+            "../library-sp18/data/proj3_imgs.tiles");
+    /**
+     * The deepest depth rasters are drawn at, by default the depth of the tiles in IMG_ROOT.
+     * Deeper tiles are generated from them as rasters call for them, and kept in
+     * GENERATED_TILES_PATH. Set with -Dmapserver.maxDepth=n.
+     **/
+    static final int MAX_RASTER_DEPTH = Integer.getInteger("mapserver.maxDepth",
+            Rasterer.MAX_DEPTH);
+    /**
+     * The folder generated tiles are kept in. Set with -Dmapserver.generatedTiles=path.
+     **/
+    static final String GENERATED_TILES_PATH = System.getProperty("mapserver.generatedTiles",
+            "../library-sp18/data/proj3_imgs_generated/");
+    /**
+     * The most bytes of generated tiles to keep in GENERATED_TILES_PATH; the least recently
+     * read are deleted past it. Set with -Dmapserver.generatedTilesBytes=n.
+     **/
+    static final long GENERATED_TILES_BYTES = Long.getLong("mapserver.generatedTilesBytes",
+            1L << 30);
+    /**
+     * The number of background threads generating tiles. Set with
+     * -Dmapserver.tileGeneratorThreads=n.
+     **/
+    static final int TILE_GENERATOR_THREADS = Integer.getInteger(
+            "mapserver.tileGeneratorThreads", 2);
+    /**
+     * The most bytes of decoded tile pixels to keep in memory, 256KB per tile. Set with
+     * -Dmapserver.tileCacheBytes=n.
+     **/
+    static final long TILE_CACHE_BYTES = Long.getLong("mapserver.tileCacheBytes", 128L << 20);
+    /**
+     * The tiles down to this depth are decoded into the tile cache at startup; -1 turns the
+     * warm-up off. Set with -Dmapserver.tileCacheWarmDepth=n.
+     **/
+    static final int TILE_CACHE_WARM_DEPTH = Integer.getInteger("mapserver.tileCacheWarmDepth", 3);
+    /**
+     * The seconds browsers and proxies may keep a tile from the tile endpoint without
+     * checking it again. Set with -Dmapserver.tileMaxAge=n.
+     **/
+    static final long TILE_MAX_AGE = Long.getLong("mapserver.tileMaxAge", 86400);
+    /**
+     * The most bytes of encoded rasters to keep in memory for repeated viewports. Set
+     * with -Dmapserver.rasterCacheBytes=n.
+     **/
+    static final long RASTER_CACHE_BYTES = Long.getLong("mapserver.rasterCacheBytes", 32L << 20);
+    /**
+     * The number of threads loading the tiles of rasters. Tiles are mostly read from disk, so
+     * more threads than processors pay off. Set with -Dmapserver.tileLoaderThreads=n.
+     **/
+    static final int TILE_LOADER_THREADS = Integer.getInteger("mapserver.tileLoaderThreads",
+            2 * Runtime.getRuntime().availableProcessors());
+    /**
+     * The longest a raster request waits for its tiles, in milliseconds. Tiles not loaded in
+     * time are left blank. Set with -Dmapserver.rasterTimeoutMs=n.
+     **/
+    static final long RASTER_TIMEOUT_MS = Long.getLong("mapserver.rasterTimeoutMs", 10000);
+    /**
+     * The image format of rasters, "png" or "jpeg". JPEG rasters are about half the size
+     * but lossy. Set with -Dmapserver.rasterFormat=name.
+     **/
+    static final RasterEncoder.Format RASTER_FORMAT = RasterEncoder.Format.parse(
+            System.getProperty("mapserver.rasterFormat", "png"));
+    /**
+     * The deflate level of PNG rasters, from 1 (fastest) to 9 (smallest). Set with
+     * -Dmapserver.pngDeflateLevel=n.
+     **/
+    static final int PNG_DEFLATE_LEVEL = Integer.getInteger("mapserver.pngDeflateLevel", 4);
+    /**
+     * Whether to filter the rows of PNG rasters. Filtering makes map tiles larger, but may
+     * help with photographic tiles. Set with -Dmapserver.pngFilterRows=true.
+     **/
+    static final boolean PNG_FILTER_ROWS = Boolean.getBoolean("mapserver.pngFilterRows");
+    /**
+     * The quality of JPEG rasters, from 0 to 1. Set with -Dmapserver.jpegQuality=q.
+     **/
+    static final float JPEG_QUALITY = Float.parseFloat(
+            System.getProperty("mapserver.jpegQuality", "0.85"));
+    /**
+     * The most names returned for a prefix search. Set with -Dmapserver.searchResultLimit=n.
+     **/
+    static final int SEARCH_RESULT_LIMIT = Integer.getInteger("mapserver.searchResultLimit", 50);
+    /**
+     * The most typos a fuzzy search tolerates, for long enough prefixes. Set with
+     * -Dmapserver.fuzzyMaxEdits=n.
+     **/
+    static final int FUZZY_MAX_EDITS = Integer.getInteger("mapserver.fuzzyMaxEdits", 2);
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
      **/
-    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /**
+     * The binary snapshot of the graph built from OSM_DB_PATH. It is written at startup if it
+     * is missing or older than the OSM file, and read instead of the OSM file otherwise.
+     **/
+    static final String GRAPH_SNAPSHOT_PATH = "../library-sp18/data/berkeley-2018.graph";
+    /**
+     * Whether to route over the graph snapshot in place rather than copying it onto the heap.
+     * Worth turning on for large regions, where it keeps the heap and GC pauses small. The
+     * contraction hierarchy and landmark table are read onto the heap, so they are not loaded
+     * in this mode, and routes are found with A*. Set with -Dmapserver.offHeapGraph=true.
+     **/
+    static final boolean OFF_HEAP_GRAPH = Boolean.getBoolean("mapserver.offHeapGraph");
+    /**
+     * The contraction hierarchy for OSM_DB_PATH, written by running ContractionHierarchy.
+     * Routes are answered with it by default when it exists.
+     **/
+    static final String CH_PATH = "../library-sp18/data/berkeley-2018.ch";
+    /**
+     * Whether to load the landmark table and route with the ALT heuristic when there is no
+     * contraction hierarchy. Computing a missing table takes a Dijkstra run over the whole
+     * graph per landmark at startup. Set with -Dmapserver.landmarks=true.
+     **/
+    static final boolean USE_LANDMARKS = Boolean.getBoolean("mapserver.landmarks");
+    /**
+     * The landmark table for OSM_DB_PATH, if USE_LANDMARKS is set. It is computed and written
+     * at startup if it is missing or out of date.
+     **/
+    static final String LANDMARKS_PATH = "../library-sp18/data/berkeley-2018.landmarks";
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -69,6 +199,14 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Optional route request parameter naming the search algorithm to use, one of the
+     * Router.SearchMode names (e.g. "astar", "alt", "bidirectional" or "ch"); any other
+     * value is answered with a 400. The mode used is sent back as route_mode. Defaults to
+     * the contraction hierarchy if one was loaded, to ALT if only landmarks were, and to A*
+     * otherwise.
+     **/
+    private static final String ROUTE_MODE_PARAM = "mode";
 
     /**
      * The result of rastering must be a map containing all of the
@@ -76,10 +214,39 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
+    /**
+     * The raster results sent as headers by the binary raster endpoint, and max_depth, the
+     * deepest depth rasters are drawn at. The render grid is left out, since it is only needed
+     * to draw the image.
+     **/
+    private static final String[] RASTER_IMAGE_HEADER_PARAMS = {"raster_ul_lon", "raster_ul_lat",
+        "raster_lr_lon", "raster_lr_lat", "depth", "raster_width", "raster_height",
+        "max_depth"};
 
     private static Rasterer rasterer;
+    private static TileCache tileCache;
+    private static TileEndpoint tileEndpoint;
+    /** Generates the tiles deeper than the map's, or null if rasters are not drawn deeper. */
+    private static TileGenerator tileGenerator;
+    /** Loads and decodes the tiles of rasters, shared by all raster requests. */
+    private static final ExecutorService TILE_LOADERS = Executors.newFixedThreadPool(
+            TILE_LOADER_THREADS, r -> {
+                Thread t = new Thread(r, "tile-loader");
+                t.setDaemon(true);
+                return t;
+            });
+    /** The number of rasters drawn with tiles left blank because they took too long. */
+    private static final AtomicLong RASTER_TIMEOUTS = new AtomicLong();
+    private static RasterCache rasterCache = new RasterCache(RASTER_CACHE_BYTES);
+    private static RasterEncoder rasterEncoder = new RasterEncoder(RASTER_FORMAT,
+            PNG_DEFLATE_LEVEL, PNG_FILTER_ROWS, JPEG_QUALITY);
     private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    private static volatile List<Long> route = new LinkedList<>();
+    /** The current route, projected for drawing over rasters. */
+    private static volatile RouteOverlay routeOverlay = RouteOverlay.EMPTY;
+    /** Changed whenever route is, so that rasters drawn with an old route are not reused. */
+    private static volatile long routeVersion;
+    private static Router.SearchMode defaultRouteMode = Router.SearchMode.ASTAR;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -89,8 +256,30 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
-        rasterer = new Rasterer();
+        graph = GraphSnapshot.loadOrParse(GRAPH_SNAPSHOT_PATH, OSM_DB_PATH,
+                OFF_HEAP_GRAPH);
+        if (USE_LANDMARKS && !OFF_HEAP_GRAPH) {
+            graph.setLandmarks(Landmarks.loadOrSelect(LANDMARKS_PATH, graph));
+            defaultRouteMode = Router.SearchMode.ALT;
+        }
+        if (new File(CH_PATH).exists() && !OFF_HEAP_GRAPH) {
+            try {
+                graph.setContractionHierarchy(ContractionHierarchy.load(CH_PATH, graph));
+                defaultRouteMode = Router.SearchMode.CH;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        TileStore tiles = TileStore.open(IMG_ROOT, TILE_ARCHIVE_PATH);
+        if (MAX_RASTER_DEPTH > Rasterer.MAX_DEPTH) {
+            tileGenerator = new TileGenerator(tiles, GENERATED_TILES_PATH,
+                    TILE_GENERATOR_THREADS, GENERATED_TILES_BYTES);
+            tiles = tileGenerator;
+        }
+        rasterer = new Rasterer(MAX_RASTER_DEPTH, tileGenerator);
+        tileEndpoint = new TileEndpoint(tiles, TILE_MAX_AGE);
+        tileCache = new TileCache(tiles, TILE_CACHE_BYTES);
+        tileCache.warmUp(TILE_CACHE_WARM_DEPTH);
     }
 
     public static void main(String[] args) {
@@ -109,17 +298,16 @@ public class MapServer {
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
             Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
             if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+                byte[] image = renderRaster(rasteredImgParams);
+                rasteredImgParams.put("image_type", rasterEncoder.mimeType());
+                writeRasterResponse(res, rasteredImgParams, image);
+                return "";
             }
 
             /* Encode response to Json */
@@ -127,15 +315,47 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
+        /* Define the binary raster endpoint: the same request as /raster, answered with the
+         * image itself and the other raster results in headers. */
+        get("/raster_image", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            if (!validateRasteredImgParams(rasteredImgParams)) {
+                res.status(NO_CONTENT_RESPONSE);
+                return "";
+            }
+            byte[] image = renderRaster(rasteredImgParams);
+            /* So the page knows how far it can zoom in. */
+            rasteredImgParams.put("max_depth", MAX_RASTER_DEPTH);
+            writeRasterImageResponse(res, rasteredImgParams, image);
+            return "";
+        });
+
+        /* Define the endpoint for single tiles, for clients that draw the map themselves. */
+        get("/tiles/:depth/:x/:y", tileEndpoint::serve);
+
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
+            String modeParam = req.queryParams(ROUTE_MODE_PARAM);
+            Router.SearchMode mode = defaultRouteMode;
+            if (modeParam != null) {
+                try {
+                    mode = Router.SearchMode.parse(modeParam);
+                } catch (IllegalArgumentException e) {
+                    halt(BAD_REQUEST_RESPONSE, e.getMessage());
+                }
+            }
+            setRoute(Router.shortestPath(graph, params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"), mode));
             String directions = getDirectionsText();
             Map<String, Object> routeParams = new HashMap<>();
             routeParams.put("routing_success", !route.isEmpty());
+            /* The mode that found the route, which differs from the one asked for when the
+             * graph lacks what that mode needs. */
+            routeParams.put("route_mode", mode.on(graph).name().toLowerCase());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
             Gson gson = new Gson();
@@ -157,6 +377,10 @@ public class MapServer {
             if (reqParams.contains("full")) {
                 List<Map<String, Object>> data = getLocations(term);
                 return gson.toJson(data);
+            } else if (reqParams.contains("fuzzy")) {
+                /* Search for names that prefix-match with a few typos. */
+                List<String> matches = getLocationsByFuzzyPrefix(term);
+                return gson.toJson(matches);
             } else {
                 /* Search for prefix matching strings. */
                 List<String> matches = getLocationsByPrefix(term);
@@ -164,6 +388,36 @@ public class MapServer {
             }
         });
 
+        /* Define the API endpoint for the tile cache counters. */
+        get("/tile_cache", (req, res) -> {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("tiles", tileCache.size());
+            stats.put("bytes", tileCache.bytes());
+            stats.put("hits", tileCache.hits());
+            stats.put("misses", tileCache.misses());
+            stats.put("evictions", tileCache.evictions());
+            if (tileGenerator != null) {
+                stats.put("generated", tileGenerator.generated());
+                stats.put("generating", tileGenerator.pending());
+                stats.put("generated_bytes", tileGenerator.bytes());
+                stats.put("generated_evictions", tileGenerator.evictions());
+            }
+            Gson gson = new Gson();
+            return gson.toJson(stats);
+        });
+
+        /* Define the API endpoint for the raster cache counters. */
+        get("/raster_cache", (req, res) -> {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("rasters", rasterCache.size());
+            stats.put("bytes", rasterCache.bytes());
+            stats.put("hits", rasterCache.hits());
+            stats.put("misses", rasterCache.misses());
+            stats.put("timeouts", RASTER_TIMEOUTS.get());
+            Gson gson = new Gson();
+            return gson.toJson(stats);
+        });
+
         /* Define map application redirect */
         get("/", (request, response) -> {
             response.redirect("/map.html", 301);
@@ -198,99 +452,245 @@ public class MapServer {
     }
 
     /**
-     * Writes the images corresponding to rasteredImgParams to the output stream.
+     * Writes the Json response of a raster request straight to the response stream, with
+     * the image base64 encoded into it as it is written. Building the response as a string
+     * would copy the encoded image several times.
+     * @param params The results of getMapRaster.
+     * @param image The encoded image, sent as b64_encoded_image_data.
+     */
+    private static void writeRasterResponse(spark.Response res, Map<String, Object> params,
+                                            byte[] image) throws IOException {
+        String json = new Gson().toJson(params);
+        /* Reopen the object to add the image as its last field. */
+        json = json.substring(0, json.lastIndexOf('}'))
+                + (params.isEmpty() ? "" : ",") + "\"b64_encoded_image_data\":\"";
+        res.type("application/json");
+        OutputStream out = res.raw().getOutputStream();
+        out.write(json.getBytes(StandardCharsets.UTF_8));
+        OutputStream base64 = Base64.getEncoder().wrap(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+        });
+        base64.write(image);
+        /* Writes the final padding; unlike out, the wrapper above is not closed by this. */
+        base64.close();
+        out.write('"');
+        out.write('}');
+        out.flush();
+    }
+
+    /**
+     * Writes the response of a binary raster request: the image as the body, and the
+     * RASTER_IMAGE_HEADER_PARAMS results as headers named X- and the result name with
+     * dashes, such as X-raster-ul-lon.
+     */
+    private static void writeRasterImageResponse(spark.Response res, Map<String, Object> params,
+                                                 byte[] image) throws IOException {
+        StringBuilder exposed = new StringBuilder();
+        for (String param : RASTER_IMAGE_HEADER_PARAMS) {
+            String header = "X-" + param.replace('_', '-');
+            res.header(header, String.valueOf(params.get(param)));
+            exposed.append(exposed.length() > 0 ? ", " : "").append(header);
+        }
+        /* Cross-origin pages can only read the headers they are told about. */
+        res.header("Access-Control-Expose-Headers", exposed.toString());
+        res.type(rasterEncoder.mimeType());
+        res.raw().setContentLength(image.length);
+        OutputStream out = res.raw().getOutputStream();
+        out.write(image);
+        out.flush();
+    }
+
+    /**
+     * Returns the encoded image for rasteredImgParams, and adds its raster_width and
+     * raster_height to them. The image is taken from the raster cache if the same grid was
+     * rendered with the current route before, and rendered and cached otherwise.
+     */
+    private static byte[] renderRaster(Map<String, Object> rasteredImgParams) {
+        /* Read the version before writeImagesToOutputStream reads the route. setRoute
+         * changes them in the opposite order, so an image is never cached under a version
+         * newer than its route. */
+        String key = RasterCache.key(rasteredImgParams, routeVersion);
+        RasterCache.Raster raster = rasterCache.get(key);
+        if (raster == null) {
+            RasterEncoder.Buffers buffers = rasterEncoder.acquire();
+            try {
+                boolean complete = writeImagesToOutputStream(rasteredImgParams, buffers);
+                raster = new RasterCache.Raster(buffers.out.toByteArray(),
+                        (int) rasteredImgParams.get("raster_width"),
+                        (int) rasteredImgParams.get("raster_height"));
+                if (complete && buffers.out.size() > 0) {
+                    rasterCache.put(key, raster);
+                }
+            } finally {
+                rasterEncoder.release(buffers);
+            }
+        } else {
+            rasteredImgParams.put("raster_width", raster.width);
+            rasteredImgParams.put("raster_height", raster.height);
+        }
+        return raster.image;
+    }
+
+    /**
+     * Writes the images corresponding to rasteredImgParams to the output buffer of buffers,
+     * encoded by rasterEncoder.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
+     * @return Whether all tiles were drawn; tiles not loaded within RASTER_TIMEOUT_MS are
+     * left black.
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
+    private static boolean writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
+                                                     RasterEncoder.Buffers buffers) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
         int numVertTiles = renderGrid.length;
         int numHorizTiles = renderGrid[0].length;
 
         BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
                 numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
-            }
-        }
-
-        /* If there is a route, draw it. */
-        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
-        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
-        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
-        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
-
-        final double wdpp = (lrlon - ullon) / img.getWidth();
-        final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+        boolean complete = drawTiles(renderGrid, img);
+
+        /* If there is a route, draw the part of it over this raster. */
+        double ullon = (double) rasteredImageParams.get("raster_ul_lon");
+        double ullat = (double) rasteredImageParams.get("raster_ul_lat");
+        double lrlon = (double) rasteredImageParams.get("raster_lr_lon");
+        double lrlat = (double) rasteredImageParams.get("raster_lr_lat");
+        Graphics2D graphic = img.createGraphics();
+        try {
+            routeOverlay.draw(graphic, ullon, ullat, lrlon, lrlat, img.getWidth(),
+                    img.getHeight());
+        } finally {
+            graphic.dispose();
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
         rasteredImageParams.put("raster_height", img.getHeight());
 
         try {
-            ImageIO.write(img, "png", os);
+            rasterEncoder.encode(img, buffers);
         } catch (IOException e) {
             e.printStackTrace();
         }
-
+        return complete;
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
+    /**
+     * Loads the tiles of renderGrid on the TILE_LOADERS pool and copies them into img as
+     * they arrive, in grid order. Gives up on the tiles not loaded within RASTER_TIMEOUT_MS
+     * of the start.
+     * @return Whether all tiles were drawn.
+     */
+    private static boolean drawTiles(String[][] renderGrid, BufferedImage img) {
+        long deadline = System.nanoTime() + RASTER_TIMEOUT_MS * 1000000;
+        int numVertTiles = renderGrid.length;
+        int numHorizTiles = renderGrid[0].length;
+        List<Future<BufferedImage>> tiles = new ArrayList<>(numVertTiles * numHorizTiles);
+        for (String[] row : renderGrid) {
+            for (String name : row) {
+                tiles.add(TILE_LOADERS.submit(() -> tileCache.get(name)));
+            }
+        }
+        boolean complete = true;
+        WritableRaster pixels = img.getRaster();
+        for (int i = 0; i < tiles.size(); i++) {
+            BufferedImage tile = null;
             try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
+                tile = tiles.get(i).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (TimeoutException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                RASTER_TIMEOUTS.incrementAndGet();
+                for (int j = i; j < tiles.size(); j++) {
+                    tiles.get(j).cancel(true);
+                }
+                return false;
+            }
+            if (tile == null) {
+                complete = false;
+                continue;
+            }
+            int x = i % numHorizTiles * MapServer.TILE_SIZE;
+            int y = i / numHorizTiles * MapServer.TILE_SIZE;
+            if (tile.getType() == BufferedImage.TYPE_INT_RGB
+                    && tile.getWidth() == MapServer.TILE_SIZE
+                    && tile.getHeight() == MapServer.TILE_SIZE) {
+                /* A row by row array copy, where drawImage would go through the Java2D
+                 * pipeline for every tile. */
+                pixels.setDataElements(x, y, tile.getRaster());
+            } else {
+                Graphics2D g = img.createGraphics();
+                try {
+                    g.drawImage(tile, x, y, null);
+                } finally {
+                    g.dispose();
+                }
             }
         }
-        return tileImg;
+        return complete;
     }
 
     /**
      * Clear the current found route, if it exists.
      */
     public static void clearRoute() {
-        route = new LinkedList<Long>();
+        setRoute(new LinkedList<Long>());
+    }
+
+    /**
+     * Replaces the current route and its overlay, and drops the rasters drawn with the old
+     * one.
+     */
+    private static synchronized void setRoute(List<Long> newRoute) {
+        route = newRoute;
+        routeOverlay = RouteOverlay.of(graph, newRoute);
+        routeVersion += 1;
+        rasterCache.clear();
     }
 
     /**
-     * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Collect the names of OSM locations that prefix-match the query string, at most
+     * SEARCH_RESULT_LIMIT of them, from the graph's location index.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
      * @return A <code>List</code> of the full names of locations whose cleaned name matches the
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        return new LinkedList<>();
+        if (prefix == null) {
+            return new LinkedList<>();
+        }
+        return graph.getLocationsByPrefix(prefix, SEARCH_RESULT_LIMIT);
+    }
+
+    /**
+     * Collect the names of OSM locations that prefix-match the query string with up to
+     * FUZZY_MAX_EDITS typos, the closest and then the most common first, at most
+     * SEARCH_RESULT_LIMIT of them.
+     * @param prefix Prefix string to be searched for. Could be any case, with our without
+     *               punctuation.
+     * @return A <code>List</code> of the full names of locations.
+     */
+    public static List<String> getLocationsByFuzzyPrefix(String prefix) {
+        if (prefix == null) {
+            return new LinkedList<>();
+        }
+        return graph.getLocationsByFuzzyPrefix(prefix, FUZZY_MAX_EDITS, SEARCH_RESULT_LIMIT);
     }
 
     /**
      * Collect all locations that match a cleaned <code>locationName</code>, and return
-     * information about each node that matches.
+     * information about each node that matches. The locations are looked up in the graph's
+     * location index.
      * @param locationName A full name of a location searched for.
      * @return A list of locations whose cleaned name matches the
      * cleaned <code>locationName</code>, and each location is a map of parameters for the Json
@@ -301,7 +701,19 @@ public class MapServer {
      * "id" : Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
-        return new LinkedList<>();
+        List<Map<String, Object>> results = new LinkedList<>();
+        if (locationName == null) {
+            return results;
+        }
+        for (LocationIndex.Location location : graph.getLocations(locationName)) {
+            Map<String, Object> result = new HashMap<>();
+            result.put("lat", location.lat);
+            result.put("lon", location.lon);
+            result.put("name", location.name);
+            result.put("id", location.id);
+            results.add(result);
+        }
+        return results;
     }
 
     /**
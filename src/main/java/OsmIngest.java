@@ -0,0 +1,368 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Builds the road graph from an OSM file in two streaming passes, without creating an
+ * object per OSM node.
+ *
+ * The first pass only looks at ways. It numbers every node referenced by a highway way in
+ * order of first reference and records the road segments between consecutive references.
+ * The second pass only looks at nodes, and keeps the coordinates of the referenced ones and
+ * the names of the named ones. Nodes that are on no road are never materialized, which for a
+ * typical extract is most of them. The second pass stops at the end of the last block that
+ * contained a node in the first pass, so for files with the usual nodes-then-ways order it
+ * does not read the ways again.
+ *
+ * In each pass a reader thread cuts the input into blocks, a pool of workers parses the
+ * blocks, and the calling thread merges their results in file order. At most QUEUE_DEPTH
+ * blocks are in flight at once, which bounds the memory the pipeline needs regardless of
+ * the size of the input. Since results are merged in file order, the graph is the same as
+ * the one GraphBuildingHandler builds, edge order included.
+ */
+class OsmIngest {
+    /** Bytes of input per block handed to a worker. */
+    static final int BLOCK_SIZE = 1 << 20;
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /** Maximum number of blocks read but not yet merged. */
+    private static final int QUEUE_DEPTH = 2 * THREADS;
+    /** Marks the end of the blocks of a pass in the queue. */
+    private static final Future<Chunk> END = CompletableFuture.completedFuture(null);
+
+    /** Which elements a pass is interested in. */
+    enum Pass {
+        WAYS, NODES
+    }
+
+    /**
+     * Cuts an input into blocks that can be parsed independently. A BlockReader is only
+     * used by the reader thread of one pass.
+     */
+    interface BlockReader extends Closeable {
+        /**
+         * Reads the next block and returns a task that parses it, or null at the end of the
+         * input.
+         * @param pass The pass the block is read for.
+         * @param referenced In the NODES pass, the vertex index of each node on a road.
+         *                   The task may read but must not modify it.
+         */
+        Callable<Chunk> next(Pass pass, LongIntMap referenced) throws IOException;
+    }
+
+    /**
+     * What one block of the input contributes to the graph. Filled in by one worker and
+     * then handed to the merging thread.
+     */
+    static final class Chunk {
+        /** Offset in the input just past this block. */
+        long end;
+        boolean hasNodes;
+        /** Node references of the highway ways in this block, one way after the other. */
+        long[] wayRefs = new long[256];
+        int numWayRefs;
+        /** End of each way in wayRefs. */
+        int[] wayEnds = new int[32];
+        int numWays;
+        /** Vertex index and coordinates of the nodes in this block that are on a road. */
+        int[] nodeIndices = new int[64];
+        double[] nodeLats = new double[64];
+        double[] nodeLons = new double[64];
+        int numNodes;
+        /** Named nodes in this block and their names, in file order. */
+        final List<Node> namedNodes = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+
+        void addWayRef(long ref) {
+            if (numWayRefs == wayRefs.length) {
+                wayRefs = Arrays.copyOf(wayRefs, 2 * numWayRefs);
+            }
+            wayRefs[numWayRefs++] = ref;
+        }
+
+        /** Ends the current way, whose references were added since the last call. */
+        void endWay() {
+            if (numWays == wayEnds.length) {
+                wayEnds = Arrays.copyOf(wayEnds, 2 * numWays);
+            }
+            wayEnds[numWays++] = numWayRefs;
+        }
+
+        /** Drops the references added since the last endWay, for a way that is no road. */
+        void discardWay() {
+            numWayRefs = numWays == 0 ? 0 : wayEnds[numWays - 1];
+        }
+
+        void addNode(int index, double lat, double lon) {
+            if (numNodes == nodeIndices.length) {
+                nodeIndices = Arrays.copyOf(nodeIndices, 2 * numNodes);
+                nodeLats = Arrays.copyOf(nodeLats, 2 * numNodes);
+                nodeLons = Arrays.copyOf(nodeLons, 2 * numNodes);
+            }
+            nodeIndices[numNodes] = index;
+            nodeLats[numNodes] = lat;
+            nodeLons[numNodes] = lon;
+            numNodes += 1;
+        }
+
+        void addName(long id, double lat, double lon, String name) {
+            namedNodes.add(new Node(id, lat, lon));
+            names.add(name);
+        }
+    }
+
+    private final String path;
+    private final HashMap<Node, String> names = new HashMap<>();
+    /** Vertex index of every node referenced by a highway way, in order of first reference. */
+    private final LongIntMap referenced = new LongIntMap(1 << 16);
+    private long[] ids = new long[1 << 16];
+    private int numVertices;
+    /** Road segments as pairs of vertex indices, in file order. */
+    private int[] segments = new int[1 << 16];
+    private int numSegments;
+    /** Offset just past the last block that contained a node. */
+    private long nodesEnd;
+    private double[] lats;
+    private double[] lons;
+    private boolean[] found;
+    private CompactGraph graph;
+
+    private OsmIngest(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads the road graph and the named locations from an OSM file. Errors are printed and
+     * leave an empty graph, as with the SAX parser GraphDB used before.
+     * @param path The OSM file.
+     * @return The result of the ingest.
+     */
+    static OsmIngest read(String path) {
+        OsmIngest ingest = new OsmIngest(path);
+        try {
+            ingest.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            ingest.names.clear();
+            ingest.graph = CompactGraph.fromArcs(new long[0], new double[0], new double[0],
+                    new int[0], new int[0], 0);
+        }
+        return ingest;
+    }
+
+    /** Returns the road graph. */
+    CompactGraph graph() {
+        return graph;
+    }
+
+    /** Returns the named locations, including those that are not on a road. */
+    HashMap<Node, String> names() {
+        return names;
+    }
+
+    private void run() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "osm-ingest");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            try (BlockReader reader = open(path, Long.MAX_VALUE)) {
+                runPass(reader, Pass.WAYS, pool);
+            }
+            lats = new double[numVertices];
+            lons = new double[numVertices];
+            found = new boolean[numVertices];
+            try (BlockReader reader = open(path, nodesEnd)) {
+                runPass(reader, Pass.NODES, pool);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        graph = assemble();
+    }
+
+    /**
+     * Opens the blocks of an OSM file. The format is chosen by the file name: ".pbf" files
+     * are read as PBF, ".gz" and ".bz2" files as compressed XML, and anything else as XML.
+     * For compressed XML the offsets are those of the uncompressed text.
+     * @param limit Offset at which to stop; blocks starting at or after it are not read.
+     */
+    private static BlockReader open(String path, long limit) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(path), 1 << 16);
+        try {
+            if (path.endsWith(".pbf")) {
+                return new OsmPbfReader.Blocks(in, limit);
+            } else if (path.endsWith(".gz")) {
+                in = new GZIPInputStream(in, 1 << 16);
+            } else if (path.endsWith(".bz2")) {
+                in = new BZip2InputStream(in);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new OsmXmlScanner.Blocks(in, limit);
+    }
+
+    /**
+     * Runs one pass: a reader thread submits the blocks to the pool, and this thread merges
+     * the parsed blocks in the order they were read.
+     */
+    private void runPass(BlockReader reader, Pass pass, ExecutorService pool)
+            throws IOException {
+        BlockingQueue<Future<Chunk>> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        IOException[] readError = new IOException[1];
+        LongIntMap index = pass == Pass.NODES ? referenced : null;
+        Thread producer = new Thread(() -> {
+            try {
+                Callable<Chunk> task;
+                while ((task = reader.next(pass, index)) != null) {
+                    queue.put(pool.submit(task));
+                }
+            } catch (IOException e) {
+                readError[0] = e;
+            } catch (RuntimeException e) {
+                readError[0] = new IOException("Could not read " + path, e);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // the merging thread has given up
+            }
+        }, "osm-reader");
+        producer.start();
+        try {
+            for (Future<Chunk> f = queue.take(); f != END; f = queue.take()) {
+                Chunk chunk = f.get();
+                if (pass == Pass.WAYS) {
+                    mergeWays(chunk);
+                } else {
+                    mergeNodes(chunk);
+                }
+            }
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + path);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not parse " + path, e.getCause());
+        } finally {
+            producer.interrupt();
+        }
+        if (readError[0] != null) {
+            throw readError[0];
+        }
+    }
+
+    private void mergeWays(Chunk chunk) {
+        if (chunk.hasNodes) {
+            nodesEnd = chunk.end;
+        }
+        int start = 0;
+        for (int w = 0; w < chunk.numWays; w++) {
+            int end = chunk.wayEnds[w];
+            int prev = -1;
+            for (int r = start; r < end; r++) {
+                int v = vertexFor(chunk.wayRefs[r]);
+                if (prev >= 0) {
+                    if (numSegments + 2 > segments.length) {
+                        segments = Arrays.copyOf(segments, 2 * segments.length);
+                    }
+                    segments[numSegments++] = prev;
+                    segments[numSegments++] = v;
+                }
+                prev = v;
+            }
+            start = end;
+        }
+    }
+
+    private int vertexFor(long ref) {
+        int v = referenced.get(ref);
+        if (v < 0) {
+            v = numVertices++;
+            if (v == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * v);
+            }
+            ids[v] = ref;
+            referenced.put(ref, v);
+        }
+        return v;
+    }
+
+    private void mergeNodes(Chunk chunk) {
+        for (int i = 0; i < chunk.numNodes; i++) {
+            int v = chunk.nodeIndices[i];
+            lats[v] = chunk.nodeLats[i];
+            lons[v] = chunk.nodeLons[i];
+            found[v] = true;
+        }
+        for (int i = 0; i < chunk.namedNodes.size(); i++) {
+            names.put(chunk.namedNodes.get(i), chunk.names.get(i));
+        }
+    }
+
+    /**
+     * Builds the compact graph from the segments, leaving out segments to nodes that are
+     * missing from the file and vertices that end up without any segment.
+     */
+    private CompactGraph assemble() {
+        int[] degree = new int[numVertices];
+        for (int s = 0; s < numSegments; s += 2) {
+            int a = segments[s];
+            int b = segments[s + 1];
+            if (found[a] && found[b]) {
+                degree[a] += 1;
+                degree[b] += 1;
+            }
+        }
+        int[] position = new int[numVertices];
+        int n = 0;
+        for (int v = 0; v < numVertices; v++) {
+            position[v] = degree[v] > 0 ? n++ : -1;
+        }
+        long[] keptIds = new long[n];
+        double[] keptLats = new double[n];
+        double[] keptLons = new double[n];
+        for (int v = 0; v < numVertices; v++) {
+            if (position[v] >= 0) {
+                keptIds[position[v]] = ids[v];
+                keptLats[position[v]] = lats[v];
+                keptLons[position[v]] = lons[v];
+            }
+        }
+        int[] from = new int[numSegments];
+        int[] to = new int[numSegments];
+        int m = 0;
+        for (int s = 0; s < numSegments; s += 2) {
+            int a = position[segments[s]];
+            int b = position[segments[s + 1]];
+            if (found[segments[s]] && found[segments[s + 1]]) {
+                from[m] = a;
+                to[m] = b;
+                from[m + 1] = b;
+                to[m + 1] = a;
+                m += 2;
+            }
+        }
+        return CompactGraph.fromArcs(keptIds, keptLats, keptLons, from, to, m);
+    }
+}
@@ -0,0 +1,542 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for the OSM PBF format, in which an extract is a sequence of independently
+ * compressed blocks of a few thousand nodes or ways each. The reader thread only reads the
+ * raw blocks; inflating and decoding them is left to the tasks it returns, so blocks are
+ * decoded in parallel by the OsmIngest workers.
+ *
+ * The protocol buffer messages are decoded by hand, reading only the fields the graph needs.
+ * See <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">the PBF format</a>. Blocks
+ * compressed with zlib or stored raw are supported, which covers the files written by the
+ * common tools with default settings.
+ */
+class OsmPbfReader {
+    /** Largest BlobHeader the format allows. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    /** Largest Blob the format allows. */
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    private static final String[] SUPPORTED_FEATURES = {"OsmSchema-V0.6", "DenseNodes"};
+
+    /**
+     * Reads the blobs of a PBF file. A block ends after each OSMData blob; the OSMHeader
+     * blob is checked for features this reader does not understand.
+     */
+    static class Blocks implements OsmIngest.BlockReader {
+        private final DataInputStream in;
+        private final long limit;
+        private long position;
+
+        /**
+         * @param in The input, which is closed with the Blocks.
+         * @param limit Offset at which to stop; blocks starting at or after it are not read.
+         */
+        Blocks(InputStream in, long limit) {
+            this.in = new DataInputStream(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public Callable<OsmIngest.Chunk> next(OsmIngest.Pass pass, LongIntMap referenced)
+                throws IOException {
+            while (position < limit) {
+                int headerSize;
+                try {
+                    headerSize = in.readInt();
+                } catch (EOFException e) {
+                    return null;
+                }
+                if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                    throw new IOException("Bad PBF blob header size " + headerSize);
+                }
+                byte[] header = new byte[headerSize];
+                in.readFully(header);
+                String type = null;
+                int dataSize = -1;
+                Message m = new Message(header, 0, headerSize);
+                while (m.next()) {
+                    if (m.field == 1) {
+                        type = m.string();
+                    } else if (m.field == 3) {
+                        dataSize = (int) m.varint();
+                    } else {
+                        m.skip();
+                    }
+                }
+                if (type == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+                    throw new IOException("Bad PBF blob header.");
+                }
+                byte[] blob = new byte[dataSize];
+                in.readFully(blob);
+                position += 4 + headerSize + dataSize;
+                if (type.equals("OSMHeader")) {
+                    checkHeader(inflate(blob));
+                } else if (type.equals("OSMData")) {
+                    OsmIngest.Chunk chunk = new OsmIngest.Chunk();
+                    chunk.end = position;
+                    return () -> {
+                        new BlockDecoder(inflate(blob), pass, referenced, chunk).decode();
+                        return chunk;
+                    };
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /** Fails if the file needs a feature this reader does not support. */
+    private static void checkHeader(byte[] block) throws IOException {
+        Message m = new Message(block, 0, block.length);
+        while (m.next()) {
+            if (m.field == 4) {
+                String feature = m.string();
+                if (!Arrays.asList(SUPPORTED_FEATURES).contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                m.skip();
+            }
+        }
+    }
+
+    /** Returns the uncompressed contents of a Blob message. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        Message m = new Message(blob, 0, blob.length);
+        int rawSize = -1;
+        int zlibStart = -1;
+        int zlibEnd = -1;
+        while (m.next()) {
+            if (m.field == 1) {
+                m.bytes();
+                return Arrays.copyOfRange(blob, m.start, m.end);
+            } else if (m.field == 2) {
+                rawSize = (int) m.varint();
+            } else if (m.field == 3) {
+                m.bytes();
+                zlibStart = m.start;
+                zlibEnd = m.end;
+            } else if (m.field >= 4 && m.field <= 7) {
+                throw new IOException("Unsupported PBF compression (Blob field " + m.field
+                        + "); only zlib is supported.");
+            } else {
+                m.skip();
+            }
+        }
+        if (zlibStart < 0 || rawSize < 0) {
+            throw new IOException("Empty PBF blob.");
+        }
+        byte[] raw = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, zlibStart, zlibEnd - zlibStart);
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int r = inflater.inflate(raw, n, rawSize - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != rawSize) {
+                throw new IOException("Truncated PBF blob.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PBF blob.", e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+
+    /**
+     * Decodes one PrimitiveBlock into a chunk. Coordinates are computed from the integer
+     * nanodegrees with a single correctly rounded division, so they are exactly the values
+     * parsed from the same coordinates written in decimal in an XML file.
+     */
+    private static final class BlockDecoder {
+        private final byte[] block;
+        private final OsmIngest.Pass pass;
+        private final LongIntMap referenced;
+        private final OsmIngest.Chunk out;
+        /** Start and end of each entry of the string table. */
+        private int[] stringStarts = new int[0];
+        private int[] stringEnds = new int[0];
+        private int nameKey = -1;
+        private int highwayKey = -1;
+        /** Whether each string is an allowed highway type; computed when first needed. */
+        private byte[] allowedHighway;
+        private long granularity = 100;
+        private long latOffset;
+        private long lonOffset;
+
+        BlockDecoder(byte[] block, OsmIngest.Pass pass, LongIntMap referenced,
+                     OsmIngest.Chunk out) {
+            this.block = block;
+            this.pass = pass;
+            this.referenced = referenced;
+            this.out = out;
+        }
+
+        void decode() throws IOException {
+            /* The groups usually come before the granularity and offsets they depend on,
+             * so read those first and the groups in a second pass over the block. */
+            Message m = new Message(block, 0, block.length);
+            while (m.next()) {
+                if (m.field == 1) {
+                    m.bytes();
+                    readStringTable(m.start, m.end);
+                } else if (m.field == 17) {
+                    granularity = m.varint();
+                } else if (m.field == 19) {
+                    latOffset = m.varint();
+                } else if (m.field == 20) {
+                    lonOffset = m.varint();
+                } else {
+                    m.skip();
+                }
+            }
+            m = new Message(block, 0, block.length);
+            while (m.next()) {
+                if (m.field == 2) {
+                    m.bytes();
+                    decodeGroup(m.start, m.end);
+                } else {
+                    m.skip();
+                }
+            }
+        }
+
+        private void readStringTable(int start, int end) throws IOException {
+            int count = 0;
+            Message m = new Message(block, start, end);
+            while (m.next()) {
+                m.bytes();
+                if (count == stringStarts.length) {
+                    stringStarts = Arrays.copyOf(stringStarts, Math.max(16, 2 * count));
+                    stringEnds = Arrays.copyOf(stringEnds, stringStarts.length);
+                }
+                stringStarts[count] = m.start;
+                stringEnds[count] = m.end;
+                if (stringIs(count, "name")) {
+                    nameKey = count;
+                } else if (stringIs(count, "highway")) {
+                    highwayKey = count;
+                }
+                count += 1;
+            }
+            stringStarts = Arrays.copyOf(stringStarts, count);
+            stringEnds = Arrays.copyOf(stringEnds, count);
+            allowedHighway = new byte[count];
+        }
+
+        private boolean stringIs(int i, String s) {
+            int start = stringStarts[i];
+            if (stringEnds[i] - start != s.length()) {
+                return false;
+            }
+            for (int j = 0; j < s.length(); j++) {
+                if (block[start + j] != s.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String string(int i) throws IOException {
+            if (i < 0 || i >= stringStarts.length) {
+                throw new IOException("Bad PBF string index " + i);
+            }
+            return new String(block, stringStarts[i], stringEnds[i] - stringStarts[i],
+                    StandardCharsets.UTF_8);
+        }
+
+        private boolean isAllowedHighway(int i) throws IOException {
+            if (allowedHighway[i] == 0) {
+                allowedHighway[i] = (byte) (GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES
+                        .contains(string(i)) ? 1 : 2);
+            }
+            return allowedHighway[i] == 1;
+        }
+
+        private double coordinate(long offset, long value) {
+            return (offset + granularity * value) / 1e9;
+        }
+
+        private void decodeGroup(int start, int end) throws IOException {
+            Message m = new Message(block, start, end);
+            while (m.next()) {
+                if (m.field == 1 || m.field == 2) {
+                    out.hasNodes = true;
+                    if (pass != OsmIngest.Pass.NODES) {
+                        m.skip();
+                    } else if (m.field == 1) {
+                        m.bytes();
+                        decodeNode(m.start, m.end);
+                    } else {
+                        m.bytes();
+                        decodeDenseNodes(m.start, m.end);
+                    }
+                } else if (m.field == 3 && pass == OsmIngest.Pass.WAYS) {
+                    m.bytes();
+                    decodeWay(m.start, m.end);
+                } else {
+                    m.skip();
+                }
+            }
+        }
+
+        private void decodeNode(int start, int end) throws IOException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            int keysStart = 0, keysEnd = 0, valsStart = 0, valsEnd = 0;
+            Message m = new Message(block, start, end);
+            while (m.next()) {
+                if (m.field == 1) {
+                    id = m.sint();
+                } else if (m.field == 2) {
+                    m.bytes();
+                    keysStart = m.start;
+                    keysEnd = m.end;
+                } else if (m.field == 3) {
+                    m.bytes();
+                    valsStart = m.start;
+                    valsEnd = m.end;
+                } else if (m.field == 8) {
+                    lat = m.sint();
+                } else if (m.field == 9) {
+                    lon = m.sint();
+                } else {
+                    m.skip();
+                }
+            }
+            String name = null;
+            Message keys = new Message(block, keysStart, keysEnd);
+            Message vals = new Message(block, valsStart, valsEnd);
+            while (keys.hasMore() && vals.hasMore()) {
+                int k = (int) keys.varint();
+                int v = (int) vals.varint();
+                if (k == nameKey) {
+                    name = string(v);
+                }
+            }
+            addNode(id, coordinate(latOffset, lat), coordinate(lonOffset, lon), name);
+        }
+
+        private void decodeDenseNodes(int start, int end) throws IOException {
+            int idsStart = 0, idsEnd = 0, latsStart = 0, latsEnd = 0;
+            int lonsStart = 0, lonsEnd = 0, tagsStart = 0, tagsEnd = 0;
+            Message m = new Message(block, start, end);
+            while (m.next()) {
+                if (m.field == 1 || m.field == 8 || m.field == 9 || m.field == 10) {
+                    m.bytes();
+                    if (m.field == 1) {
+                        idsStart = m.start;
+                        idsEnd = m.end;
+                    } else if (m.field == 8) {
+                        latsStart = m.start;
+                        latsEnd = m.end;
+                    } else if (m.field == 9) {
+                        lonsStart = m.start;
+                        lonsEnd = m.end;
+                    } else {
+                        tagsStart = m.start;
+                        tagsEnd = m.end;
+                    }
+                } else {
+                    m.skip();
+                }
+            }
+            Message ids = new Message(block, idsStart, idsEnd);
+            Message lats = new Message(block, latsStart, latsEnd);
+            Message lons = new Message(block, lonsStart, lonsEnd);
+            Message tags = new Message(block, tagsStart, tagsEnd);
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (ids.hasMore()) {
+                id += ids.sint();
+                lat += lats.sint();
+                lon += lons.sint();
+                String name = null;
+                while (tags.hasMore()) {
+                    int k = (int) tags.varint();
+                    if (k == 0) {
+                        break;
+                    }
+                    int v = (int) tags.varint();
+                    if (k == nameKey) {
+                        name = string(v);
+                    }
+                }
+                addNode(id, coordinate(latOffset, lat), coordinate(lonOffset, lon), name);
+            }
+        }
+
+        private void addNode(long id, double lat, double lon, String name) {
+            int index = referenced.get(id);
+            if (index >= 0) {
+                out.addNode(index, lat, lon);
+            }
+            if (name != null) {
+                out.addName(id, lat, lon, name);
+            }
+        }
+
+        private void decodeWay(int start, int end) throws IOException {
+            boolean highway = false;
+            int keysStart = 0, keysEnd = 0, valsStart = 0, valsEnd = 0;
+            int refsStart = 0, refsEnd = 0;
+            Message m = new Message(block, start, end);
+            while (m.next()) {
+                if (m.field == 2 || m.field == 3 || m.field == 8) {
+                    m.bytes();
+                    if (m.field == 2) {
+                        keysStart = m.start;
+                        keysEnd = m.end;
+                    } else if (m.field == 3) {
+                        valsStart = m.start;
+                        valsEnd = m.end;
+                    } else {
+                        refsStart = m.start;
+                        refsEnd = m.end;
+                    }
+                } else {
+                    m.skip();
+                }
+            }
+            Message keys = new Message(block, keysStart, keysEnd);
+            Message vals = new Message(block, valsStart, valsEnd);
+            while (keys.hasMore() && vals.hasMore()) {
+                int k = (int) keys.varint();
+                int v = (int) vals.varint();
+                if (k == highwayKey && isAllowedHighway(v)) {
+                    highway = true;
+                }
+            }
+            if (!highway) {
+                return;
+            }
+            Message refs = new Message(block, refsStart, refsEnd);
+            long ref = 0;
+            while (refs.hasMore()) {
+                ref += refs.sint();
+                out.addWayRef(ref);
+            }
+            out.endWay();
+        }
+    }
+
+    /**
+     * Cursor over the fields of a protocol buffer message, or over the values of a packed
+     * repeated field, in buf[pos, end).
+     */
+    private static final class Message {
+        private final byte[] buf;
+        private int pos;
+        private final int limit;
+        /** Field number and wire type of the field last returned by next. */
+        int field;
+        private int wireType;
+        /** Range of the payload of the last length-delimited field read with bytes. */
+        int start;
+        int end;
+
+        Message(byte[] buf, int start, int end) {
+            this.buf = buf;
+            this.pos = start;
+            this.limit = end;
+        }
+
+        boolean hasMore() {
+            return pos < limit;
+        }
+
+        /** Moves to the next field, or returns false at the end of the message. */
+        boolean next() throws IOException {
+            if (pos >= limit) {
+                return false;
+            }
+            long key = varint();
+            field = (int) (key >>> 3);
+            wireType = (int) (key & 7);
+            return true;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new IOException("Truncated PBF message.");
+                }
+                byte b = buf[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed PBF varint.");
+        }
+
+        /** Reads a zigzag-encoded signed varint. */
+        long sint() throws IOException {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /** Reads a length-delimited field, setting start and end to its payload. */
+        void bytes() throws IOException {
+            if (wireType != 2) {
+                throw new IOException("Unexpected PBF wire type " + wireType);
+            }
+            int length = (int) varint();
+            if (length < 0 || length > limit - pos) {
+                throw new IOException("Truncated PBF message.");
+            }
+            start = pos;
+            end = pos + length;
+            pos = end;
+        }
+
+        String string() throws IOException {
+            bytes();
+            return new String(buf, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        /** Skips the current field. */
+        void skip() throws IOException {
+            switch (wireType) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    pos += 8;
+                    break;
+                case 2:
+                    bytes();
+                    break;
+                case 5:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IOException("Unexpected PBF wire type " + wireType);
+            }
+            if (pos > limit) {
+                throw new IOException("Truncated PBF message.");
+            }
+        }
+    }
+}
@@ -0,0 +1,552 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Scanner for the elements of an OSM XML file that the graph is built from, working directly
+ * on the bytes of the file. Numbers are parsed without creating strings, and only tag values
+ * that are kept (node names) or tested (highway types) are decoded, so scanning a block
+ * allocates almost nothing.
+ *
+ * This is not a general XML parser. It handles what OSM files contain: elements with
+ * attributes in single or double quotes, the predefined and numeric character references,
+ * comments, processing instructions and a doctype without an internal subset. Attribute
+ * values are decoded the way a conforming parser would report them.
+ */
+class OsmXmlScanner {
+    private static final byte[] NODE = ascii("node");
+    private static final byte[] WAY = ascii("way");
+    private static final byte[] RELATION = ascii("relation");
+    private static final byte[] ND = ascii("nd");
+    private static final byte[] TAG = ascii("tag");
+    private static final byte[] ID = ascii("id");
+    private static final byte[] LAT = ascii("lat");
+    private static final byte[] LON = ascii("lon");
+    private static final byte[] REF = ascii("ref");
+    private static final byte[] K = ascii("k");
+    private static final byte[] V = ascii("v");
+    private static final byte[] NAME = ascii("name");
+    private static final byte[] HIGHWAY = ascii("highway");
+    /** Powers of ten that are exact as doubles. */
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    /** Kinds of top-level element. */
+    private static final int NONE = 0, IN_NODE = 1, IN_WAY = 2;
+
+    private final byte[] buf;
+    private final int end;
+    private final OsmIngest.Pass pass;
+    private final LongIntMap referenced;
+    private final OsmIngest.Chunk out;
+    private int pos;
+
+    /* Attribute values of the current element, as [start, end) ranges of buf. */
+    private int idStart, idEnd, latStart, latEnd, lonStart, lonEnd;
+    private int refStart, refEnd, kStart, kEnd, vStart, vEnd;
+
+    /* State of the current top-level element. */
+    private int element = NONE;
+    private long nodeId;
+    private double nodeLat;
+    private double nodeLon;
+    private String nodeName;
+    private boolean highway;
+
+    private OsmXmlScanner(byte[] buf, int start, int end, OsmIngest.Pass pass,
+                          LongIntMap referenced, OsmIngest.Chunk out) {
+        this.buf = buf;
+        this.pos = start;
+        this.end = end;
+        this.pass = pass;
+        this.referenced = referenced;
+        this.out = out;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Scans buf[start, end) and adds what it contributes in the given pass to out. The range
+     * must begin and end between top-level elements.
+     */
+    static void scan(byte[] buf, int start, int end, OsmIngest.Pass pass,
+                     LongIntMap referenced, OsmIngest.Chunk out) {
+        new OsmXmlScanner(buf, start, end, pass, referenced, out).run();
+    }
+
+    private void run() {
+        while (true) {
+            int lt = indexOf((byte) '<', pos);
+            if (lt < 0) {
+                return;
+            }
+            pos = lt + 1;
+            byte c = at(pos);
+            if (c == '/') {
+                pos += 1;
+                int nameStart = pos;
+                skipName();
+                int nameEnd = pos;
+                skipPast((byte) '>');
+                if (equals(nameStart, nameEnd, NODE) || equals(nameStart, nameEnd, WAY)
+                        || equals(nameStart, nameEnd, RELATION)) {
+                    endElement();
+                }
+            } else if (c == '!') {
+                if (startsWith(pos, "!--")) {
+                    skipPast("-->");
+                } else {
+                    skipPast((byte) '>');
+                }
+            } else if (c == '?') {
+                skipPast("?>");
+            } else {
+                startElement();
+            }
+        }
+    }
+
+    private void startElement() {
+        int nameStart = pos;
+        skipName();
+        int nameEnd = pos;
+        if (equals(nameStart, nameEnd, NODE)) {
+            element = IN_NODE;
+            out.hasNodes = true;
+            nodeName = null;
+            boolean closed = attributes();
+            if (pass == OsmIngest.Pass.NODES) {
+                nodeId = parseLong(idStart, idEnd);
+                nodeLat = parseDouble(latStart, latEnd);
+                nodeLon = parseDouble(lonStart, lonEnd);
+            }
+            if (closed) {
+                endElement();
+            }
+        } else if (equals(nameStart, nameEnd, WAY)) {
+            element = IN_WAY;
+            highway = false;
+            if (attributes()) {
+                endElement();
+            }
+        } else if (equals(nameStart, nameEnd, ND)) {
+            attributes();
+            if (element == IN_WAY && pass == OsmIngest.Pass.WAYS) {
+                out.addWayRef(parseLong(refStart, refEnd));
+            }
+        } else if (equals(nameStart, nameEnd, TAG)) {
+            attributes();
+            if (element == IN_NODE && pass == OsmIngest.Pass.NODES
+                    && equals(kStart, kEnd, NAME)) {
+                nodeName = decode(vStart, vEnd);
+            } else if (element == IN_WAY && pass == OsmIngest.Pass.WAYS
+                    && equals(kStart, kEnd, HIGHWAY)) {
+                highway |= GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(
+                        decode(vStart, vEnd));
+            }
+        } else {
+            if (equals(nameStart, nameEnd, RELATION)) {
+                element = NONE;
+            }
+            attributes();
+        }
+    }
+
+    private void endElement() {
+        if (element == IN_NODE && pass == OsmIngest.Pass.NODES) {
+            int index = referenced.get(nodeId);
+            if (index >= 0) {
+                out.addNode(index, nodeLat, nodeLon);
+            }
+            if (nodeName != null) {
+                out.addName(nodeId, nodeLat, nodeLon, nodeName);
+            }
+        } else if (element == IN_WAY && pass == OsmIngest.Pass.WAYS) {
+            if (highway) {
+                out.endWay();
+            } else {
+                out.discardWay();
+            }
+        }
+        element = NONE;
+    }
+
+    /**
+     * Reads the attributes of the element whose name was just read, recording the ranges of
+     * the ones the scanner uses, and moves past the end of the start tag.
+     * @return Whether the element was empty (ended with "/>").
+     */
+    private boolean attributes() {
+        idStart = idEnd = latStart = latEnd = lonStart = lonEnd = 0;
+        refStart = refEnd = kStart = kEnd = vStart = vEnd = 0;
+        while (true) {
+            skipSpace();
+            byte c = at(pos);
+            if (c == '>') {
+                pos += 1;
+                return false;
+            }
+            if (c == '/') {
+                skipPast((byte) '>');
+                return true;
+            }
+            int nameStart = pos;
+            skipName();
+            int nameEnd = pos;
+            skipSpace();
+            if (at(pos) != '=') {
+                throw new IllegalStateException("Malformed attribute at offset " + pos);
+            }
+            pos += 1;
+            skipSpace();
+            byte quote = at(pos);
+            if (quote != '"' && quote != '\'') {
+                throw new IllegalStateException("Unquoted attribute at offset " + pos);
+            }
+            int valueStart = pos + 1;
+            int valueEnd = indexOf(quote, valueStart);
+            if (valueEnd < 0) {
+                throw new IllegalStateException("Unterminated attribute at offset " + pos);
+            }
+            pos = valueEnd + 1;
+            if (equals(nameStart, nameEnd, K)) {
+                kStart = valueStart;
+                kEnd = valueEnd;
+            } else if (equals(nameStart, nameEnd, V)) {
+                vStart = valueStart;
+                vEnd = valueEnd;
+            } else if (equals(nameStart, nameEnd, ID)) {
+                idStart = valueStart;
+                idEnd = valueEnd;
+            } else if (equals(nameStart, nameEnd, LAT)) {
+                latStart = valueStart;
+                latEnd = valueEnd;
+            } else if (equals(nameStart, nameEnd, LON)) {
+                lonStart = valueStart;
+                lonEnd = valueEnd;
+            } else if (equals(nameStart, nameEnd, REF)) {
+                refStart = valueStart;
+                refEnd = valueEnd;
+            }
+        }
+    }
+
+    private byte at(int i) {
+        if (i >= end) {
+            throw new IllegalStateException("Unexpected end of block at offset " + i);
+        }
+        return buf[i];
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void skipPast(byte b) {
+        int i = indexOf(b, pos);
+        pos = i < 0 ? end : i + 1;
+    }
+
+    private void skipPast(String s) {
+        for (int i = pos; i < end; i++) {
+            if (startsWith(i, s)) {
+                pos = i + s.length();
+                return;
+            }
+        }
+        pos = end;
+    }
+
+    private boolean startsWith(int i, String s) {
+        if (i + s.length() > end) {
+            return false;
+        }
+        for (int j = 0; j < s.length(); j++) {
+            if (buf[i + j] != s.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipName() {
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '/' || c == '>'
+                    || c == '=') {
+                return;
+            }
+            pos += 1;
+        }
+    }
+
+    private void skipSpace() {
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            pos += 1;
+        }
+    }
+
+    private boolean equals(int start, int stop, byte[] s) {
+        if (stop - start != s.length) {
+            return false;
+        }
+        for (int i = 0; i < s.length; i++) {
+            if (buf[start + i] != s[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long parseLong(int start, int stop) {
+        int i = start;
+        boolean negative = i < stop && buf[i] == '-';
+        if (negative) {
+            i += 1;
+        }
+        if (i == stop || stop - i > 18) {
+            return Long.parseLong(decode(start, stop));
+        }
+        long value = 0;
+        for (; i < stop; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                return Long.parseLong(decode(start, stop));
+            }
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal number. Plain decimals with at most 15 significant digits are
+     * computed as one exact integer divided by an exact power of ten, which IEEE arithmetic
+     * rounds correctly, so the result is the same as Double.parseDouble's.
+     */
+    private double parseDouble(int start, int stop) {
+        int i = start;
+        boolean negative = i < stop && buf[i] == '-';
+        if (negative) {
+            i += 1;
+        }
+        long mantissa = 0;
+        boolean anyDigit = false;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < stop; i++) {
+            byte c = buf[i];
+            if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    digits += 1;
+                }
+                if (decimals >= 0) {
+                    decimals += 1;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return Double.parseDouble(decode(start, stop));
+            }
+        }
+        if (!anyDigit || digits > 15 || decimals >= POW10.length) {
+            return Double.parseDouble(decode(start, stop));
+        }
+        double value = decimals > 0 ? mantissa / POW10[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Decodes an attribute value: character references are replaced, and literal tabs and
+     * line breaks become spaces, as XML attribute value normalization requires.
+     */
+    private String decode(int start, int stop) {
+        int i = start;
+        while (i < stop && buf[i] != '&' && buf[i] != '\t' && buf[i] != '\n'
+                && buf[i] != '\r') {
+            i += 1;
+        }
+        if (i == stop) {
+            return new String(buf, start, stop - start, StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(stop - start);
+        int segment = start;
+        while (i < stop) {
+            byte c = buf[i];
+            if (c == '&' || c == '\t' || c == '\n' || c == '\r') {
+                sb.append(new String(buf, segment, i - segment, StandardCharsets.UTF_8));
+                if (c == '&') {
+                    int semi = i + 1;
+                    while (semi < stop && buf[semi] != ';') {
+                        semi += 1;
+                    }
+                    appendReference(sb, new String(buf, i + 1, semi - i - 1,
+                            StandardCharsets.US_ASCII));
+                    i = semi + 1;
+                } else {
+                    sb.append(' ');
+                    i += c == '\r' && i + 1 < stop && buf[i + 1] == '\n' ? 2 : 1;
+                }
+                segment = i;
+            } else {
+                i += 1;
+            }
+        }
+        if (segment < stop) {
+            sb.append(new String(buf, segment, stop - segment, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    private static void appendReference(StringBuilder sb, String ref) {
+        switch (ref) {
+            case "amp":
+                sb.append('&');
+                return;
+            case "lt":
+                sb.append('<');
+                return;
+            case "gt":
+                sb.append('>');
+                return;
+            case "quot":
+                sb.append('"');
+                return;
+            case "apos":
+                sb.append('\'');
+                return;
+            default:
+                break;
+        }
+        try {
+            if (ref.startsWith("#x")) {
+                sb.appendCodePoint(Integer.parseInt(ref.substring(2), 16));
+                return;
+            } else if (ref.startsWith("#")) {
+                sb.appendCodePoint(Integer.parseInt(ref.substring(1)));
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            // not a character reference after all; keep it as written
+        }
+        sb.append('&').append(ref).append(';');
+    }
+
+    /**
+     * Cuts an XML input stream into blocks that start and end between top-level elements,
+     * so that each can be scanned on its own. Nodes, ways and relations never nest, so a
+     * block can end right before any of their start tags.
+     */
+    static class Blocks implements OsmIngest.BlockReader {
+        private final InputStream in;
+        private final long limit;
+        private byte[] carry = new byte[0];
+        private int carryLength;
+        private long position;
+        private boolean eof;
+
+        /**
+         * @param in The input, which is closed with the Blocks.
+         * @param limit Offset at which to stop; blocks starting at or after it are not read.
+         */
+        Blocks(InputStream in, long limit) {
+            this.in = in;
+            this.limit = limit;
+        }
+
+        @Override
+        public Callable<OsmIngest.Chunk> next(OsmIngest.Pass pass, LongIntMap referenced)
+                throws IOException {
+            if ((eof && carryLength == 0) || position >= limit) {
+                return null;
+            }
+            int capacity = Math.max(OsmIngest.BLOCK_SIZE, carryLength);
+            byte[] block = Arrays.copyOf(carry, capacity);
+            int length = carryLength;
+            int cut;
+            while (true) {
+                while (!eof && length < block.length) {
+                    int r = in.read(block, length, block.length - length);
+                    if (r < 0) {
+                        eof = true;
+                    } else {
+                        length += r;
+                    }
+                }
+                cut = eof ? length : lastElementStart(block, length);
+                if (eof || cut > 0) {
+                    break;
+                }
+                block = Arrays.copyOf(block, 2 * block.length);
+            }
+            if (cut == 0) {
+                return null;
+            }
+            carryLength = length - cut;
+            carry = Arrays.copyOfRange(block, cut, length);
+            OsmIngest.Chunk chunk = new OsmIngest.Chunk();
+            position += cut;
+            chunk.end = position;
+            byte[] data = block;
+            int dataEnd = cut;
+            return () -> {
+                scan(data, 0, dataEnd, pass, referenced, chunk);
+                return chunk;
+            };
+        }
+
+        /**
+         * Returns the offset of the last node, way or relation start tag in block, or 0 if
+         * there is none after the first byte.
+         */
+        private static int lastElementStart(byte[] block, int length) {
+            for (int i = length - 1; i > 0; i--) {
+                if (block[i] == '<' && (isStartTag(block, i, length, NODE)
+                        || isStartTag(block, i, length, WAY)
+                        || isStartTag(block, i, length, RELATION))) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        private static boolean isStartTag(byte[] block, int lt, int length, byte[] name) {
+            int after = lt + 1 + name.length;
+            if (after >= length) {
+                return false;
+            }
+            for (int j = 0; j < name.length; j++) {
+                if (block[lt + 1 + j] != name[j]) {
+                    return false;
+                }
+            }
+            byte c = block[after];
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '>' || c == '/';
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of rendered rasters, the encoded images the raster endpoint returns. Rasterer
+ * snaps every query box to tile boundaries, so different viewports often produce the same
+ * grid of tiles and the same image. A repeated grid is answered from the cache without
+ * drawing the tiles or encoding the image again.
+ *
+ * An image depends on the tiles of its grid and on the route drawn over it, so it is keyed
+ * by both: the first and last tiles of the grid, and a version number that MapServer
+ * changes whenever the route changes. The cache is bounded by the bytes of image data it
+ * holds and evicts the least recently used images to stay within the bound. All methods
+ * may be called from several request threads at once.
+ */
+class RasterCache {
+    /** A rendered raster: the image, encoded as PNG or JPEG, and its size in pixels. */
+    static final class Raster {
+        final byte[] image;
+        final int width;
+        final int height;
+
+        Raster(byte[] image, int width, int height) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final long capacity;
+    /** The cached rasters by key, least recently used first. */
+    private final LinkedHashMap<String, Raster> rasters = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity The most bytes of image data to keep.
+     */
+    RasterCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cache key of a raster.
+     * @param rasterParams The results of Rasterer.getMapRaster for the raster.
+     * @param routeVersion The version of the route drawn over the raster.
+     */
+    static String key(Map<String, Object> rasterParams, long routeVersion) {
+        String[][] grid = (String[][]) rasterParams.get("render_grid");
+        if (grid.length == 0 || grid[0].length == 0) {
+            return "@" + routeVersion;
+        }
+        return grid[0][0] + ":" + grid[grid.length - 1][grid[0].length - 1] + "@" + routeVersion;
+    }
+
+    /** Returns the cached raster for key, or null if there is none. */
+    synchronized Raster get(String key) {
+        Raster raster = rasters.get(key);
+        if (raster != null) {
+            hits += 1;
+        } else {
+            misses += 1;
+        }
+        return raster;
+    }
+
+    /** Caches a raster, evicting the least recently used ones if needed to make room. */
+    synchronized void put(String key, Raster raster) {
+        if (raster.image.length > capacity) {
+            return;
+        }
+        Raster previous = rasters.put(key, raster);
+        bytes += raster.image.length - (previous == null ? 0 : previous.image.length);
+        Iterator<Raster> it = rasters.values().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            bytes -= it.next().image.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes all rasters. Called when the route changes, since the rasters drawn with the
+     * old route can no longer be asked for.
+     */
+    synchronized void clear() {
+        rasters.clear();
+        bytes = 0;
+    }
+
+    /** Returns the number of rasters cached. */
+    synchronized int size() {
+        return rasters.size();
+    }
+
+    /** Returns the bytes of image data cached. */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /** Returns the number of get calls answered from the cache. */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /** Returns the number of get calls that found no raster. */
+    synchronized long misses() {
+        return misses;
+    }
+}
@@ -0,0 +1,324 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes rendered rasters for the raster endpoint. Encoding is the largest part of the
+ * time of an uncached raster request, and the ImageIO PNG writer offers no control over it:
+ * on Java 8 it always compresses at the highest deflate level, which for a full screen
+ * raster takes several times as long as drawing it.
+ *
+ * PNG images are written by a small encoder of our own, with a configurable deflate level.
+ * Rows are not filtered by default: map tiles are mostly areas of flat color, which deflate
+ * compresses well as they are, and for which the filters only make the output larger and
+ * slower to produce. For other imagery the filter can be chosen per row by the usual minimum
+ * sum of absolute differences heuristic. Rasters are opaque, so images are written as 8 bit
+ * RGB. JPEG images, much smaller but lossy, are written with ImageIO at a configurable
+ * quality.
+ *
+ * An encoder may be used by several threads at once. The buffers and Deflater needed for
+ * each image are kept in a small pool and reused.
+ */
+class RasterEncoder {
+    /** The image formats an encoder can write. */
+    enum Format {
+        PNG("image/png"), JPEG("image/jpeg");
+
+        final String mimeType;
+
+        Format(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        static Format parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a,
+        '\n'};
+    /** Bytes of compressed data per IDAT chunk. */
+    private static final int IDAT_SIZE = 1 << 15;
+    /** Most sets of buffers kept for reuse. */
+    private static final int POOL_SIZE = 8;
+
+    private final Format format;
+    private final int deflateLevel;
+    private final boolean filterRows;
+    private final float jpegQuality;
+    private final ArrayBlockingQueue<Buffers> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * @param format The format of the images.
+     * @param deflateLevel The deflate level of PNG images, from 0 (none) to 9 (smallest).
+     * @param filterRows Whether to choose a PNG filter for each row, rather than none.
+     * @param jpegQuality The quality of JPEG images, from 0 to 1.
+     */
+    RasterEncoder(Format format, int deflateLevel, boolean filterRows, float jpegQuality) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("Bad deflate level " + deflateLevel);
+        }
+        this.format = format;
+        this.deflateLevel = deflateLevel;
+        this.filterRows = filterRows;
+        this.jpegQuality = jpegQuality;
+    }
+
+    /** Returns the MIME type of the images this encoder writes. */
+    String mimeType() {
+        return format.mimeType;
+    }
+
+    /**
+     * The reusable state of an encoding: an output buffer, the current and previous row and
+     * the filtered candidates for a row, and a Deflater.
+     */
+    static final class Buffers {
+        /** Output buffer, kept so that it does not have to grow again for every image. */
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        final Deflater deflater;
+        final byte[] idat = new byte[IDAT_SIZE];
+        int[] pixels = new int[0];
+        byte[] row = new byte[0];
+        byte[] previous = new byte[0];
+        /** Filter type byte plus filtered row, one per PNG filter type. */
+        byte[][] filtered = new byte[5][0];
+
+        Buffers(int deflateLevel) {
+            deflater = new Deflater(deflateLevel);
+        }
+
+        void ensureWidth(int width) {
+            int length = 3 * width;
+            if (row.length < length) {
+                pixels = new int[width];
+                row = new byte[length];
+                previous = new byte[length];
+                for (int f = 0; f < filtered.length; f++) {
+                    filtered[f] = new byte[length + 1];
+                    filtered[f][0] = (byte) f;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a set of buffers from the pool, or makes one if the pool is empty. The output
+     * buffer is empty. Return it with release when done with its contents.
+     */
+    Buffers acquire() {
+        Buffers buffers = pool.poll();
+        if (buffers == null) {
+            buffers = new Buffers(deflateLevel);
+        }
+        buffers.out.reset();
+        return buffers;
+    }
+
+    /** Returns buffers to the pool, or frees them if the pool is full. */
+    void release(Buffers buffers) {
+        if (!pool.offer(buffers)) {
+            buffers.deflater.end();
+        }
+    }
+
+    /**
+     * Encodes an image into the output buffer of buffers.
+     * @param image The image, which is encoded as opaque.
+     * @param buffers Buffers from acquire.
+     */
+    void encode(BufferedImage image, Buffers buffers) throws IOException {
+        if (format == Format.JPEG) {
+            writeJpeg(image, buffers.out);
+        } else {
+            writePng(image, buffers);
+        }
+    }
+
+    /** Returns the image encoded in a new array. */
+    byte[] encode(BufferedImage image) throws IOException {
+        Buffers buffers = acquire();
+        try {
+            encode(image, buffers);
+            return buffers.out.toByteArray();
+        } finally {
+            release(buffers);
+        }
+    }
+
+    private void writeJpeg(BufferedImage image, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG writer available.");
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private void writePng(BufferedImage image, Buffers b) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        b.ensureWidth(width);
+        ByteArrayOutputStream out = b.out;
+        out.write(PNG_SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = 2;
+        writeChunk(out, "IHDR", header, header.length);
+
+        Deflater deflater = b.deflater;
+        deflater.reset();
+        int length = 3 * width;
+        Arrays.fill(b.previous, 0, length, (byte) 0);
+        boolean intPixels = image.getType() == BufferedImage.TYPE_INT_RGB
+                || image.getType() == BufferedImage.TYPE_INT_ARGB;
+        for (int y = 0; y < height; y++) {
+            if (intPixels) {
+                image.getRaster().getDataElements(0, y, width, 1, b.pixels);
+            } else {
+                image.getRGB(0, y, width, 1, b.pixels, 0, width);
+            }
+            /* Unfiltered rows are built in place behind their filter type byte. */
+            byte[] row = filterRows ? b.row : b.filtered[0];
+            int offset = filterRows ? 0 : 1;
+            for (int x = 0, i = offset; x < width; x++, i += 3) {
+                int p = b.pixels[x];
+                row[i] = (byte) (p >> 16);
+                row[i + 1] = (byte) (p >> 8);
+                row[i + 2] = (byte) p;
+            }
+            byte[] filtered = row;
+            if (filterRows) {
+                filtered = filterRow(row, b.previous, length, b.filtered);
+                b.row = b.previous;
+                b.previous = row;
+            }
+            deflater.setInput(filtered, 0, length + 1);
+            while (!deflater.needsInput()) {
+                deflate(deflater, b.idat, out);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate(deflater, b.idat, out);
+        }
+        writeChunk(out, "IEND", b.idat, 0);
+    }
+
+    /** Runs the deflater once, and writes an IDAT chunk of whatever it produced. */
+    private static void deflate(Deflater deflater, byte[] idat, ByteArrayOutputStream out) {
+        int n = deflater.deflate(idat, 0, idat.length);
+        if (n > 0) {
+            writeChunk(out, "IDAT", idat, n);
+        }
+    }
+
+    /**
+     * Applies each of the five PNG filters to a row, and returns the filtered row with the
+     * smallest sum of absolute values, the one that usually compresses best.
+     */
+    private static byte[] filterRow(byte[] row, byte[] up, int length, byte[][] candidates) {
+        byte[] none = candidates[0];
+        byte[] sub = candidates[1];
+        byte[] upF = candidates[2];
+        byte[] avg = candidates[3];
+        byte[] paeth = candidates[4];
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAvg = 0, sumPaeth = 0;
+        for (int i = 0; i < length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= 3 ? row[i - 3] & 0xff : 0;
+            int b = up[i] & 0xff;
+            int c = i >= 3 ? up[i - 3] & 0xff : 0;
+            byte fNone = (byte) x;
+            byte fSub = (byte) (x - a);
+            byte fUp = (byte) (x - b);
+            byte fAvg = (byte) (x - ((a + b) >> 1));
+            byte fPaeth = (byte) (x - paethPredictor(a, b, c));
+            none[i + 1] = fNone;
+            sub[i + 1] = fSub;
+            upF[i + 1] = fUp;
+            avg[i + 1] = fAvg;
+            paeth[i + 1] = fPaeth;
+            sumNone += Math.abs(fNone);
+            sumSub += Math.abs(fSub);
+            sumUp += Math.abs(fUp);
+            sumAvg += Math.abs(fAvg);
+            sumPaeth += Math.abs(fPaeth);
+        }
+        byte[] best = none;
+        long bestSum = sumNone;
+        if (sumSub < bestSum) {
+            best = sub;
+            bestSum = sumSub;
+        }
+        if (sumUp < bestSum) {
+            best = upF;
+            bestSum = sumUp;
+        }
+        if (sumAvg < bestSum) {
+            best = avg;
+            bestSum = sumAvg;
+        }
+        if (sumPaeth < bestSum) {
+            best = paeth;
+        }
+        return best;
+    }
+
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data,
+                                   int length) {
+        byte[] typeBytes = {(byte) type.charAt(0), (byte) type.charAt(1), (byte) type.charAt(2),
+            (byte) type.charAt(3)};
+        byte[] lengthBytes = new byte[4];
+        putInt(lengthBytes, 0, length);
+        out.write(lengthBytes, 0, 4);
+        out.write(typeBytes, 0, 4);
+        out.write(data, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes, 0, 4);
+        crc.update(data, 0, length);
+        byte[] crcBytes = new byte[4];
+        putInt(crcBytes, 0, (int) crc.getValue());
+        out.write(crcBytes, 0, 4);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
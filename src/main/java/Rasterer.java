@@ -10,9 +10,28 @@ import java.util.ArrayList;
  */
 public class Rasterer {
     private MapServer mapserver;
+    /** The deepest depth getGrid answers with. */
+    private final int maxDepth;
+    /** Makes the tiles deeper than MAX_DEPTH, or null if there are none. */
+    private final TileGenerator generator;
 
     public Rasterer() {
+        this(MAX_DEPTH, null);
+    }
+
+    /**
+     * @param maxDepth The deepest depth to answer queries with.
+     * @param generator Generates the tiles deeper than MAX_DEPTH, or null if maxDepth is at
+     *                  most MAX_DEPTH.
+     */
+    Rasterer(int maxDepth, TileGenerator generator) {
+        if (maxDepth < MAX_DEPTH || maxDepth > TileStore.MAX_DEPTH
+                || (maxDepth > MAX_DEPTH && generator == null)) {
+            throw new IllegalArgumentException("Bad maximum depth " + maxDepth);
+        }
         mapserver = new MapServer();
+        this.maxDepth = maxDepth;
+        this.generator = generator;
     }
 
     /**
@@ -44,6 +63,174 @@ public class Rasterer {
      *                    forget to set this to true on success! <br>
      */
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
+        return getGrid(params).toMap();
+    }
+
+    /** The deepest depth of the tiles that come with the map. */
+    static final int MAX_DEPTH = 7;
+
+    /**
+     * The result of a raster query: a rectangle of tiles of one depth and the bounds it
+     * covers. Tile file names are only built when asked for.
+     */
+    static final class Grid {
+        final int depth;
+        /** The column and row of the upper left tile. */
+        final int x0, y0;
+        /** The number of columns and rows of tiles, after clipping to the map. */
+        final int cols, rows;
+        final double ulLon, ulLat, lrLon, lrLat;
+        final boolean querySuccess;
+
+        Grid(int depth, int x0, int y0, int cols, int rows, double ulLon, double ulLat,
+             double lrLon, double lrLat, boolean querySuccess) {
+            this.depth = depth;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.cols = cols;
+            this.rows = rows;
+            this.ulLon = ulLon;
+            this.ulLat = ulLat;
+            this.lrLon = lrLon;
+            this.lrLat = lrLat;
+            this.querySuccess = querySuccess;
+        }
+
+        /** Returns the file name of the tile in row r and column c of the grid. */
+        String tileName(int r, int c) {
+            return "d" + depth + "_x" + (x0 + c) + "_y" + (y0 + r) + ".png";
+        }
+
+        /** Returns the file names of the tiles, by row. */
+        String[][] renderGrid() {
+            String[][] grid = new String[rows][cols];
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    grid[r][c] = tileName(r, c);
+                }
+            }
+            return grid;
+        }
+
+        /** Returns the results as getMapRaster gives them. */
+        Map<String, Object> toMap() {
+            Map<String, Object> results = new HashMap<>();
+            results.put("query_success", querySuccess);
+            results.put("depth", depth);
+            results.put("raster_lr_lon", lrLon);
+            results.put("raster_lr_lat", lrLat);
+            results.put("raster_ul_lat", ulLat);
+            results.put("raster_ul_lon", ulLon);
+            results.put("render_grid", renderGrid());
+            return results;
+        }
+    }
+
+    /**
+     * Answers a query as getMapRaster does, without building the file names. The depth and
+     * the first tile are found in closed form and the number of tiles from one division,
+     * where getMapRasterByLoops steps through the depths and counts tiles one at a time.
+     * The floating point expressions whose comparisons decide the result are the same, so
+     * both give the same result for every query, valid or not.
+     *
+     * Queries that call for a depth deeper than MAX_DEPTH are answered at the deepest depth
+     * whose tiles are all ready, and the tiles of the depth called for are queued to be
+     * generated, so that the query is never kept waiting for them.
+     * @param params The query box and the viewport width, as for getMapRaster.
+     */
+    public Grid getGrid(Map<String, Double> params) {
+        double lrlon = params.get("lrlon");
+        double ullon = params.get("ullon");
+        double w = params.get("w");
+        double ullat = params.get("ullat");
+        double lrlat = params.get("lrlat");
+        boolean querySuccess = !checkquery(ullat, lrlat, lrlon, ullon);
+        int depth = depthFor(londpp(lrlon, ullon, w), maxDepth);
+        Grid grid = gridAt(depth, ullon, ullat, lrlon, lrlat, querySuccess);
+        if (depth > MAX_DEPTH && querySuccess && !generator.isReady(grid)) {
+            generator.generate(grid);
+            do {
+                depth -= 1;
+                grid = gridAt(depth, ullon, ullat, lrlon, lrlat, querySuccess);
+            } while (depth > MAX_DEPTH && !generator.isReady(grid));
+        }
+        return grid;
+    }
+
+    /** Returns the grid of the tiles of a depth that cover the query box. */
+    private static Grid gridAt(int depth, double ullon, double ullat, double lrlon,
+                               double lrlat, boolean querySuccess) {
+        int side = 1 << depth;
+        double tileWidth = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / side;
+        double tileHeight = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / side;
+        double right = Math.floor(Math.abs((MapServer.ROOT_ULLON - ullon) / tileWidth));
+        double down = Math.floor(Math.abs((MapServer.ROOT_ULLAT - ullat) / tileHeight));
+        double ulLon = MapServer.ROOT_ULLON + right * tileWidth;
+        double ulLat = MapServer.ROOT_ULLAT - down * tileHeight;
+        int cols = span(ulLon, tileWidth, lrlon, (int) (Math.abs(lrlon - ullon) / tileWidth));
+        /* ulLat - tileHeight * n > lrlat exactly when -ulLat + tileHeight * n < -lrlat. */
+        int rows = span(-ulLat, tileHeight, -lrlat,
+                (int) (Math.abs(ullat - lrlat) / tileHeight));
+        int x0 = (int) right;
+        int y0 = (int) down;
+        return new Grid(depth, x0, y0, clip(x0, cols, side), clip(y0, rows, side), ulLon,
+                ulLat, ulLon + tileWidth * cols, ulLat - tileHeight * rows, querySuccess);
+    }
+
+    /**
+     * Returns the depth finddepth gives for lonDPP, when maxDepth is MAX_DEPTH: the
+     * shallowest depth whose longitudinal distance per pixel is at most lonDPP, or maxDepth
+     * if there is none. Halving the
+     * distance per pixel at each depth is exact, so the depth is the difference of the
+     * binary exponents, or one more if the mantissa of the root's is the larger.
+     */
+    static int depthFor(double lonDPP, int maxDepth) {
+        double rootDPP = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / MapServer.TILE_SIZE;
+        if (!(rootDPP > lonDPP)) {
+            return 0;
+        }
+        if (!(lonDPP > 0)) {
+            return maxDepth;
+        }
+        int depth = Math.getExponent(rootDPP) - Math.getExponent(lonDPP);
+        if (depth >= maxDepth) {
+            return maxDepth;
+        }
+        return rootDPP / (1 << depth) <= lonDPP ? depth : depth + 1;
+    }
+
+    /**
+     * Returns the least n of at least min for which start + size * n is not less than end,
+     * the count the loops of getMapRasterByLoops arrive at. The count is guessed with one
+     * division, then corrected for rounding with the loops' own comparison.
+     */
+    private static int span(double start, double size, double end, int min) {
+        int n = min;
+        double guess = Math.ceil((end - start) / size);
+        if (guess > min && guess < Integer.MAX_VALUE) {
+            n = (int) guess;
+            while (n > min && !(start + size * (n - 1) < end)) {
+                n -= 1;
+            }
+        }
+        while (start + size * n < end) {
+            n += 1;
+        }
+        return n;
+    }
+
+    /** Returns the number of the count tiles from first on that are inside a side of tiles. */
+    private static int clip(int first, int count, int side) {
+        /* The loops compare against first + count as an int, overflow included. */
+        long end = Math.min(first + count, side);
+        return (int) Math.max(0, end - first);
+    }
+
+    /**
+     * The original getMapRaster, which finds the depth and the number of tiles by stepping
+     * through them. Kept to check and benchmark getGrid against.
+     */
+    Map<String, Object> getMapRasterByLoops(Map<String, Double> params) {
         Map<String, Object> results = new HashMap<>();
         boolean querysuccess = true;
         double lrlon = params.get("lrlon");
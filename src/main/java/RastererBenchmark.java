@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class provides a main method for measuring the cost of answering a raster query: the
+ * original getMapRasterByLoops, getMapRaster, which builds the same result map from a
+ * Rasterer.Grid, and getGrid alone, which leaves out the file names. Queries are random
+ * viewports inside the map, as wide as the front end's at random zoom levels.
+ *
+ * Each method is run over the whole query set for several rounds after a warm-up, and the
+ * median time per call over the rounds is printed. Every result feeds a checksum, so the
+ * JIT cannot drop the calls.
+ *
+ * Usage: java RastererBenchmark [queries] [rounds]
+ */
+public class RastererBenchmark {
+    private static final int QUERIES = 10000;
+    private static final int ROUNDS = 21;
+    /** Rounds of the whole query set made before timing, so the JIT has compiled the code. */
+    private static final int WARMUP_ROUNDS = 20;
+    private static final double VIEWPORT_WIDTH = 1000;
+    private static final double VIEWPORT_HEIGHT = 700;
+
+    private interface Method {
+        long run(Rasterer rasterer, Map<String, Double> params);
+    }
+
+    public static void main(String[] args) {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : QUERIES;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : ROUNDS;
+        List<Map<String, Double>> params = randomQueries(queries, new Random(42));
+        Rasterer rasterer = new Rasterer();
+
+        String[] names = {"loops", "getMapRaster", "getGrid"};
+        Method[] methods = {
+            (r, p) -> checksum(r.getMapRasterByLoops(p)),
+            (r, p) -> checksum(r.getMapRaster(p)),
+            (r, p) -> {
+                Rasterer.Grid g = r.getGrid(p);
+                return g.depth + g.x0 + g.cols + g.y0 + g.rows
+                        + Double.doubleToLongBits(g.lrLon + g.lrLat);
+            }
+        };
+        System.out.printf("%-14s %12s %20s%n", "method", "ns per call", "checksum");
+        for (int m = 0; m < methods.length; m++) {
+            long sum = 0;
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                sum += runAll(rasterer, methods[m], params);
+            }
+            double[] nanos = new double[rounds];
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                sum += runAll(rasterer, methods[m], params);
+                nanos[i] = (double) (System.nanoTime() - start) / params.size();
+            }
+            Arrays.sort(nanos);
+            System.out.printf("%-14s %12.1f %20x%n", names[m], nanos[rounds / 2], sum);
+        }
+    }
+
+    private static long runAll(Rasterer rasterer, Method method,
+                               List<Map<String, Double>> params) {
+        long sum = 0;
+        for (Map<String, Double> p : params) {
+            sum += method.run(rasterer, p);
+        }
+        return sum;
+    }
+
+    private static long checksum(Map<String, Object> results) {
+        String[][] grid = (String[][]) results.get("render_grid");
+        long sum = (int) results.get("depth") + grid.length;
+        for (String[] row : grid) {
+            for (String name : row) {
+                sum += name.length();
+            }
+        }
+        return sum + Double.doubleToLongBits((double) results.get("raster_lr_lon")
+                + (double) results.get("raster_lr_lat"));
+    }
+
+    /** Returns viewports of the front end's size at random places and zoom levels. */
+    private static List<Map<String, Double>> randomQueries(int count, Random random) {
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        List<Map<String, Double>> queries = new ArrayList<>(count);
+        while (queries.size() < count) {
+            double scale = Math.pow(2, -random.nextDouble() * (Rasterer.MAX_DEPTH + 1));
+            double queryWidth = width * scale;
+            double queryHeight = queryWidth * VIEWPORT_HEIGHT / VIEWPORT_WIDTH * height / width;
+            if (queryHeight > height) {
+                continue;
+            }
+            double ullon = MapServer.ROOT_ULLON + random.nextDouble() * (width - queryWidth);
+            double ullat = MapServer.ROOT_ULLAT - random.nextDouble() * (height - queryHeight);
+            Map<String, Double> params = new HashMap<>();
+            params.put("ullon", ullon);
+            params.put("ullat", ullat);
+            params.put("lrlon", ullon + queryWidth);
+            params.put("lrlat", ullat - queryHeight);
+            params.put("w", VIEWPORT_WIDTH);
+            params.put("h", VIEWPORT_HEIGHT);
+            queries.add(params);
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,138 @@
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.util.List;
+
+/**
+ * The current route, projected once for drawing over rasters. Looking up the position of
+ * every route vertex in the graph for every raster request costs two index lookups per
+ * vertex, and most of the route is usually outside the raster being drawn.
+ *
+ * The vertices are kept in a float array in root tile units: x runs from 0 at ROOT_ULLON to
+ * 1 at ROOT_LRLON, y from 0 at ROOT_ULLAT to 1 at ROOT_LRLAT. A float holds these to within
+ * a few thousandths of a pixel at the deepest depth. Drawing skips every segment whose two
+ * ends are beyond the same edge of the raster, widened by the stroke width, and the whole
+ * route if its bounding box is outside the raster.
+ *
+ * Overlays are immutable, so request threads can draw the same one at once.
+ */
+class RouteOverlay {
+    /** The overlay of the empty route. */
+    static final RouteOverlay EMPTY = new RouteOverlay(new float[0]);
+
+    private static final int LEFT = 1, RIGHT = 2, ABOVE = 4, BELOW = 8;
+
+    /** The x and y of each vertex in turn. */
+    private final float[] points;
+    private final float minX, minY, maxX, maxY;
+
+    private RouteOverlay(float[] points) {
+        this.points = points;
+        float x0 = Float.POSITIVE_INFINITY, y0 = Float.POSITIVE_INFINITY;
+        float x1 = Float.NEGATIVE_INFINITY, y1 = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < points.length; i += 2) {
+            x0 = Math.min(x0, points[i]);
+            x1 = Math.max(x1, points[i]);
+            y0 = Math.min(y0, points[i + 1]);
+            y1 = Math.max(y1, points[i + 1]);
+        }
+        minX = x0;
+        minY = y0;
+        maxX = x1;
+        maxY = y1;
+    }
+
+    /**
+     * Projects a route.
+     * @param g The graph of the route.
+     * @param route The ids of the vertices of the route, in order.
+     */
+    static RouteOverlay of(GraphDB g, List<Long> route) {
+        if (route == null || route.isEmpty()) {
+            return EMPTY;
+        }
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        float[] points = new float[2 * route.size()];
+        int i = 0;
+        for (long v : route) {
+            int index = g.indexOf(v);
+            points[i++] = (float) ((g.lonAt(index) - MapServer.ROOT_ULLON) / width);
+            points[i++] = (float) ((MapServer.ROOT_ULLAT - g.latAt(index)) / height);
+        }
+        return new RouteOverlay(points);
+    }
+
+    /** Returns the number of vertices of the route. */
+    int size() {
+        return points.length / 2;
+    }
+
+    /**
+     * Draws the route over a raster with the route stroke.
+     * @param g2d The graphics of the raster image.
+     * @param ullon The longitude of the left edge of the raster.
+     * @param ullat The latitude of the top edge of the raster.
+     * @param lrlon The longitude of the right edge of the raster.
+     * @param lrlat The latitude of the bottom edge of the raster.
+     * @param width The width of the raster image in pixels.
+     * @param height The height of the raster image in pixels.
+     * @return The number of segments drawn.
+     */
+    int draw(Graphics2D g2d, double ullon, double ullat, double lrlon, double lrlat,
+             int width, int height) {
+        if (points.length < 4) {
+            return 0;
+        }
+        double rootWidth = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double rootHeight = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        double left = (ullon - MapServer.ROOT_ULLON) / rootWidth;
+        double top = (MapServer.ROOT_ULLAT - ullat) / rootHeight;
+        double scaleX = width / ((lrlon - MapServer.ROOT_ULLON) / rootWidth - left);
+        double scaleY = height / ((MapServer.ROOT_ULLAT - lrlat) / rootHeight - top);
+        /* Segments within a stroke width of the raster can still reach into it. */
+        double marginX = MapServer.ROUTE_STROKE_WIDTH_PX / scaleX;
+        double marginY = MapServer.ROUTE_STROKE_WIDTH_PX / scaleY;
+        double x0 = left - marginX;
+        double y0 = top - marginY;
+        double x1 = left + width / scaleX + marginX;
+        double y1 = top + height / scaleY + marginY;
+        if (maxX < x0 || minX > x1 || maxY < y0 || minY > y1) {
+            return 0;
+        }
+
+        g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
+        g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        int drawn = 0;
+        int previous = outcode(points[0], points[1], x0, y0, x1, y1);
+        for (int i = 2; i < points.length; i += 2) {
+            int code = outcode(points[i], points[i + 1], x0, y0, x1, y1);
+            if ((previous & code) == 0) {
+                g2d.drawLine((int) ((points[i - 2] - left) * scaleX),
+                             (int) ((points[i - 1] - top) * scaleY),
+                             (int) ((points[i] - left) * scaleX),
+                             (int) ((points[i + 1] - top) * scaleY));
+                drawn += 1;
+            }
+            previous = code;
+        }
+        return drawn;
+    }
+
+    /** Returns the edges of the box that the point (x, y) is beyond, as a bit set. */
+    private static int outcode(double x, double y, double x0, double y0, double x1,
+                               double y1) {
+        int code = 0;
+        if (x < x0) {
+            code |= LEFT;
+        } else if (x > x1) {
+            code |= RIGHT;
+        }
+        if (y < y0) {
+            code |= ABOVE;
+        } else if (y > y1) {
+            code |= BELOW;
+        }
+        return code;
+    }
+}
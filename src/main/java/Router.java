@@ -4,10 +4,7 @@ import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.ArrayList;
-import java.util.PriorityQueue;
-import java.util.HashMap;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * This class provides a shortestPath method for finding routes between two points
@@ -18,6 +15,70 @@ import java.util.Comparator;
  * down to the priority you use to order your vertices.
  */
 public class Router {
+    /**
+     * Most pairs of search spaces kept for reuse. No more searches than processors make
+     * progress at once, so a larger pool would only hold more arrays the size of the graph.
+     */
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    /**
+     * Search state reused by shortest path queries, a forward and a backward space each. A
+     * query takes a pair and gives it back when done, so the spaces are not tied to the
+     * threads of the server, which may be many more than the queries that run at once.
+     */
+    private static final ArrayBlockingQueue<SearchSpace[]> POOL =
+            new ArrayBlockingQueue<>(POOL_SIZE);
+    /** Number of vertices settled by the last search on each thread; an int per thread. */
+    private static final ThreadLocal<int[]> LAST_SETTLED =
+            ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * The search algorithms shortestPath can use. All of them return a shortest path;
+     * they differ only in how much of the graph they explore to find it.
+     */
+    public enum SearchMode {
+        /** A* from the start towards the destination. */
+        ASTAR,
+        /** A* from both ends at once, with the two searches meeting in the middle. */
+        BIDIRECTIONAL,
+        /**
+         * Query of the graph's contraction hierarchy. Falls back to ASTAR if no hierarchy
+         * has been attached to the graph.
+         */
+        CH,
+        /**
+         * A* with the ALT heuristic, a lower bound from the graph's precomputed landmark
+         * distances. Falls back to ASTAR if no landmarks have been attached to the graph.
+         */
+        ALT;
+
+        /**
+         * Parses the mode parameter of a route request, ignoring case.
+         * @param s The parameter value.
+         * @return The named mode.
+         * @throws IllegalArgumentException If s is not the name of a mode.
+         */
+        public static SearchMode parse(String s) {
+            for (SearchMode m : values()) {
+                if (m.name().equalsIgnoreCase(s.trim())) {
+                    return m;
+                }
+            }
+            throw new IllegalArgumentException("Unknown search mode: " + s);
+        }
+
+        /**
+         * Returns the mode a search in this mode runs as on g: ASTAR for CH and ALT when
+         * the graph has no hierarchy or landmarks attached, and this mode otherwise.
+         */
+        public SearchMode on(GraphDB g) {
+            if (this == CH && g.contractionHierarchy() == null
+                    || this == ALT && g.landmarks() == null) {
+                return ASTAR;
+            }
+            return this;
+        }
+    }
+
     /**
      * Return a List of longs representing the shortest path from the node
      * closest to a start location and the node closest to the destination
@@ -27,74 +88,215 @@ public class Router {
      * @param stlat The latitude of the start location.
      * @param destlon The longitude of the destination location.
      * @param destlat The latitude of the destination location.
-     * @return A list of node id's in the order visited on the shortest path.
+     * @return A list of node id's in the order visited on the shortest path, or an empty
+     * list if the destination cannot be reached.
      */
-    private static class Compare implements Comparator<Long> {
-        private GraphDB graph;
-        private HashMap<Long, Double> best;
-        private Long goal;
-
-        private Compare(GraphDB g, HashMap<Long, Double>  bst, Long gl) {
-            graph = g;
-            best = bst;
-            goal = gl;
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, SearchMode.ASTAR);
+    }
+
+    /**
+     * Same as shortestPath above, using the given search algorithm.
+     * @param mode The search algorithm to use.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, SearchMode mode) {
+        int source = g.indexOf(g.closest(stlon, stlat));
+        int goal = g.indexOf(g.closest(destlon, destlat));
+        if (source < 0 || goal < 0) {
+            return new ArrayList<>();
+        }
+        SearchSpace[] spaces = acquire();
+        try {
+            return shortestPath(g, source, goal, mode, spaces[0], spaces[1]);
+        } finally {
+            release(spaces);
+        }
+    }
+
+    /** Runs a search from source to goal with the spaces given. */
+    private static List<Long> shortestPath(GraphDB g, int source, int goal, SearchMode mode,
+                                           SearchSpace space, SearchSpace backward) {
+        mode = mode.on(g);
+        if (mode == SearchMode.CH) {
+            List<Long> path = g.contractionHierarchy().shortestPath(g, source, goal, space,
+                    backward);
+            LAST_SETTLED.get()[0] = space.numSettled() + backward.numSettled();
+            return path;
         }
+        if (mode == SearchMode.BIDIRECTIONAL) {
+            int meet = bidirectionalAStar(g, source, goal, space, backward);
+            LAST_SETTLED.get()[0] = space.numSettled() + backward.numSettled();
+            if (meet < 0) {
+                return new ArrayList<>();
+            }
+            List<Long> path = space.pathTo(g, meet);
+            for (int v = backward.prev(meet); v >= 0; v = backward.prev(v)) {
+                path.add(g.idAt(v));
+            }
+            return path;
+        }
+        Landmarks lm = mode == SearchMode.ALT ? g.landmarks() : null;
+        boolean found = aStar(g, source, goal, space, lm);
+        LAST_SETTLED.get()[0] = space.numSettled();
+        return found ? space.pathTo(g, goal) : new ArrayList<>();
+    }
 
-        public int compare(Long n1, Long n2) {
-            double n1priority = best.get(n1) + graph.distance(n1, goal);
-            double n2priority = best.get(n2) + graph.distance(n2, goal);
-            return Double.compare(n1priority, n2priority);
+    /**
+     * Takes a forward and a backward search space from the pool, or makes a pair if the pool
+     * is empty. Return them with release when the search is done.
+     */
+    private static SearchSpace[] acquire() {
+        SearchSpace[] spaces = POOL.poll();
+        if (spaces == null) {
+            spaces = new SearchSpace[] {new SearchSpace(), new SearchSpace()};
         }
+        return spaces;
+    }
 
+    /** Returns search spaces to the pool, or drops them if the pool is full. */
+    private static void release(SearchSpace[] spaces) {
+        POOL.offer(spaces);
     }
 
+    /**
+     * Returns the number of vertices settled by the most recent shortestPath call made on
+     * the calling thread, for comparing how much work the search modes do.
+     */
+    static int lastSettledCount() {
+        return LAST_SETTLED.get()[0];
+    }
 
-    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
-                                          double destlon, double destlat) {
+    /**
+     * Runs A* from source to goal. The heuristic is the great-circle distance to goal, or,
+     * if landmarks are given, the larger of that and the landmark lower bound. The
+     * heuristic of a vertex is computed once, when the vertex is first reached, and stored
+     * as its potential; since it is consistent, a settled vertex is never reopened.
+     * @param g The graph to search.
+     * @param source Index of the start vertex.
+     * @param goal Index of the destination vertex.
+     * @param space Scratch state; on success it holds the predecessors of the path.
+     * @param lm Landmark distances for the ALT heuristic, or null.
+     * @return Whether goal was reached.
+     */
+    static boolean aStar(GraphDB g, int source, int goal, SearchSpace space, Landmarks lm) {
+        space.reset(g.numVertices());
+        IndexedMinHeap heap = space.heap;
+        double goalLon = g.lonAt(goal);
+        double goalLat = g.latAt(goal);
+        int[] active = lm == null ? null : lm.active(source, goal);
 
-        HashMap<Long, Double> best = new HashMap<>();
-        HashMap<Long, Long> prev = new HashMap<>();
-        Long source = g.closest(stlon, stlat);
-        best.put(source, 0.0);
-        Long goal = g.closest(destlon, destlat);
-        PriorityQueue<Long> heap = new PriorityQueue<>(new Compare(g, best, goal));
-        //heap.add(new SearchNode(source, 0.0, null, 0, 0, g.distance(source, goal)));
-        heap.add(source);
-
-        //SearchNode vertex = heap.peek();
-        Long vertex = heap.peek();
+        space.reach(source, 0.0, -1, heuristic(g, source, goal, goalLon, goalLat, lm, active));
+        heap.push(source, space.potential(source));
         while (!heap.isEmpty()) {
-            vertex = heap.remove();
-            if (vertex.equals(goal)) {
-                break;
+            int v = heap.poll();
+            if (v == goal) {
+                return true;
             }
-            for (long edge: g.adjacent(vertex)) {
-                double stov = best.get(vertex);
-                double vtoedge = g.distance(vertex, edge);
-                double edtogoal = g.distance(edge, goal);
-                if (!best.containsKey(edge) || (stov + vtoedge) < best.get(edge)) {
-                    best.put(edge, stov + vtoedge);
-                    //heap.add(new SearchNode(edge, s_to_v + v_to_edge,
-                    // vertex, s_to_v, v_to_edge, ed_to_goal));
-                    heap.add(edge);
-                    prev.put(edge, vertex);
+            space.settle(v);
+            double stov = space.dist(v);
+            for (int e = g.edgeStart(v), end = g.edgeEnd(v); e < end; e++) {
+                int w = g.edgeTarget(e);
+                if (space.isSettled(w)) {
+                    continue;
+                }
+                double d = stov + g.edgeWeight(e);
+                if (!space.isReached(w)) {
+                    space.reach(w, d, v, heuristic(g, w, goal, goalLon, goalLat, lm, active));
+                } else if (d < space.dist(w)) {
+                    space.improve(w, d, v);
+                } else {
+                    continue;
                 }
+                heap.push(w, d + space.potential(w));
             }
         }
+        return false;
+    }
 
-        if (!vertex.equals(goal)) {
-            return null;
-        }
+    /** Returns the A* heuristic of vertex v; see aStar. */
+    private static double heuristic(GraphDB g, int v, int goal, double goalLon, double goalLat,
+                                    Landmarks lm, int[] active) {
+        double h = GraphDB.distance(g.lonAt(v), g.latAt(v), goalLon, goalLat);
+        return lm == null ? h : Math.max(h, lm.lowerBound(v, goal, active));
+    }
 
-        List<Long> lst = new ArrayList<>();
-        while (vertex != null) {
-            lst.add(vertex);
-            vertex = prev.get(vertex);
-        }
+    /**
+     * Runs bidirectional A* between source and goal. Both searches use the average
+     * potential p(v) = (dist(v, goal) - dist(source, v)) / 2, forwards as p and backwards
+     * as -p. Together they are consistent, which makes the pair behave like bidirectional
+     * Dijkstra on a graph with non-negative reduced edge lengths, so the search can stop as
+     * soon as the two smallest keys add up to at least the best path seen so far.
+     * @param g The graph to search.
+     * @param source Index of the start vertex.
+     * @param goal Index of the destination vertex.
+     * @param forward Scratch state for the search from source.
+     * @param backward Scratch state for the search from goal.
+     * @return The index of a vertex on a shortest path where the two searches meet, or -1
+     * if goal is unreachable. The path is the forward predecessors of that vertex followed
+     * by its backward predecessors.
+     */
+    static int bidirectionalAStar(GraphDB g, int source, int goal,
+                                  SearchSpace forward, SearchSpace backward) {
+        forward.reset(g.numVertices());
+        backward.reset(g.numVertices());
+        double srcLon = g.lonAt(source);
+        double srcLat = g.latAt(source);
+        double goalLon = g.lonAt(goal);
+        double goalLat = g.latAt(goal);
 
-        Collections.reverse(lst);
-        return lst;
+        double pSource = averagePotential(g, source, srcLon, srcLat, goalLon, goalLat);
+        forward.reach(source, 0.0, -1, pSource);
+        forward.heap.push(source, pSource);
+        double pGoal = averagePotential(g, goal, srcLon, srcLat, goalLon, goalLat);
+        backward.reach(goal, 0.0, -1, -pGoal);
+        backward.heap.push(goal, -pGoal);
+
+        double best = source == goal ? 0.0 : Double.POSITIVE_INFINITY;
+        int meet = source == goal ? source : -1;
+        while (!forward.heap.isEmpty() && !backward.heap.isEmpty()) {
+            if (forward.heap.minKey() + backward.heap.minKey() >= best) {
+                break;
+            }
+            /* Expand whichever side has the smaller frontier. */
+            boolean isForward = forward.heap.size() <= backward.heap.size();
+            SearchSpace self = isForward ? forward : backward;
+            SearchSpace other = isForward ? backward : forward;
+            int v = self.heap.poll();
+            self.settle(v);
+            double stov = self.dist(v);
+            for (int e = g.edgeStart(v), end = g.edgeEnd(v); e < end; e++) {
+                int w = g.edgeTarget(e);
+                if (self.isSettled(w)) {
+                    continue;
+                }
+                double d = stov + g.edgeWeight(e);
+                if (!self.isReached(w)) {
+                    double p = averagePotential(g, w, srcLon, srcLat, goalLon, goalLat);
+                    self.reach(w, d, v, isForward ? p : -p);
+                } else if (d < self.dist(w)) {
+                    self.improve(w, d, v);
+                } else {
+                    continue;
+                }
+                self.heap.push(w, d + self.potential(w));
+                if (other.isReached(w) && d + other.dist(w) < best) {
+                    best = d + other.dist(w);
+                    meet = w;
+                }
+            }
+        }
+        return meet;
+    }
 
+    /** Returns the forward potential of vertex v for a search from src to goal. */
+    private static double averagePotential(GraphDB g, int v, double srcLon, double srcLat,
+                                           double goalLon, double goalLat) {
+        double lon = g.lonAt(v);
+        double lat = g.latAt(v);
+        return (GraphDB.distance(lon, lat, goalLon, goalLat)
+                - GraphDB.distance(srcLon, srcLat, lon, lat)) / 2;
     }
 
    /*public static void main(String[] args) {
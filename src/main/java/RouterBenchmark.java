@@ -0,0 +1,129 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class provides a main method for comparing the Router search modes on a file of
+ * route queries in the format of path_params.txt: two comment lines, then the start
+ * longitude, start latitude, end longitude and end latitude of each query on separate lines.
+ * For every query and mode it prints the number of settled vertices and the median latency
+ * over several runs, and checks that all modes agree on the length of the route.
+ *
+ * The CH mode uses the contraction hierarchy file if it exists, and otherwise contracts the
+ * graph first. The ALT mode likewise uses the landmark file, computing it if needed.
+ *
+ * Usage: java RouterBenchmark [osm file] [params file] [runs per query] [ch file]
+ *        [landmark file]
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String PARAMS_FILE = "path_params.txt";
+    private static final int RUNS = 21;
+    /** Runs of the whole query set made before timing, so the JIT has compiled the search. */
+    private static final int WARMUP_ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        String dbPath = args.length > 0 ? args[0] : OSM_DB_PATH;
+        String paramsPath = args.length > 1 ? args[1] : PARAMS_FILE;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : RUNS;
+        String chPath = args.length > 3 ? args[3] : MapServer.CH_PATH;
+        String landmarksPath = args.length > 4 ? args[4] : MapServer.LANDMARKS_PATH;
+
+        GraphDB g = new GraphDB(dbPath);
+        if (new File(chPath).exists()) {
+            g.setContractionHierarchy(ContractionHierarchy.load(chPath, g));
+        } else {
+            long start = System.currentTimeMillis();
+            g.setContractionHierarchy(ContractionHierarchy.build(g));
+            System.out.println("No hierarchy at " + chPath + ", contracted the graph in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+        g.setLandmarks(Landmarks.loadOrSelect(landmarksPath, g));
+        List<double[]> queries = readQueries(paramsPath);
+        Router.SearchMode[] modes = Router.SearchMode.values();
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (double[] q : queries) {
+                for (Router.SearchMode mode : modes) {
+                    route(g, q, mode);
+                }
+            }
+        }
+
+        System.out.printf("%-6s", "query");
+        for (Router.SearchMode mode : modes) {
+            System.out.printf(" %21s %10s", mode + " settled", "median us");
+        }
+        System.out.println();
+
+        long[] totalSettled = new long[modes.length];
+        double[] totalMicros = new double[modes.length];
+        for (int i = 0; i < queries.size(); i++) {
+            double[] q = queries.get(i);
+            System.out.printf("%-6d", i);
+            double expectedLength = -1;
+            for (int m = 0; m < modes.length; m++) {
+                List<Long> path = route(g, q, modes[m]);
+                int settled = Router.lastSettledCount();
+                double length = length(g, path);
+                if (expectedLength < 0) {
+                    expectedLength = length;
+                } else if (Math.abs(length - expectedLength) > 1e-9) {
+                    System.out.printf("%nWARNING: %s route has length %.6f, expected %.6f%n",
+                            modes[m], length, expectedLength);
+                }
+
+                long[] times = new long[runs];
+                for (int r = 0; r < runs; r++) {
+                    long start = System.nanoTime();
+                    route(g, q, modes[m]);
+                    times[r] = System.nanoTime() - start;
+                }
+                Arrays.sort(times);
+                double micros = times[runs / 2] / 1000.0;
+                totalSettled[m] += settled;
+                totalMicros[m] += micros;
+                System.out.printf(" %21d %10.1f", settled, micros);
+            }
+            System.out.println();
+        }
+
+        System.out.printf("%-6s", "total");
+        for (int m = 0; m < modes.length; m++) {
+            System.out.printf(" %21d %10.1f", totalSettled[m], totalMicros[m]);
+        }
+        System.out.println();
+    }
+
+    private static List<Long> route(GraphDB g, double[] q, Router.SearchMode mode) {
+        return Router.shortestPath(g, q[0], q[1], q[2], q[3], mode);
+    }
+
+    private static double length(GraphDB g, List<Long> path) {
+        double total = 0;
+        for (int i = 1; i < path.size(); i++) {
+            total += g.distance(path.get(i - 1), path.get(i));
+        }
+        return total;
+    }
+
+    private static List<double[]> readQueries(String path) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(path), Charset.defaultCharset());
+        List<double[]> queries = new ArrayList<>();
+        int lineIdx = 2; // ignore comment lines
+        while (lineIdx + 3 < lines.size()) {
+            double[] q = new double[4];
+            for (int j = 0; j < 4; j++) {
+                q[j] = Double.parseDouble(lines.get(lineIdx + j).trim());
+            }
+            queries.add(q);
+            lineIdx += 4;
+        }
+        return queries;
+    }
+}
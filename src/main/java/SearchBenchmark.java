@@ -0,0 +1,202 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * This class provides a main method for measuring prefix search at typing speed. Each
+ * query set is what the front end sends while a name is typed: every prefix of the cleaned
+ * names of random locations, one per keystroke. The location index, which reads the best
+ * matches off its ranked trie, is compared with ranking every match of the prefix on the
+ * spot, and with a scan that cleans and tests every name, which is what answering a query
+ * without an index costs. The scan does not rank its matches. Fuzzy search, which
+ * tolerates typos, is timed on the same queries and on the queries with a typo each.
+ *
+ * Each method is run over the whole query set for several rounds after a warm-up, and the
+ * median time per query over the rounds is printed, with the 99th percentile of the time of
+ * single queries and the number of names returned as a checksum.
+ *
+ * Before that, the heap taken by a Trie of the cleaned names is compared with the heap taken
+ * by the CompactTrie packed from it, measured as the growth of the used heap after garbage
+ * collection.
+ *
+ * Usage: java SearchBenchmark [osm file] [names typed] [rounds]
+ */
+public class SearchBenchmark {
+    private static final int NAMES_TYPED = 200;
+    private static final int ROUNDS = 11;
+    /** Rounds of the whole query set made before timing, so the JIT has compiled the code. */
+    private static final int WARMUP_ROUNDS = 5;
+
+    private interface Method {
+        int run(String prefix);
+    }
+
+    public static void main(String[] args) {
+        String dbPath = args.length > 0 ? args[0] : MapServer.OSM_DB_PATH;
+        int typed = args.length > 1 ? Integer.parseInt(args[1]) : NAMES_TYPED;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : ROUNDS;
+        GraphDB g = new GraphDB(dbPath);
+        List<String> names = new ArrayList<>(new LinkedHashSet<>(g.getLocations()));
+        if (names.isEmpty()) {
+            System.out.println(dbPath + " has no named locations.");
+            return;
+        }
+
+        long start = System.nanoTime();
+        LocationIndex index = new LocationIndex(g.names, GraphDB.RANKED_MATCHES);
+        System.out.printf("%d names, %d cleaned, index built in %.1f ms%n", names.size(),
+                index.size(), (System.nanoTime() - start) / 1e6);
+
+        footprint(names);
+
+        Random random = new Random(42);
+        List<String> queries = keystrokes(names, typed, random);
+        List<String> typos = withTypos(queries, random);
+        int limit = MapServer.SEARCH_RESULT_LIMIT;
+        int edits = MapServer.FUZZY_MAX_EDITS;
+        String[] methods = {"index", "sort", "scan", "fuzzy", "typo"};
+        List<List<String>> querySets = Arrays.asList(queries, queries, queries, queries, typos);
+        Method[] runs = {
+            p -> index.byPrefix(p, limit).size(),
+            /* Asking for more than the trie holds ranks all the matches, then cut to limit. */
+            p -> Math.min(limit, index.byPrefix(p, GraphDB.RANKED_MATCHES + 1).size()),
+            p -> scan(names, p, limit).size(),
+            p -> index.byFuzzyPrefix(p, edits, limit).size(),
+            p -> index.byFuzzyPrefix(p, edits, limit).size()
+        };
+        System.out.printf("%d queries, at most %d results each%n", queries.size(), limit);
+        System.out.printf("%-8s %14s %14s %12s%n", "method", "ns per query", "p99 ns",
+                "results");
+        for (int m = 0; m < runs.length; m++) {
+            List<String> set = querySets.get(m);
+            long results = 0;
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                results = runAll(runs[m], set);
+            }
+            double[] nanos = new double[rounds];
+            for (int i = 0; i < rounds; i++) {
+                long t = System.nanoTime();
+                results = runAll(runs[m], set);
+                nanos[i] = (double) (System.nanoTime() - t) / set.size();
+            }
+            Arrays.sort(nanos);
+            long[] each = new long[set.size()];
+            for (int q = 0; q < each.length; q++) {
+                long t = System.nanoTime();
+                runs[m].run(set.get(q));
+                each[q] = System.nanoTime() - t;
+            }
+            Arrays.sort(each);
+            System.out.printf("%-8s %14.1f %14d %12d%n", methods[m], nanos[rounds / 2],
+                    each[each.length * 99 / 100], results);
+        }
+    }
+
+    /** Prints the heap taken by a Trie of the cleaned names and by its CompactTrie. */
+    private static void footprint(List<String> names) {
+        TreeSet<String> keys = new TreeSet<>();
+        for (String name : names) {
+            keys.add(GraphDB.cleanString(name));
+        }
+        long before = usedHeap();
+        Trie trie = new Trie(GraphDB.RANKED_MATCHES);
+        int value = 0;
+        for (String key : keys) {
+            trie.insert(key, value++, 1);
+        }
+        long trieBytes = usedHeap() - before;
+        CompactTrie compact = trie.compact();
+        int trieNodes = trie.nodes();
+        trie = null;
+        long compactBytes = usedHeap() - before;
+        /* Uses keys after the last measurement, so it is not collected in between. */
+        System.out.printf("%d words%n", keys.size());
+        System.out.printf("%-12s %10s %12s %14s%n", "trie", "nodes", "heap bytes",
+                "bytes per node");
+        System.out.printf("%-12s %10d %12d %14.1f%n", "Trie", trieNodes, trieBytes,
+                (double) trieBytes / trieNodes);
+        System.out.printf("%-12s %10d %12d %14.1f%n", "CompactTrie", compact.nodes(),
+                compactBytes, (double) compactBytes / compact.nodes());
+        System.out.printf("CompactTrie arrays: %d bytes%n", compact.bytes());
+    }
+
+    /** Returns the bytes of heap in use after collecting garbage. */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static long runAll(Method method, List<String> queries) {
+        long results = 0;
+        for (String q : queries) {
+            results += method.run(q);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the distinct names whose cleaned form starts with the cleaned prefix, by a
+     * full scan.
+     */
+    private static List<String> scan(List<String> names, String prefix, int limit) {
+        String key = GraphDB.cleanString(prefix);
+        List<String> matches = new ArrayList<>();
+        for (String name : names) {
+            if (matches.size() == limit) {
+                break;
+            }
+            if (!key.isEmpty() && GraphDB.cleanString(name).startsWith(key)) {
+                matches.add(name);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the queries with a typo in each one long enough to tolerate one: a letter
+     * replaced, left out or doubled.
+     */
+    private static List<String> withTypos(List<String> queries, Random random) {
+        List<String> typos = new ArrayList<>(queries.size());
+        for (String q : queries) {
+            if (LocationIndex.allowedEdits(q.length()) == 0) {
+                typos.add(q);
+                continue;
+            }
+            int i = random.nextInt(q.length());
+            switch (random.nextInt(3)) {
+                case 0:
+                    typos.add(q.substring(0, i) + (char) ('a' + random.nextInt(26))
+                            + q.substring(i + 1));
+                    break;
+                case 1:
+                    typos.add(q.substring(0, i) + q.substring(i + 1));
+                    break;
+                default:
+                    typos.add(q.substring(0, i) + q.charAt(i) + q.substring(i));
+                    break;
+            }
+        }
+        return typos;
+    }
+
+    /** Returns every prefix of the cleaned names of count random locations. */
+    private static List<String> keystrokes(List<String> names, int count, Random random) {
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = GraphDB.cleanString(names.get(random.nextInt(names.size())));
+            for (int end = 1; end <= name.length(); end++) {
+                queries.add(name.substring(0, end));
+            }
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scratch state for one shortest-path search over a graph with dense vertex indices:
+ * tentative distances, predecessors, cached heuristic values and the open set. All arrays
+ * are kept between searches and invalidated by bumping a generation counter, so starting a
+ * new search costs O(1) instead of clearing or reallocating arrays the size of the graph.
+ *
+ * A SearchSpace is not thread-safe; Router lends one to a query at a time from a pool.
+ */
+class SearchSpace {
+    private int generation;
+    /** reached[v] == generation iff dist, prev and potential of v are valid. */
+    private int[] reached = new int[0];
+    /** settled[v] == generation iff v has been removed from the open set. */
+    private int[] settled = new int[0];
+    private double[] dist = new double[0];
+    private int[] prev = new int[0];
+    private double[] potential = new double[0];
+    private int numSettled;
+
+    /** The open set, keyed by distance plus potential. */
+    final IndexedMinHeap heap = new IndexedMinHeap();
+
+    /**
+     * Prepares for a new search over a graph with n vertices.
+     */
+    void reset(int n) {
+        if (reached.length < n) {
+            reached = new int[n];
+            settled = new int[n];
+            dist = new double[n];
+            prev = new int[n];
+            potential = new double[n];
+            generation = 0;
+        }
+        generation += 1;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            generation = 1;
+        }
+        heap.clear();
+        heap.ensureCapacity(n);
+        numSettled = 0;
+    }
+
+    boolean isReached(int v) {
+        return reached[v] == generation;
+    }
+
+    /**
+     * Records the first path found to v, together with its (never changing) potential.
+     */
+    void reach(int v, double d, int from, double pot) {
+        reached[v] = generation;
+        dist[v] = d;
+        prev[v] = from;
+        potential[v] = pot;
+    }
+
+    /** Records a shorter path to an already reached vertex v. */
+    void improve(int v, double d, int from) {
+        dist[v] = d;
+        prev[v] = from;
+    }
+
+    boolean isSettled(int v) {
+        return settled[v] == generation;
+    }
+
+    void settle(int v) {
+        settled[v] = generation;
+        numSettled += 1;
+    }
+
+    /** Returns the number of vertices settled since the last reset. */
+    int numSettled() {
+        return numSettled;
+    }
+
+    double dist(int v) {
+        return dist[v];
+    }
+
+    double potential(int v) {
+        return potential[v];
+    }
+
+    int prev(int v) {
+        return prev[v];
+    }
+
+    /**
+     * Follows predecessors back from v and returns the OSM ids of the path ending at v,
+     * in order from the search origin to v.
+     */
+    List<Long> pathTo(GraphDB g, int v) {
+        List<Long> path = new ArrayList<>();
+        for (int u = v; u >= 0; u = prev[u]) {
+            path.add(g.idAt(u));
+        }
+        Collections.reverse(path);
+        return path;
+    }
+}
@@ -0,0 +1,245 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All the map tiles packed into one file, so that the server opens one file at startup
+ * instead of a file per tile on every cache miss, and a tile set is deployed as a single
+ * file. The archive is read through a memory mapping, and a tile is a slice of it: reading
+ * one is a binary search of the index and no system call.
+ *
+ * The file starts with a header of the magic number "TLA1", the format version and the
+ * number of tiles. Then comes the index, one entry per tile sorted by key: the key, and the
+ * offset and length of the tile's PNG file. The PNG files follow, in the order of the index.
+ * The key of the tile at depth d, column x and row y is (4^d - 1) / 3 + y * 2^d + x, its
+ * position in a list of all tiles by depth, then row, then column.
+ *
+ * Archives are written from a folder of loose tiles by the main method.
+ */
+class TileArchive extends TileStore {
+    /** First four bytes of a tile archive, "TLA1". */
+    private static final int MAGIC = 0x544c4131;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    /** Bytes per index entry: key, offset, length and four bytes of padding. */
+    private static final int ENTRY_SIZE = 24;
+
+    private final MappedByteBuffer buf;
+    private final int count;
+    private final long lastModified;
+
+    private TileArchive(MappedByteBuffer buf, int count, long lastModified) {
+        this.buf = buf;
+        this.count = count;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the key of a tile, or -1 if name is not the name of a tile.
+     * @param name The file name of the tile, such as "d2_x1_y3.png".
+     */
+    static long key(String name) {
+        int xAt = name.indexOf("_x");
+        int yAt = name.indexOf("_y");
+        if (!name.startsWith("d") || !name.endsWith(".png") || xAt < 0 || yAt < xAt) {
+            return -1;
+        }
+        String tileName = TileStore.tileName(name.substring(1, xAt),
+                name.substring(xAt + 2, yAt), name.substring(yAt + 2));
+        if (!name.equals(tileName)) {
+            return -1;
+        }
+        int depth = Integer.parseInt(name.substring(1, xAt));
+        long x = Long.parseLong(name.substring(xAt + 2, yAt));
+        long y = Long.parseLong(name.substring(yAt + 2, name.length() - 4));
+        return ((1L << 2 * depth) - 1) / 3 + (y << depth) + x;
+    }
+
+    /**
+     * Maps the archive at path and checks its index.
+     * @throws IOException If the file cannot be read, is not a tile archive of this version,
+     * or its index is out of order or points outside the file.
+     */
+    static TileArchive open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(path + " is not a tile archive.");
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map.");
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+                throw new IOException(path + " is not a version " + VERSION
+                        + " tile archive.");
+            }
+            int count = buf.getInt(8);
+            long dataStart = HEADER_SIZE + (long) count * ENTRY_SIZE;
+            if (count < 0 || dataStart > size) {
+                throw new IOException(path + " is truncated.");
+            }
+            long previousKey = -1;
+            for (int i = 0; i < count; i++) {
+                int entry = HEADER_SIZE + i * ENTRY_SIZE;
+                long key = buf.getLong(entry);
+                long offset = buf.getLong(entry + 8);
+                int length = buf.getInt(entry + 16);
+                if (key <= previousKey || offset < dataStart || length < 0
+                        || offset + length > size) {
+                    throw new IOException(path + " is corrupt.");
+                }
+                previousKey = key;
+            }
+            return new TileArchive(buf, count, new File(path).lastModified());
+        }
+    }
+
+    /** Returns the offset of the index entry of the tile, or -1 if there is no such tile. */
+    private int find(String name) {
+        long key = key(name);
+        int lo = 0;
+        int hi = count - 1;
+        while (key >= 0 && lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int entry = HEADER_SIZE + mid * ENTRY_SIZE;
+            long midKey = buf.getLong(entry);
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the number of tiles in the archive. */
+    int size() {
+        return count;
+    }
+
+    @Override
+    long length(String name) {
+        int entry = find(name);
+        return entry < 0 ? -1 : buf.getInt(entry + 16);
+    }
+
+    /** Tiles never change within an archive, so the ETag is the archive's and the slice's. */
+    @Override
+    String etag(String name) {
+        int entry = find(name);
+        if (entry < 0) {
+            return null;
+        }
+        return "\"" + Long.toHexString(lastModified) + "-"
+                + Long.toHexString(buf.getLong(entry + 8)) + "-"
+                + Integer.toHexString(buf.getInt(entry + 16)) + "\"";
+    }
+
+    @Override
+    ByteBuffer read(String name) {
+        int entry = find(name);
+        if (entry < 0) {
+            return null;
+        }
+        int offset = (int) buf.getLong(entry + 8);
+        ByteBuffer tile = buf.duplicate();
+        tile.limit(offset + buf.getInt(entry + 16)).position(offset);
+        return tile.slice();
+    }
+
+    /**
+     * Packs the tiles in root into an archive at path. Files in root that are not named as
+     * tiles are left out. The archive is written under a temporary name and then renamed, so
+     * a server starting at the same time never maps a half-written archive.
+     * @return The number of tiles packed.
+     * @throws IOException If a tile cannot be read, or the archive cannot be written.
+     */
+    static int pack(String root, String path) throws IOException {
+        File[] files = new File(root).listFiles();
+        if (files == null) {
+            throw new IOException(root + " is not a folder.");
+        }
+        List<long[]> tiles = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            long key = key(files[i].getName());
+            if (key >= 0 && files[i].isFile()) {
+                tiles.add(new long[] {key, i, files[i].length()});
+            }
+        }
+        tiles.sort((a, b) -> Long.compare(a[0], b[0]));
+        long offset = HEADER_SIZE + (long) tiles.size() * ENTRY_SIZE;
+        for (long[] tile : tiles) {
+            offset += tile[2];
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("The tiles in " + root + " are too large to map.");
+        }
+
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp.toFile()), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(tiles.size());
+            out.writeInt(0);
+            offset = HEADER_SIZE + (long) tiles.size() * ENTRY_SIZE;
+            for (long[] tile : tiles) {
+                out.writeLong(tile[0]);
+                out.writeLong(offset);
+                out.writeInt((int) tile[2]);
+                out.writeInt(0);
+                offset += tile[2];
+            }
+            for (long[] tile : tiles) {
+                File file = files[(int) tile[1]];
+                byte[] png = Files.readAllBytes(file.toPath());
+                if (png.length != tile[2]) {
+                    throw new IOException(file + " changed while being packed.");
+                }
+                out.write(png);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return tiles.size();
+    }
+
+    @Override
+    public String toString() {
+        return count + " tiles, " + buf.capacity() / 1000000 + " MB";
+    }
+
+    /**
+     * Packs a folder of tiles into an archive.
+     * Usage: java TileArchive [tile folder] [archive]
+     */
+    public static void main(String[] args) throws IOException {
+        String root = args.length > 0 ? args[0] : MapServer.IMG_ROOT;
+        String outPath = args.length > 1 ? args[1] : MapServer.TILE_ARCHIVE_PATH;
+        if (!root.endsWith(File.separator)) {
+            root += File.separator;
+        }
+        long start = System.currentTimeMillis();
+        int count = pack(root, outPath);
+        System.out.println("Packed " + count + " tiles in "
+                + (System.currentTimeMillis() - start) + " ms.");
+        System.out.println("Wrote " + outPath + ": " + open(outPath));
+    }
+}
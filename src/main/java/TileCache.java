@@ -0,0 +1,173 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * A bounded cache of decoded map tiles, so that a raster request does not read and decode
+ * from disk tiles that an earlier request already used. Panning around the map mostly asks
+ * for the same tiles again, and PNG decoding is the largest part of the cost of a raster
+ * request.
+ *
+ * Tiles are kept as TYPE_INT_RGB images, the type of the image the raster is drawn into,
+ * so drawing a cached tile is a plain copy. The cache is bounded by the bytes of pixel data
+ * it holds, and evicts the least recently used tiles to stay within the bound. All methods
+ * may be called from several request threads at once. Tiles are decoded outside the lock,
+ * so two requests that miss on the same tile may both decode it.
+ */
+class TileCache {
+    /** Bytes per pixel of a cached tile. */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final TileStore store;
+    private final long capacity;
+    /** The cached tiles by file name, least recently used first. */
+    private final LinkedHashMap<String, BufferedImage> tiles =
+            new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param store The tiles to decode.
+     * @param capacity The most bytes of decoded pixels to keep.
+     */
+    TileCache(TileStore store, long capacity) {
+        this.store = store;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the decoded tile, reading it from the store if it is not cached.
+     * @param name The file name of the tile, such as "d2_x1_y3.png".
+     * @return The tile, or null if it could not be read.
+     */
+    BufferedImage get(String name) {
+        synchronized (this) {
+            BufferedImage tile = tiles.get(name);
+            if (tile != null) {
+                hits += 1;
+                return tile;
+            }
+            misses += 1;
+        }
+        return load(name);
+    }
+
+    /**
+     * Decodes the tiles of the shallowest depths, up to and including maxDepth, into the
+     * cache. Stops before a depth whose tiles would not all fit. These tiles cover the
+     * whole map, so they are the ones every zoomed-out view uses. Missing tiles are skipped.
+     * @param maxDepth The deepest depth to load.
+     * @return The number of tiles loaded.
+     */
+    int warmUp(int maxDepth) {
+        int loaded = 0;
+        for (int depth = 0; depth <= maxDepth; depth++) {
+            int side = 1 << depth;
+            long needed = (long) side * side * MapServer.TILE_SIZE * MapServer.TILE_SIZE
+                    * BYTES_PER_PIXEL;
+            if (bytes() + needed > capacity) {
+                break;
+            }
+            for (int x = 0; x < side; x++) {
+                for (int y = 0; y < side; y++) {
+                    String name = "d" + depth + "_x" + x + "_y" + y + ".png";
+                    if (store.length(name) >= 0 && load(name) != null) {
+                        loaded += 1;
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /** Reads and decodes a tile, and caches it if it fits. */
+    private BufferedImage load(String name) {
+        BufferedImage tile;
+        try (InputStream in = store.stream(name)) {
+            /* Decoded through memory; ImageIO.read on a plain stream would first copy the
+             * tile to a temporary file. */
+            tile = in == null ? null
+                    : toIntRgb(ImageIO.read(new MemoryCacheImageInputStream(in)));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (tile == null) {
+            return null;
+        }
+        long size = sizeOf(tile);
+        synchronized (this) {
+            if (size <= capacity) {
+                BufferedImage previous = tiles.put(name, tile);
+                bytes += size - (previous == null ? 0 : sizeOf(previous));
+                evict();
+            }
+        }
+        return tile;
+    }
+
+    /** Removes least recently used tiles until the cache is within its capacity. */
+    private void evict() {
+        Iterator<Map.Entry<String, BufferedImage>> it = tiles.entrySet().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            bytes -= sizeOf(it.next().getValue());
+            it.remove();
+            evictions += 1;
+        }
+    }
+
+    private static BufferedImage toIntRgb(BufferedImage image) {
+        if (image == null || image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics g = converted.getGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    private static long sizeOf(BufferedImage tile) {
+        return (long) tile.getWidth() * tile.getHeight() * BYTES_PER_PIXEL;
+    }
+
+    /** Returns the number of tiles cached. */
+    synchronized int size() {
+        return tiles.size();
+    }
+
+    /** Returns the bytes of decoded pixels cached. */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /** Returns the number of get calls answered from the cache. */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /** Returns the number of get calls that had to read the tile from the store. */
+    synchronized long misses() {
+        return misses;
+    }
+
+    /** Returns the number of tiles evicted to make room for others. */
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d tiles, %.1f of %.1f MB, %d hits, %d misses, %d evictions",
+                tiles.size(), bytes / 1e6, capacity / 1e6, hits, misses, evictions);
+    }
+}
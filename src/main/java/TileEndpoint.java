@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+
+/**
+ * Serves single map tiles, so that clients that draw the map themselves can fetch tiles
+ * directly, and browsers and caching proxies can keep them. Tiles are served at
+ * /tiles/{depth}/{x}/{y}.png, the tile Rasterer calls d{depth}_x{x}_y{y}.png.
+ *
+ * Every response carries the strong ETag the TileStore gives the tile, and a Cache-Control
+ * header. A request whose If-None-Match names the current ETag is answered with 304 Not
+ * Modified and no body. Loose tile files are copied to the response with
+ * FileChannel.transferTo. The servlet API gives no access to the socket, so this is not the
+ * kernel's zero-copy path, but the file goes through a small transfer buffer rather than
+ * being read whole into the heap. Tiles of a TileArchive are written straight from its
+ * mapping.
+ */
+class TileEndpoint {
+    /** HTTP response for a request whose cached copy is still current. */
+    static final int NOT_MODIFIED_RESPONSE = 304;
+    /** HTTP response for a tile that does not exist. */
+    static final int NOT_FOUND_RESPONSE = 404;
+
+    private final TileStore tiles;
+    private final String cacheControl;
+
+    /**
+     * @param tiles The tiles to serve.
+     * @param maxAge The seconds clients may use a tile without checking it again.
+     */
+    TileEndpoint(TileStore tiles, long maxAge) {
+        this.tiles = tiles;
+        this.cacheControl = "public, max-age=" + maxAge;
+    }
+
+    /**
+     * Returns whether an If-None-Match header matches etag. Uses the weak comparison the
+     * header calls for, so W/"x" matches "x".
+     * @param ifNoneMatch The header, or null if the request had none.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Answers a request for /tiles/:depth/:x/:y. */
+    Object serve(spark.Request req, spark.Response res) throws IOException {
+        String name = TileStore.tileName(req.params(":depth"), req.params(":x"), req.params(":y"));
+        String etag = name == null ? null : tiles.etag(name);
+        long length = name == null ? -1 : tiles.length(name);
+        if (etag == null || length < 0) {
+            res.status(NOT_FOUND_RESPONSE);
+            return "No such tile.";
+        }
+        res.header("ETag", etag);
+        res.header("Cache-Control", cacheControl);
+        if (matches(req.headers("If-None-Match"), etag)) {
+            res.status(NOT_MODIFIED_RESPONSE);
+            return "";
+        }
+        res.type("image/png");
+        res.raw().setContentLengthLong(length);
+        OutputStream out = res.raw().getOutputStream();
+        if (!tiles.copyTo(name, Channels.newChannel(out))) {
+            throw new IOException("Tile " + name + " was removed while being sent.");
+        }
+        out.flush();
+        return "";
+    }
+}
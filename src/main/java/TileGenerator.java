@@ -0,0 +1,308 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Makes tiles deeper than the tiles that come with the map, by scaling up the part of their
+ * deepest ancestor that they cover. Tiles are generated on a background pool when a raster
+ * first calls for them and written to a folder, where they are found again after a
+ * restart; once read they are kept in memory by the TileCache like any other tile.
+ *
+ * A generator is the TileStore of the map's own tiles and the generated ones together.
+ * Generated tiles are only read once they are completely written. Every tile is generated
+ * from a tile of the map itself, never from another generated tile, so that detail is not
+ * lost to repeated scaling.
+ *
+ * Each depth has four times the tiles of the one above, so the folder is bounded by the
+ * bytes of the tiles in it. Once a new tile takes it over the bound, the least recently
+ * read tiles are deleted, and generated again if a raster calls for them later. After a
+ * restart the tiles count as read in the order they were written.
+ */
+class TileGenerator extends TileStore {
+    /** The deflate level of generated tiles. They are written once and read many times. */
+    private static final int DEFLATE_LEVEL = 6;
+
+    private final TileStore base;
+    private final String root;
+    private final TileStore generatedTiles;
+    private final long capacity;
+    /**
+     * The lengths of the generated tiles in root by name, least recently read first. Guarded
+     * by its own lock.
+     */
+    private final LinkedHashMap<String, Long> generated = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long evictions;
+    /** The names of the tiles queued or being generated. */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService pool;
+    private final RasterEncoder encoder = new RasterEncoder(RasterEncoder.Format.PNG,
+            DEFLATE_LEVEL, false, 0);
+
+    /**
+     * @param base The tiles of the map.
+     * @param root The folder to keep generated tiles in, ending with a separator. It is
+     *             created if it does not exist.
+     * @param threads The number of threads generating tiles.
+     * @param capacity The most bytes of generated tiles to keep in root.
+     */
+    TileGenerator(TileStore base, String root, int threads, long capacity) {
+        this.base = base;
+        this.root = root;
+        this.generatedTiles = new Directory(root);
+        this.capacity = capacity;
+        File dir = new File(root);
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (TileArchive.key(file.getName()) >= 0) {
+                    generated.put(file.getName(), file.length());
+                    bytes += file.length();
+                }
+            }
+        }
+        evict();
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "tile-generator");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /** Returns whether the tile is one of the map's or has been generated. */
+    boolean isReady(String name) {
+        return isGenerated(name) || base.length(name) >= 0;
+    }
+
+    /** Returns whether the tile is in root, without counting it as read. */
+    private boolean isGenerated(String name) {
+        synchronized (generated) {
+            return generated.containsKey(name);
+        }
+    }
+
+    /** Returns whether all the tiles of grid are ready. */
+    boolean isReady(Rasterer.Grid grid) {
+        for (int r = 0; r < grid.rows; r++) {
+            for (int c = 0; c < grid.cols; c++) {
+                if (!isReady(grid.tileName(r, c))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues the tiles of grid that are not ready and not already queued to be generated.
+     * Tiles with the same ancestor are generated together, so the ancestor is read once.
+     * Tiles without an ancestor among the map's tiles are left out.
+     */
+    void generate(Rasterer.Grid grid) {
+        Map<String, List<int[]>> byAncestor = new LinkedHashMap<>();
+        for (int r = 0; r < grid.rows; r++) {
+            for (int c = 0; c < grid.cols; c++) {
+                String name = grid.tileName(r, c);
+                if (isReady(name)) {
+                    continue;
+                }
+                int x = grid.x0 + c;
+                int y = grid.y0 + r;
+                String ancestor = ancestorOf(grid.depth, x, y);
+                if (ancestor != null && pending.add(name)) {
+                    byAncestor.computeIfAbsent(ancestor, a -> new ArrayList<>())
+                            .add(new int[] {grid.depth, x, y});
+                }
+            }
+        }
+        for (Map.Entry<String, List<int[]>> entry : byAncestor.entrySet()) {
+            pool.execute(() -> generate(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /** Returns the name of the deepest of the map's tiles that covers a tile, or null. */
+    private String ancestorOf(int depth, int x, int y) {
+        for (int d = depth - 1; d >= 0; d--) {
+            int shift = depth - d;
+            String name = "d" + d + "_x" + (x >> shift) + "_y" + (y >> shift) + ".png";
+            if (base.length(name) >= 0) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /** Generates tiles from their common ancestor, and writes them to root. */
+    private void generate(String ancestorName, List<int[]> tiles) {
+        try {
+            BufferedImage ancestor;
+            /* Decoded through memory, not a cache file that the JVM deletes on exit while
+             * this daemon thread may still be reading it. */
+            try (InputStream in = base.stream(ancestorName)) {
+                ancestor = in == null ? null
+                        : ImageIO.read(new MemoryCacheImageInputStream(in));
+            }
+            if (ancestor == null) {
+                throw new IOException("Cannot read tile " + ancestorName);
+            }
+            int ancestorDepth = Integer.parseInt(ancestorName.substring(1,
+                    ancestorName.indexOf('_')));
+            for (int[] tile : tiles) {
+                String name = "d" + tile[0] + "_x" + tile[1] + "_y" + tile[2] + ".png";
+                long length = write(name, scale(ancestor, tile[0] - ancestorDepth, tile[1],
+                        tile[2]));
+                synchronized (generated) {
+                    Long previous = generated.put(name, length);
+                    bytes += length - (previous == null ? 0 : previous);
+                }
+            }
+            evict();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            for (int[] tile : tiles) {
+                pending.remove("d" + tile[0] + "_x" + tile[1] + "_y" + tile[2] + ".png");
+            }
+        }
+    }
+
+    /**
+     * Returns the part of ancestor covered by the tile at column x and row y of the depth
+     * levels below it, scaled up to a full tile with bilinear interpolation.
+     */
+    static BufferedImage scale(BufferedImage ancestor, int levels, int x, int y) {
+        int size = MapServer.TILE_SIZE;
+        double scale = (double) (1L << levels) * size / ancestor.getWidth();
+        long mask = (1L << levels) - 1;
+        double left = (x & mask) * (double) ancestor.getWidth() / (1L << levels);
+        double top = (y & mask) * (double) ancestor.getHeight() / (1L << levels);
+        BufferedImage tile = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        AffineTransform transform = AffineTransform.getScaleInstance(scale, scale);
+        transform.translate(-left, -top);
+        g.drawImage(ancestor, transform, null);
+        g.dispose();
+        return tile;
+    }
+
+    /**
+     * Writes a tile under a temporary name and then renames it, so a tile is never read half
+     * written.
+     * @return The length of the tile file.
+     */
+    private long write(String name, BufferedImage tile) throws IOException {
+        Path target = Paths.get(root + name);
+        Path tmp = Paths.get(root + name + ".tmp");
+        byte[] png = encoder.encode(tile);
+        Files.write(tmp, png);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return png.length;
+    }
+
+    /**
+     * Deletes the least recently read generated tiles until root is within its capacity. A
+     * tile is forgotten before its file is deleted, so it is not looked for in root again.
+     */
+    private void evict() {
+        List<String> evicted = new ArrayList<>();
+        synchronized (generated) {
+            Iterator<Map.Entry<String, Long>> it = generated.entrySet().iterator();
+            while (bytes > capacity && it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                bytes -= entry.getValue();
+                evicted.add(entry.getKey());
+                it.remove();
+                evictions += 1;
+            }
+        }
+        for (String name : evicted) {
+            try {
+                Files.deleteIfExists(Paths.get(root + name));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Returns the number of tiles queued or being generated. */
+    int pending() {
+        return pending.size();
+    }
+
+    /** Returns the number of generated tiles in root, now or from before a restart. */
+    int generated() {
+        synchronized (generated) {
+            return generated.size();
+        }
+    }
+
+    /** Returns the bytes of the generated tiles in root. */
+    long bytes() {
+        synchronized (generated) {
+            return bytes;
+        }
+    }
+
+    /** Returns the number of generated tiles deleted to keep root within its capacity. */
+    long evictions() {
+        synchronized (generated) {
+            return evictions;
+        }
+    }
+
+    /** Returns the store that has the tile, counting it as read if it was generated. */
+    private TileStore storeOf(String name) {
+        synchronized (generated) {
+            return generated.get(name) != null ? generatedTiles : base;
+        }
+    }
+
+    @Override
+    long length(String name) {
+        return storeOf(name).length(name);
+    }
+
+    @Override
+    String etag(String name) {
+        return storeOf(name).etag(name);
+    }
+
+    @Override
+    ByteBuffer read(String name) throws IOException {
+        return storeOf(name).read(name);
+    }
+
+    @Override
+    boolean copyTo(String name, WritableByteChannel out) throws IOException {
+        return storeOf(name).copyTo(name, out);
+    }
+}
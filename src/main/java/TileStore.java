@@ -0,0 +1,211 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where the map tiles are read from. Tiles are named as the Rasterer names them, such as
+ * "d2_x1_y3.png", and are the encoded PNG files. The tiles are either loose files in a
+ * folder, or packed into a single TileArchive.
+ *
+ * All methods may be called from several request threads at once.
+ */
+abstract class TileStore {
+    /** The deepest depth a tile name may have; deeper names are rejected without a lookup. */
+    static final int MAX_DEPTH = 30;
+
+    /**
+     * Returns the tiles of the archive at archivePath if there is one, and the loose tiles in
+     * root otherwise. An archive that cannot be read is reported and skipped.
+     * @param root The folder of loose tiles, ending with a separator.
+     * @param archivePath The tile archive, written by running TileArchive.
+     */
+    static TileStore open(String root, String archivePath) {
+        if (new File(archivePath).exists()) {
+            try {
+                return TileArchive.open(archivePath);
+            } catch (IOException e) {
+                System.out.println("Using loose tiles: " + e.getMessage());
+            }
+        }
+        return new Directory(root);
+    }
+
+    /**
+     * Returns the file name of the tile at depth, x and y, or null if they do not name a
+     * tile.
+     * @param depth The depth, a decimal number.
+     * @param x The column, a decimal number less than 2^depth.
+     * @param yPng The row, a decimal number less than 2^depth, followed by ".png".
+     */
+    static String tileName(String depth, String x, String yPng) {
+        if (!yPng.endsWith(".png")) {
+            return null;
+        }
+        int d = parseIndex(depth, MAX_DEPTH + 1);
+        if (d < 0) {
+            return null;
+        }
+        int tx = parseIndex(x, 1 << d);
+        int ty = parseIndex(yPng.substring(0, yPng.length() - 4), 1 << d);
+        if (tx < 0 || ty < 0) {
+            return null;
+        }
+        return "d" + d + "_x" + tx + "_y" + ty + ".png";
+    }
+
+    /** Parses a decimal number less than limit without sign or leading zeros, or returns -1. */
+    private static int parseIndex(String s, int limit) {
+        if (s.isEmpty() || s.length() > 10 || (s.length() > 1 && s.charAt(0) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value < limit ? (int) value : -1;
+    }
+
+    /** Returns the length in bytes of the tile, or -1 if there is no such tile. */
+    abstract long length(String name);
+
+    /**
+     * Returns a strong ETag for the tile, quotes included, that changes whenever the tile
+     * might have, or null if there is no such tile.
+     */
+    abstract String etag(String name);
+
+    /**
+     * Returns the contents of the tile, from position to limit, or null if there is no such
+     * tile. The buffer is the caller's own, but may share its contents with the store.
+     */
+    abstract ByteBuffer read(String name) throws IOException;
+
+    /**
+     * Writes the tile to out.
+     * @return Whether there is such a tile.
+     */
+    boolean copyTo(String name, WritableByteChannel out) throws IOException {
+        ByteBuffer tile = read(name);
+        if (tile == null) {
+            return false;
+        }
+        while (tile.hasRemaining()) {
+            out.write(tile);
+        }
+        return true;
+    }
+
+    /** Returns a stream of the contents of the tile, or null if there is no such tile. */
+    InputStream stream(String name) throws IOException {
+        ByteBuffer tile = read(name);
+        return tile == null ? null : new BufferInputStream(tile);
+    }
+
+    /** The tiles in a folder, one file each. */
+    static final class Directory extends TileStore {
+        private final String root;
+
+        /** @param root The folder the tile images are in, ending with a separator. */
+        Directory(String root) {
+            this.root = root;
+        }
+
+        private File file(String name) {
+            File file = new File(root + name);
+            return file.isFile() ? file : null;
+        }
+
+        @Override
+        long length(String name) {
+            File file = file(name);
+            return file == null ? -1 : file.length();
+        }
+
+        @Override
+        String etag(String name) {
+            File file = file(name);
+            if (file == null) {
+                return null;
+            }
+            return "\"" + Long.toHexString(file.lastModified()) + "-"
+                    + Long.toHexString(file.length()) + "\"";
+        }
+
+        @Override
+        ByteBuffer read(String name) throws IOException {
+            File file = file(name);
+            return file == null ? null : ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        }
+
+        /**
+         * Copies the file with FileChannel.transferTo, so it goes through a small transfer
+         * buffer rather than being read whole into the heap.
+         */
+        @Override
+        boolean copyTo(String name, WritableByteChannel out) throws IOException {
+            File file = file(name);
+            if (file == null) {
+                return false;
+            }
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = in.size();
+                for (long position = 0; position < size; ) {
+                    long n = in.transferTo(position, size - position, out);
+                    if (n <= 0) {
+                        throw new IOException("Tile " + name + " changed while being sent.");
+                    }
+                    position += n;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** An InputStream over the remaining bytes of a buffer. */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        BufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
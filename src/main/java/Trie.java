@@ -1,79 +1,187 @@
-import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-
-
-// @source - Implementation of trie class is from programcreek.com.
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Trie of words with a weight each, answering "the best k words with this prefix" in time
+ * proportional to the length of the prefix plus k. Every node keeps the values of the k
+ * heaviest words below it, best first, so a query walks down to the node of the prefix and
+ * reads its list instead of the whole subtree under it.
+ *
+ * The lists are kept up to date as words are inserted: a word is merged into the list of
+ * every node on its path. Words of equal weight are ranked by their values, smaller first.
+ * Once all the words are in, compact() packs the trie into a CompactTrie, which answers the
+ * same queries in a fraction of the memory.
+ */
+// @source - The node layout of this trie started from the implementation at programcreek.com.
 public class Trie {
-
-    public TrieNode label;
+    private final int k;
+    private final TrieNode root = new TrieNode();
+    private int size;
 
     private class TrieNode {
-        public char chr;
-        public HashMap<Character, TrieNode> kids;
-        public boolean end;
-
-        public TrieNode() {
-            kids = new HashMap<>();
-            end = false;
+        private final HashMap<Character, TrieNode> kids = new HashMap<>();
+        /** The value of the word that ends here, or -1. */
+        private int value = -1;
+        /** The values of the heaviest words below this node, best first. */
+        private int[] top = new int[0];
+        /** The weights of the words in top. */
+        private double[] topWeights = new double[0];
+
+        /** Merges a word into top, keeping at most k. */
+        private void offer(int v, double weight) {
+            int i = top.length;
+            while (i > 0 && ranksBefore(v, weight, top[i - 1], topWeights[i - 1])) {
+                i -= 1;
+            }
+            if (i == k) {
+                return;
+            }
+            int length = Math.min(top.length + 1, k);
+            int[] values = Arrays.copyOf(top, length);
+            double[] weights = Arrays.copyOf(topWeights, length);
+            System.arraycopy(top, i, values, i + 1, length - i - 1);
+            System.arraycopy(topWeights, i, weights, i + 1, length - i - 1);
+            values[i] = v;
+            weights[i] = weight;
+            top = values;
+            topWeights = weights;
         }
+    }
 
-        public TrieNode(char input) {
-            kids = new HashMap<>();
-            chr = input;
-            end = false;
+    /** A node of the trie with the chain of nodes above it that have one child each. */
+    static final class Chain {
+        /** The characters of the chain, from the child of the node above to this node. */
+        final String label;
+        final int children;
+        final int value;
+        final int[] top;
+
+        private Chain(String label, TrieNode node) {
+            this.label = label;
+            this.children = node.kids.size();
+            this.value = node.value;
+            this.top = node.top;
         }
     }
 
-    public Trie() {
-        label = new TrieNode();
+    /**
+     * Creates an empty trie.
+     * @param k The most words a query returns.
+     */
+    public Trie(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        this.k = k;
     }
 
-    public void insert(String word) {
-
-        HashMap<Character, TrieNode> kids = label.kids;
+    private static boolean ranksBefore(int v, double weight, int w, double otherWeight) {
+        return weight > otherWeight || weight == otherWeight && v < w;
+    }
 
+    /**
+     * Adds a word.
+     * @param word The word, not already in the trie.
+     * @param value The value returned for the word, not negative.
+     * @param weight The weight the word is ranked by, heaviest first.
+     */
+    public void insert(String word, int value, double weight) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        if (contains(word)) {
+            throw new IllegalArgumentException("Already in the trie: " + word);
+        }
+        TrieNode node = root;
+        node.offer(value, weight);
         for (int i = 0; i < word.length(); i++) {
-            char c = word.charAt(i);
-            TrieNode trien;
-            if (kids.containsKey(c)) {
-                trien = kids.get(c);
-            } else {
-                trien = new TrieNode(c);
-                kids.put(c, trien);
-            }
-            kids = trien.kids;
-            if (i == word.length() - 1) {
-                trien.end = true;
-            }
+            node = node.kids.computeIfAbsent(word.charAt(i), c -> new TrieNode());
+            node.offer(value, weight);
         }
+        node.value = value;
+        size += 1;
     }
 
-    public TrieNode searchNode(String word) {
-        HashMap<Character, TrieNode> kids = label.kids;
-        TrieNode trien = null;
-        for (int i = 0; i < word.length(); i++) {
-            char c = word.charAt(i);
-            if (kids.containsKey(c)) {
-                trien = kids.get(c);
-                kids = trien.kids;
-            } else {
-                return null;
-            }
+    /** Returns the node of a prefix, or null if no word starts with it. */
+    private TrieNode find(String prefix) {
+        TrieNode node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.kids.get(prefix.charAt(i));
         }
-        return trien;
+        return node;
     }
 
-    public ArrayList<String> words() {
-        return null;
+    /** Returns whether the word is in the trie. */
+    public boolean contains(String word) {
+        TrieNode node = find(word);
+        return node != null && node.value >= 0;
+    }
 
+    /**
+     * Returns the values of the heaviest words that start with a prefix, best first.
+     * @param prefix The prefix; the empty prefix matches every word.
+     * @param limit The most values to return. At most k are returned whatever the limit.
+     */
+    public int[] top(String prefix, int limit) {
+        TrieNode node = find(prefix);
+        if (node == null) {
+            return new int[0];
+        }
+        return Arrays.copyOf(node.top, Math.min(Math.max(limit, 0), node.top.length));
     }
 
+    /**
+     * Returns the trie packed into arrays, with the chains of nodes that have one child and
+     * no word merged. Words inserted afterwards are not in the packed trie.
+     */
+    CompactTrie compact() {
+        List<Chain> nodes = new ArrayList<>();
+        ArrayDeque<Chain> queue = new ArrayDeque<>();
+        ArrayDeque<TrieNode> queued = new ArrayDeque<>();
+        queue.add(new Chain("", root));
+        queued.add(root);
+        while (!queue.isEmpty()) {
+            nodes.add(queue.remove());
+            TrieNode node = queued.remove();
+            Character[] first = node.kids.keySet().toArray(new Character[0]);
+            Arrays.sort(first);
+            for (char c : first) {
+                StringBuilder label = new StringBuilder().append(c);
+                TrieNode end = node.kids.get(c);
+                while (end.kids.size() == 1 && end.value < 0) {
+                    char next = end.kids.keySet().iterator().next();
+                    label.append(next);
+                    end = end.kids.get(next);
+                }
+                queue.add(new Chain(label.toString(), end));
+                queued.add(end);
+            }
+        }
+        return new CompactTrie(k, size, nodes);
+    }
+
+    /** Returns the number of nodes, one per distinct prefix of the words. */
+    public int nodes() {
+        int count = 0;
+        ArrayDeque<TrieNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            count += 1;
+            stack.addAll(stack.pop().kids.values());
+        }
+        return count;
+    }
 
+    /** Returns the most words a query returns. */
+    public int k() {
+        return k;
+    }
 
-    public static void main(String[] args) {
-        Trie temp = new Trie();
-        temp.insert("wowza");
-        TrieNode boy = temp.searchNode("wow");
-        System.out.println(boy);
+    /** Returns the number of words. */
+    public int size() {
+        return size;
     }
 }
@@ -42,7 +42,7 @@ $(function() {
     /* Starting hyper-parameters #machinelearning */
     const zoom_delta = 0.04;
     const base_move_delta = 0.03;
-    const max_level = 7;
+    var max_level = 7; // Replaced by the server's depth limit with every raster
     const min_level = 2; // Level limits based on pulled data
     var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
     var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
@@ -54,7 +54,7 @@ $(function() {
     } else {
         host = 'http://localhost:4567';
     }
-    const raster_server = host + '/raster';
+    const raster_image_server = host + '/raster_image';
     const route_server = host + '/route';
     const clear_route = host + '/clear_route';
     const search = host + '/search';
@@ -102,54 +102,70 @@ $(function() {
     }
 
     function updateImg(successCallback) {
-        /* Synchronous ajax call for image update.
-           Could be async for better experience but then user spam locks up the server.
-           Uses a small setTimeout since synchronous AJAX freezes UI updates, including
-           updates which are called before ajax() is called #sigh #why #justjavascriptthings */
+        /* Asynchronous call for image update, using the binary raster endpoint: the image
+           is the body of the response and the raster bounds are in its headers, which
+           saves the base64 encoding of the image in a JSON string. */
         $loadingStatus.show();
         getInProgress = true;
-        $.get({
-            async: true,
-            url: raster_server,
-            data: params,
-            success: function(data) {
-                console.log(data);
-                if (data.query_success) {
-                    $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' +
-                                data.b64_encoded_image_data.length);
-                    ullon_bound = data.raster_ul_lon;
-                    ullat_bound = data.raster_ul_lat;
-                    lrlon_bound = data.raster_lr_lon;
-                    lrlat_bound = data.raster_lr_lat;
-                    current_level = data.depth;
-                    img_w = data.raster_width;
-                    img_h = data.raster_height;
-                    wdpp = (lrlon_bound - ullon_bound) / img_w;
-                    hdpp = (ullat_bound - lrlat_bound) / img_h;
-                    // Compute initial transform
-                    tx = - (params.ullon - ullon_bound) * (1 / wdpp);
-                    ty = (params.ullat - ullat_bound) * (1 / hdpp);
-                    rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
-                    rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
-                    updateMarkers();
-                    getInProgress = false;
-                    if (successCallback) {
-                        successCallback();
-                    }
-                } else {
-                    $loadingstatus.hide();
+        fetch(raster_image_server + '?' + $.param(params)).then(function(response) {
+            if (!response.ok) {
+                throw new Error('Raster request failed: ' + response.status);
+            }
+            if (response.status === 204) {
+                /* The query was outside the map. */
+                $loadingStatus.hide();
+                getInProgress = false;
+                return;
+            }
+            const header = function(name) {
+                return parseFloat(response.headers.get('X-' + name));
+            };
+            const data = {
+                raster_ul_lon: header('raster-ul-lon'),
+                raster_ul_lat: header('raster-ul-lat'),
+                raster_lr_lon: header('raster-lr-lon'),
+                raster_lr_lat: header('raster-lr-lat'),
+                depth: header('depth'),
+                raster_width: header('raster-width'),
+                raster_height: header('raster-height'),
+                max_depth: header('max-depth')
+            };
+            return response.blob().then(function(image) {
+                $loadingStatus.hide();
+                const previous = map.src;
+                map.src = URL.createObjectURL(image);
+                if (previous.startsWith('blob:')) {
+                    URL.revokeObjectURL(previous);
                 }
-            },
-            error: function() {
+                console.log('Updating map with image size: ' + image.size);
+                ullon_bound = data.raster_ul_lon;
+                ullat_bound = data.raster_ul_lat;
+                lrlon_bound = data.raster_lr_lon;
+                lrlat_bound = data.raster_lr_lat;
+                current_level = data.depth;
+                max_level = data.max_depth;
+                img_w = data.raster_width;
+                img_h = data.raster_height;
+                wdpp = (lrlon_bound - ullon_bound) / img_w;
+                hdpp = (ullat_bound - lrlat_bound) / img_h;
+                // Compute initial transform
+                tx = - (params.ullon - ullon_bound) * (1 / wdpp);
+                ty = (params.ullat - ullat_bound) * (1 / hdpp);
+                rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
+                rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
+                updateMarkers();
                 getInProgress = false;
-                $errorStatus.show();
-                setTimeout(function() {
-                    $errorStatus.fadeOut();
-                }, 4000);
-            },
-            dataType: 'json'
+                if (successCallback) {
+                    successCallback();
+                }
+            });
+        }).catch(function(error) {
+            console.log(error);
+            getInProgress = false;
+            $errorStatus.show();
+            setTimeout(function() {
+                $errorStatus.fadeOut();
+            }, 4000);
         });
     }
 
@@ -325,7 +341,10 @@ $(function() {
 
     /* Make search bar do autocomplete things */
     $('#tags').autocomplete({
-          source: search,
+          /* Fuzzy, so that names still come up with a typo in what was typed. */
+          source: function(request, response) {
+              $.getJSON(search, { term: request.term, fuzzy: true }, response);
+          },
           minLength: 2,
           select: function (event, ui) {
               $.get({
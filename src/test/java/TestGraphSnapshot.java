@@ -0,0 +1,145 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a graph read back from a binary snapshot matches the graph built from the XML
+ * file, both on the heap and mapped off-heap, and that stale or damaged snapshots are
+ * rejected.
+ */
+public class TestGraphSnapshot {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private File source;
+    private File snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        source = File.createTempFile("tiny", ".osm.xml");
+        source.deleteOnExit();
+        Files.copy(new File(OSM_DB_PATH_TINY).toPath(), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        snapshot = File.createTempFile("tiny", ".graph");
+        snapshot.deleteOnExit();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        GraphDB built = new GraphDB(source.getPath());
+        GraphSnapshot.save(built, snapshot.getPath(), source);
+        GraphDB loaded = GraphSnapshot.load(snapshot.getPath(), source, false);
+
+        assertEquals(built.numVertices(), loaded.numVertices());
+        assertEquals(built.fingerprint(), loaded.fingerprint());
+        for (int i = 0; i < built.numVertices(); i++) {
+            long v = built.idAt(i);
+            assertEquals(v, loaded.idAt(i));
+            assertEquals(built.lon(v), loaded.lon(v), 0.0);
+            assertEquals(built.lat(v), loaded.lat(v), 0.0);
+            assertEquals(toList(built.adjacent(v)), toList(loaded.adjacent(v)));
+            for (int e = built.edgeStart(i); e < built.edgeEnd(i); e++) {
+                assertEquals(built.edgeWeight(e), loaded.edgeWeight(e), 0.0);
+            }
+        }
+        assertEquals(namesById(built), namesById(loaded));
+        assertEquals(built.closest(-122.5, 37.5), loaded.closest(-122.5, 37.5));
+    }
+
+    @Test
+    public void testStaleSnapshotIsRejected() throws Exception {
+        GraphDB built = new GraphDB(source.getPath());
+        GraphSnapshot.save(built, snapshot.getPath(), source);
+        source.setLastModified(source.lastModified() + 60000);
+        try {
+            GraphSnapshot.load(snapshot.getPath(), source, false);
+            fail("Loaded a snapshot older than its source file.");
+        } catch (IOException expected) {
+            // rejected as stale
+        }
+
+        GraphDB rebuilt = GraphSnapshot.loadOrParse(snapshot.getPath(), source.getPath(),
+                false);
+        assertEquals(built.fingerprint(), rebuilt.fingerprint());
+        assertEquals(built.fingerprint(),
+                GraphSnapshot.load(snapshot.getPath(), source, false).fingerprint());
+    }
+
+    @Test
+    public void testCorruptSnapshotIsRejected() throws Exception {
+        GraphSnapshot.save(new GraphDB(source.getPath()), snapshot.getPath(), source);
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 1);
+        }
+        try {
+            GraphSnapshot.load(snapshot.getPath(), source, false);
+            fail("Loaded a snapshot with a bad checksum.");
+        } catch (IOException expected) {
+            // rejected as corrupt
+        }
+    }
+
+    @Test
+    public void testOffHeapMatchesHeap() throws Exception {
+        GraphDB built = new GraphDB(source.getPath());
+        GraphSnapshot.save(built, snapshot.getPath(), source);
+        GraphDB mapped = GraphSnapshot.load(snapshot.getPath(), source, true);
+
+        assertEquals(built.numVertices(), mapped.numVertices());
+        assertEquals(built.fingerprint(), mapped.fingerprint());
+        for (long v : built.vertices()) {
+            assertEquals(built.indexOf(v), mapped.indexOf(v));
+            assertEquals(built.lon(v), mapped.lon(v), 0.0);
+            assertEquals(built.lat(v), mapped.lat(v), 0.0);
+            assertEquals(toList(built.adjacent(v)), toList(mapped.adjacent(v)));
+        }
+        assertEquals(-1, mapped.indexOf(-12345L));
+        for (long s : built.vertices()) {
+            for (long t : built.vertices()) {
+                assertEquals(
+                        Router.shortestPath(built, built.lon(s), built.lat(s),
+                                built.lon(t), built.lat(t)),
+                        Router.shortestPath(mapped, mapped.lon(s), mapped.lat(s),
+                                mapped.lon(t), mapped.lat(t)));
+            }
+        }
+    }
+
+    /** Builds the graph of an OSM file and reads it back from a snapshot, mapped off-heap. */
+    static GraphDB offHeap(String dbPath) throws IOException {
+        File source = new File(dbPath);
+        File snapshot = File.createTempFile("graph", ".graph");
+        snapshot.deleteOnExit();
+        GraphSnapshot.save(new GraphDB(dbPath), snapshot.getPath(), source);
+        return GraphSnapshot.load(snapshot.getPath(), source, true);
+    }
+
+    private static List<Long> toList(Iterable<Long> ids) {
+        List<Long> list = new ArrayList<>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static Map<Long, String> namesById(GraphDB g) {
+        Map<Long, String> result = new HashMap<>();
+        for (Map.Entry<Node, String> entry : g.names.entrySet()) {
+            result.put(entry.getKey().getid(), entry.getValue());
+        }
+        return result;
+    }
+}
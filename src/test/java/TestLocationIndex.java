@@ -0,0 +1,112 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLocationIndex {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    private static LocationIndex index(int capacity, String... names) {
+        Map<Node, String> locations = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            locations.put(new Node((long) i, 37.8 + i, -122.2 - i), names[i]);
+        }
+        return new LocationIndex(locations, capacity);
+    }
+
+    @Test
+    public void testByPrefix() {
+        LocationIndex index = index(10, "Top Dog", "Top-Dog", "Top Dog", "TOP DOG", "Tops",
+                "Trader Joe's", "Ace Hardware", "123", "Topaz");
+        assertEquals(6, index.size());
+        assertEquals(Arrays.asList("TOP DOG", "Top Dog", "Topaz", "Top-Dog", "Tops"),
+                index.byPrefix("top", Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("TOP DOG", "Top Dog"),
+                index.byPrefix("Top D", Integer.MAX_VALUE));
+        assertEquals(Collections.singletonList("Top-Dog"),
+                index.byPrefix("top-d", Integer.MAX_VALUE));
+        assertEquals(Collections.singletonList("Trader Joe's"),
+                index.byPrefix("trader joes", Integer.MAX_VALUE));
+        assertEquals(Collections.emptyList(), index.byPrefix("traderjoe", Integer.MAX_VALUE));
+        assertEquals(Collections.emptyList(), index.byPrefix("zzz", Integer.MAX_VALUE));
+        assertEquals(Collections.emptyList(), index.byPrefix("1", Integer.MAX_VALUE));
+        assertEquals(Collections.emptyList(), index.byPrefix("", Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testLimit() {
+        LocationIndex index = index(10, "Top Dog", "TOP DOG", "Topaz", "Tops");
+        assertEquals(Arrays.asList("TOP DOG", "Top Dog", "Topaz"), index.byPrefix("to", 3));
+        assertEquals(Collections.singletonList("TOP DOG"), index.byPrefix("to", 1));
+        assertEquals(Collections.emptyList(), index.byPrefix("to", 0));
+    }
+
+    @Test
+    public void testRanksByNumberOfLocations() {
+        String[] names = {"Tops", "Topaz", "Top Dog", "Top Dog", "Tops", "TOPS", "Trader Joe's"};
+        List<String> ranked = Arrays.asList("TOPS", "Tops", "Top Dog", "Topaz");
+        assertEquals(ranked, index(10, names).byPrefix("to", 10));
+        assertEquals(ranked.subList(0, 3), index(10, names).byPrefix("to", 3));
+        /* Past the capacity of the trie, all the matches are ranked on the spot. */
+        assertEquals(ranked, index(2, names).byPrefix("to", 10));
+        assertEquals(ranked.subList(0, 2), index(2, names).byPrefix("to", 2));
+        assertEquals(Arrays.asList("TOPS", "Tops", "Top Dog", "Topaz", "Trader Joe's"),
+                index(2, names).byPrefix("t", Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testByName() {
+        LocationIndex index = index(10, "Top Dog", "Tops", "TOP DOG", "Top Dog", "Top-Dog");
+        List<LocationIndex.Location> found = index.byName("top dog");
+        assertEquals(3, found.size());
+        long[] ids = {0, 2, 3};
+        String[] names = {"Top Dog", "TOP DOG", "Top Dog"};
+        for (int i = 0; i < ids.length; i++) {
+            LocationIndex.Location location = found.get(i);
+            assertEquals(ids[i], location.id);
+            assertEquals(names[i], location.name);
+            assertEquals(37.8 + ids[i], location.lat, 0);
+            assertEquals(-122.2 - ids[i], location.lon, 0);
+        }
+        assertEquals(3, index.byName("Top Dog!").size());
+        assertEquals(4, index.byName("topdog").get(0).id);
+        assertEquals(Collections.emptyList(), index.byName("top"));
+        assertEquals(Collections.emptyList(), index.byName("?"));
+    }
+
+    @Test
+    public void testByFuzzyPrefix() {
+        LocationIndex index = index(10, "Berkeley Bowl", "Berkeley Bowl", "Berkeley Bowl",
+                "Berkley Rep", "Berkeley", "Burger King", "Bart", "Bart", "Barts");
+        assertEquals(Arrays.asList("Berkeley Bowl", "Berkeley", "Berkley Rep"),
+                index.byFuzzyPrefix("berkel", 2, 10));
+        assertEquals(Arrays.asList("Berkeley Bowl", "Berkeley"),
+                index.byFuzzyPrefix("berkel", 0, 10));
+        assertEquals(Collections.singletonList("Berkeley Bowl"),
+                index.byFuzzyPrefix("berkel", 2, 1));
+        /* A typo in each: an edit is tolerated from three characters, two from six. */
+        assertEquals(Arrays.asList("Bart", "Barts"), index.byFuzzyPrefix("bqrt", 2, 10));
+        assertEquals(Collections.singletonList("Berkley Rep"),
+                index.byFuzzyPrefix("Berkly Re", 2, 10));
+        assertEquals(Collections.emptyList(), index.byFuzzyPrefix("bq", 2, 10));
+        assertEquals(Collections.emptyList(), index.byFuzzyPrefix("", 2, 10));
+    }
+
+    @Test
+    public void testGraphLocationsByPrefix() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        assertEquals(Arrays.asList("Top Dog", "Top-Dog"), g.getLocationsByPrefix("t"));
+        assertEquals(Collections.singletonList("Top Dog"), g.getLocationsByPrefix("TOP D"));
+        assertEquals(Collections.singletonList("Top Dog"), g.getLocationsByPrefix("top", 1));
+        List<LocationIndex.Location> found = g.getLocations("top-dog");
+        assertEquals(1, found.size());
+        assertEquals(99, found.get(0).id);
+        assertEquals(38.9, found.get(0).lat, 0);
+        assertEquals(0.9, found.get(0).lon, 0);
+    }
+}
@@ -0,0 +1,186 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the streaming OsmIngest builds the same graph as the original SAX handler, that
+ * its scanner copes with the XML found in OSM files, and that compressed XML and PBF input
+ * give the same graph as plain XML.
+ */
+public class TestOsmIngest {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    /** tiny-clean.osm.xml compressed with bzip2 -9. */
+    private static final String TINY_BZ2 =
+            "QlpoOTFBWSZTWQQ9+ecAANhfgEAQUIP/Z4UCDgAv793gMAF6hQEpGp6k0xA9TTR6hoB6jQ0BgZBk"
+            + "ABiNBkMgMEiJCnp6g1DBNPQgANNqQI70kmJKQSYg+vm7LzbYxeqWYA9EhpL74Gmy3WRZnLMz2qSs"
+            + "HqNWYMlGOJiFWl7loq3gIstuutr2XCXB+L57K0LG2xtjTfcAuKWMILNEqInazVYOFnlkIIGjTDHC"
+            + "tpIxkORY4AYUboeBwYPHFsYwkCZCWSGKDE+GN8AGQ22NjY3/B+JNWcah5AxibDmx3EOXOYCO7NbK"
+            + "le7yeCJL1nTJZID6gk0HIhOCOwEQ7QLkzr1Bap3E3gtXRK8rUKBvDCoLP1CubRQsS00gAkzSso0C"
+            + "M607kiaQBvKYCMupsSubnlwL78yrrwSI6aTAmNZcRQC9LDKy9BQNoVzhyvAqNH+LuSKcKEgCHvzz"
+            + "gA==";
+    /**
+     * tiny-clean.osm.xml as PBF: the header, a block of dense nodes and a block of ways, all
+     * compressed with zlib.
+     */
+    private static final String TINY_PBF =
+            "AAAADQoJT1NNSGVhZGVyGDUQKRoxeJxT4vMvzg1OzkjNTdQNM9AzU+JySc0rTvXLT0ktbmLkyi/O"
+            + "NSpIStMrqAQACNYNOQAAAAsKB09TTURhdGEYahBzGmZ4nOOS4mLgYslLzE3lYg/JL1BwyU8HM3SB"
+            + "DKEgoQAuDjExNS4hATYnJ7mGp2teMzV0Vv3vqGpY+4gFSP2f+IWxYfY7JhD2EgNKgdCkL4wMECYD"
+            + "SDyIhwEIGJlABDNDB2MKAFuhJeYAAAAMCgdPU01EYXRhGI8BEIwBGokBeJzj8uBi4GLPyEzPKE+s"
+            + "5GLJS8xN5eIuSi3OTEnNK8lMzOHi9k3MzFMILilKTS3hYi8oysxNLKrk4ixOTc7PSwEx2dPy80uA"
+            + "moVspQQ4GIWYGJmkmJhZnFjExAw0pHg5mIQYGaUYWZ2Yg3TYpHg4mMFcNiemOn4gjwXMY3diyovo"
+            + "YEwBABPJHjw=";
+
+    @Test
+    public void testMatchesHandlerTiny() {
+        assertSameGraph(GraphDB.parseWithHandler(OSM_DB_PATH_TINY),
+                new GraphDB(OSM_DB_PATH_TINY));
+    }
+
+    /** A file spanning several blocks, so that block boundaries fall inside the ways. */
+    @Test
+    public void testMatchesHandlerAcrossBlocks() throws IOException {
+        File file = File.createTempFile("chain", ".osm.xml");
+        file.deleteOnExit();
+        int n = 3 * OsmIngest.BLOCK_SIZE / 60;
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            for (int i = 0; i < n; i++) {
+                out.printf(" <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n",
+                        i + 1, 37.8 + (i % 97) * 1e-4, -122.3 + i * 1e-6);
+            }
+            for (int start = 0; start + 1 < n; start += 50) {
+                out.printf(" <way id=\"%d\">%n", start + 1);
+                for (int i = start; i < Math.min(start + 51, n); i++) {
+                    out.printf("  <nd ref=\"%d\"/>%n", i + 1);
+                }
+                out.printf("  <tag k=\"highway\" v=\"%s\"/>%n",
+                        start % 200 == 0 ? "footway" : "residential");
+                out.println(" </way>");
+            }
+            out.println("</osm>");
+        }
+        assertSameGraph(GraphDB.parseWithHandler(file.getPath()), new GraphDB(file.getPath()));
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        File file = File.createTempFile("tiny", ".osm.xml.gz");
+        file.deleteOnExit();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            Files.copy(Paths.get(OSM_DB_PATH_TINY), out);
+        }
+        assertSameGraph(new GraphDB(OSM_DB_PATH_TINY), new GraphDB(file.getPath()));
+    }
+
+    @Test
+    public void testBzip2() throws IOException {
+        File file = File.createTempFile("tiny", ".osm.xml.bz2");
+        file.deleteOnExit();
+        Files.write(file.toPath(), Base64.getDecoder().decode(TINY_BZ2));
+        assertSameGraph(new GraphDB(OSM_DB_PATH_TINY), new GraphDB(file.getPath()));
+    }
+
+    @Test
+    public void testPbf() throws IOException {
+        File file = File.createTempFile("tiny", ".osm.pbf");
+        file.deleteOnExit();
+        Files.write(file.toPath(), Base64.getDecoder().decode(TINY_PBF));
+        GraphDB g = new GraphDB(file.getPath());
+        assertSameGraph(new GraphDB(OSM_DB_PATH_TINY), g);
+        assertEquals(38.6, g.lat(66), 0.0);
+        assertEquals(0.6, g.lon(66), 0.0);
+    }
+
+    @Test
+    public void testXmlDetails() throws IOException {
+        File file = File.createTempFile("details", ".osm.xml");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            out.println(" <!-- <node id=\"99\" lat=\"0\" lon=\"0\"/> -->");
+            out.println(" <node id='1' lat='37.5' lon='-122.5'/>");
+            out.println(" <node id=\"2\"\n   lat=\"37.6\" lon=\"-122.4\">");
+            out.println("  <tag k=\"name\" v=\"Peet&apos;s Coffee &amp; Tea\"/>");
+            out.println(" </node>");
+            out.println(" <node id=\"3\" lat=\"37.7\" lon=\"-122.3\">");
+            out.println("  <tag k=\"name\" v=\"Caf&#233; Strada\"/>");
+            out.println(" </node>");
+            out.println(" <node id=\"4\" lat=\"37.8\" lon=\"-122.2\"/>");
+            out.println(" <node id=\"5\" lat=\"37.9\" lon=\"-122.1\"/>");
+            out.println(" <node id=\"6\" lat=\"38.0\" lon=\"-122.0\">");
+            out.println("  <tag k=\"name\" v=\"Cr\u00eapes\"/>");
+            out.println(" </node>");
+            out.println(" <way id=\"10\">");
+            out.println("  <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>");
+            out.println("  <tag k=\"highway\" v=\"primary\"/>");
+            out.println(" </way>");
+            out.println(" <way id=\"11\">");
+            out.println("  <nd ref=\"3\"/><nd ref=\"4\"/>");
+            out.println("  <tag k=\"building\" v=\"yes\"/>");
+            out.println(" </way>");
+            out.println(" <way id=\"12\">");
+            out.println("  <nd ref=\"4\"/><nd ref=\"5\"/><nd ref=\"404\"/>");
+            out.println("  <tag k=\"highway\" v=\"residential\"/>");
+            out.println(" </way>");
+            out.println(" <relation id=\"20\">");
+            out.println("  <member type=\"way\" ref=\"11\" role=\"\"/>");
+            out.println("  <tag k=\"highway\" v=\"primary\"/>");
+            out.println(" </relation>");
+            out.println("</osm>");
+        }
+        GraphDB g = new GraphDB(file.getPath());
+
+        HashSet<Long> vertices = new HashSet<>();
+        for (long v : g.vertices()) {
+            vertices.add(v);
+        }
+        HashSet<Long> expected = new HashSet<>();
+        for (long v = 1; v <= 5; v++) {
+            expected.add(v);
+        }
+        assertEquals(expected, vertices);
+        assertEquals(37.6, g.lat(2), 0.0);
+        assertEquals(-122.4, g.lon(2), 0.0);
+        assertEquals(1, TestGraphBuilding.countIterableItems(g.adjacent(5)));
+
+        Map<Long, String> names = new HashMap<>();
+        for (Map.Entry<Node, String> entry : g.names.entrySet()) {
+            names.put(entry.getKey().getid(), entry.getValue());
+        }
+        Map<Long, String> expectedNames = new HashMap<>();
+        expectedNames.put(2L, "Peet's Coffee & Tea");
+        expectedNames.put(3L, "Caf\u00e9 Strada");
+        expectedNames.put(6L, "Cr\u00eapes");
+        assertEquals(expectedNames, names);
+    }
+
+    private static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertEquals(expected.numVertices(), actual.numVertices());
+        assertEquals(expected.fingerprint(), actual.fingerprint());
+        Map<Long, String> expectedNames = new HashMap<>();
+        for (Map.Entry<Node, String> entry : expected.names.entrySet()) {
+            expectedNames.put(entry.getKey().getid(), entry.getValue());
+        }
+        Map<Long, String> actualNames = new HashMap<>();
+        for (Map.Entry<Node, String> entry : actual.names.entrySet()) {
+            actualNames.put(entry.getKey().getid(), entry.getValue());
+        }
+        assertEquals(expectedNames, actualNames);
+    }
+}
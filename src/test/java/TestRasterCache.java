@@ -0,0 +1,62 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestRasterCache {
+    private static Map<String, Object> grid(int depth, int x, int y, int cols, int rows) {
+        String[][] grid = new String[rows][cols];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                grid[r][c] = "d" + depth + "_x" + (x + c) + "_y" + (y + r) + ".png";
+            }
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put("render_grid", grid);
+        params.put("depth", depth);
+        return params;
+    }
+
+    @Test
+    public void testKey() {
+        String key = RasterCache.key(grid(3, 1, 2, 4, 3), 0);
+        assertEquals(key, RasterCache.key(grid(3, 1, 2, 4, 3), 0));
+        assertNotEquals(key, RasterCache.key(grid(3, 1, 2, 4, 3), 1));
+        assertNotEquals(key, RasterCache.key(grid(3, 1, 2, 3, 3), 0));
+        assertNotEquals(key, RasterCache.key(grid(3, 1, 2, 4, 4), 0));
+        assertNotEquals(key, RasterCache.key(grid(3, 0, 2, 4, 3), 0));
+        assertNotEquals(key, RasterCache.key(grid(4, 1, 2, 4, 3), 0));
+    }
+
+    @Test
+    public void testEvictionAndClear() {
+        RasterCache cache = new RasterCache(250);
+        RasterCache.Raster a = new RasterCache.Raster(new byte[100], 512, 256);
+        RasterCache.Raster b = new RasterCache.Raster(new byte[100], 256, 256);
+        RasterCache.Raster c = new RasterCache.Raster(new byte[100], 256, 512);
+        cache.put("a", a);
+        cache.put("b", b);
+        assertSame(a, cache.get("a"));
+        cache.put("c", c);
+        assertNull(cache.get("b"));
+        assertSame(a, cache.get("a"));
+        assertSame(c, cache.get("c"));
+        assertEquals(200, cache.bytes());
+        assertEquals(3, cache.hits());
+        assertEquals(1, cache.misses());
+
+        cache.put("big", new RasterCache.Raster(new byte[300], 1024, 1024));
+        assertNull(cache.get("big"));
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+        assertNull(cache.get("a"));
+    }
+}
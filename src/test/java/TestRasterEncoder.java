@@ -0,0 +1,86 @@
+import org.junit.Test;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRasterEncoder {
+    /** An image with flat areas, lines, noise and a width that is not a multiple of 8. */
+    private static BufferedImage testImage() {
+        BufferedImage image = new BufferedImage(301, 157, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(242, 239, 233));
+        g.fillRect(0, 0, 301, 157);
+        g.setColor(MapServer.ROUTE_STROKE_COLOR);
+        g.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX));
+        g.drawLine(3, 150, 290, 10);
+        g.dispose();
+        Random random = new Random(42);
+        for (int y = 60; y < 90; y++) {
+            for (int x = 100; x < 200; x++) {
+                image.setRGB(x, y, random.nextInt(1 << 24));
+            }
+        }
+        return image;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+                image.getWidth());
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] &= 0xffffff;
+        }
+        return pixels;
+    }
+
+    private static BufferedImage decode(byte[] data) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(data));
+    }
+
+    @Test
+    public void testPngIsLossless() throws IOException {
+        BufferedImage image = testImage();
+        for (int level = 0; level <= 9; level += 3) {
+            for (boolean filterRows : new boolean[] {false, true}) {
+                RasterEncoder encoder = new RasterEncoder(RasterEncoder.Format.PNG, level,
+                        filterRows, 0.85f);
+                byte[] first = encoder.encode(image);
+                assertArrayEquals(pixels(image), pixels(decode(first)));
+                /* The second image reuses the buffers and Deflater of the first. */
+                assertArrayEquals(first, encoder.encode(image));
+            }
+        }
+    }
+
+    @Test
+    public void testOtherImageTypes() throws IOException {
+        BufferedImage image = testImage();
+        BufferedImage bgr = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_3BYTE_BGR);
+        bgr.getGraphics().drawImage(image, 0, 0, null);
+        RasterEncoder encoder = new RasterEncoder(RasterEncoder.Format.PNG, 4, false, 0.85f);
+        assertArrayEquals(pixels(image), pixels(decode(encoder.encode(bgr))));
+    }
+
+    @Test
+    public void testJpeg() throws IOException {
+        BufferedImage image = testImage();
+        RasterEncoder encoder = new RasterEncoder(RasterEncoder.Format.JPEG, 4, false, 0.85f);
+        assertEquals("image/jpeg", encoder.mimeType());
+        byte[] jpeg = encoder.encode(image);
+        assertTrue(jpeg[0] == (byte) 0xff && jpeg[1] == (byte) 0xd8);
+        BufferedImage decoded = decode(jpeg);
+        assertEquals(image.getWidth(), decoded.getWidth());
+        assertEquals(image.getHeight(), decoded.getHeight());
+        assertEquals(RasterEncoder.Format.JPEG, RasterEncoder.Format.parse(" jpeg"));
+    }
+}
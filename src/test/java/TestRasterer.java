@@ -12,6 +12,7 @@ import java.util.Map;
 import java.util.Collections;
 import java.util.StringJoiner;
 import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -47,6 +48,98 @@ public class TestRasterer {
         }
     }
 
+    private static Map<String, Double> query(double ullon, double ullat, double lrlon,
+                                             double lrlat, double w, double h) {
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", ullon);
+        params.put("ullat", ullat);
+        params.put("lrlon", lrlon);
+        params.put("lrlat", lrlat);
+        params.put("w", w);
+        params.put("h", h);
+        return params;
+    }
+
+    /** Checks that getMapRaster gives exactly the results of the original loops. */
+    private void checkMatchesLoops(Map<String, Double> params) {
+        Map<String, Object> expected = rasterer.getMapRasterByLoops(params);
+        Map<String, Object> actual = rasterer.getMapRaster(params);
+        String msg = "Different results for input " + mapToString(params) + ".\n";
+        assertEquals(msg, expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            if (expected.get(key) instanceof String[][]) {
+                assertArrayEquals(msg + key, (String[][]) expected.get(key),
+                        (String[][]) actual.get(key));
+            } else {
+                /* Equal doubles, bit for bit. */
+                assertEquals(msg + key, expected.get(key), actual.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void testGridMatchesLoops() {
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            double ullon = MapServer.ROOT_ULLON + random.nextDouble() * width;
+            double lrlon = ullon + random.nextDouble() * (MapServer.ROOT_LRLON - ullon);
+            double ullat = MapServer.ROOT_ULLAT - random.nextDouble() * height;
+            double lrlat = ullat - random.nextDouble() * (ullat - MapServer.ROOT_LRLAT);
+            double w = 1 + random.nextInt(2000);
+            checkMatchesLoops(query(ullon, ullat, lrlon, lrlat, w, w / 2));
+        }
+        /* Queries on tile edges, and at exactly the distance per pixel of each depth. */
+        for (int depth = 0; depth <= Rasterer.MAX_DEPTH + 1; depth++) {
+            double tileWidth = width / (1 << depth);
+            double tileHeight = height / (1 << depth);
+            for (int k = 0; k < 1 << Math.min(depth, 4); k++) {
+                double ullon = MapServer.ROOT_ULLON + k * tileWidth;
+                double ullat = MapServer.ROOT_ULLAT - k * tileHeight;
+                double lrlon = Math.min(ullon + tileWidth, MapServer.ROOT_LRLON);
+                double lrlat = Math.max(ullat - tileHeight, MapServer.ROOT_LRLAT);
+                for (double w : new double[] {MapServer.TILE_SIZE - 1, MapServer.TILE_SIZE,
+                    MapServer.TILE_SIZE + 1}) {
+                    checkMatchesLoops(query(ullon, ullat, lrlon, lrlat, w, w));
+                }
+            }
+        }
+        /* Failed queries are answered too, with query_success false. */
+        for (int i = 0; i < 2000; i++) {
+            double ullon = MapServer.ROOT_ULLON + (random.nextDouble() * 3 - 1) * width;
+            double lrlon = MapServer.ROOT_ULLON + (random.nextDouble() * 3 - 1) * width;
+            double ullat = MapServer.ROOT_ULLAT + (random.nextDouble() * 3 - 2) * height;
+            double lrlat = MapServer.ROOT_ULLAT + (random.nextDouble() * 3 - 2) * height;
+            checkMatchesLoops(query(ullon, ullat, lrlon, lrlat, 1 + random.nextInt(2000),
+                    500));
+        }
+        checkMatchesLoops(query(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT, Double.NaN, 500));
+        checkMatchesLoops(query(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT, 0, 500));
+    }
+
+    @Test
+    public void testDepthFor() {
+        int max = Rasterer.MAX_DEPTH;
+        double rootDPP = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / MapServer.TILE_SIZE;
+        for (int depth = 0; depth <= max; depth++) {
+            double dpp = rootDPP / (1 << depth);
+            assertEquals(depth, Rasterer.depthFor(dpp, max));
+            assertEquals(depth, Rasterer.depthFor(Math.nextUp(dpp), max));
+            assertEquals(Math.min(depth + 1, max), Rasterer.depthFor(Math.nextDown(dpp), max));
+            assertEquals(rasterer.finddepth(dpp * 0.7), Rasterer.depthFor(dpp * 0.7, max));
+        }
+        assertEquals(0, Rasterer.depthFor(1, max));
+        assertEquals(max, Rasterer.depthFor(Double.MIN_VALUE, max));
+        assertEquals(max, Rasterer.depthFor(-1, max));
+        assertEquals(0, Rasterer.depthFor(Double.NaN, max));
+        assertEquals(10, Rasterer.depthFor(rootDPP / 1024, 12));
+        assertEquals(11, Rasterer.depthFor(rootDPP / 1025, 12));
+        assertEquals(12, Rasterer.depthFor(rootDPP / 1e6, 12));
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
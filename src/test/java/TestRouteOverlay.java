@@ -0,0 +1,92 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestRouteOverlay {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+
+    @Before
+    public void setUp() {
+        if (graphTiny == null) {
+            graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        }
+    }
+
+    /** Draws a route segment by segment from the graph, as rasters were drawn before. */
+    private static void drawFromGraph(GraphDB g, List<Long> route, Graphics2D g2d,
+                                      double ullon, double ullat, double lrlon, double lrlat,
+                                      int width, int height) {
+        double wdpp = (lrlon - ullon) / width;
+        double hdpp = (ullat - lrlat) / height;
+        g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
+        g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        for (int i = 1; i < route.size(); i++) {
+            long v = route.get(i - 1);
+            long w = route.get(i);
+            g2d.drawLine((int) ((g.lon(v) - ullon) * (1 / wdpp)),
+                         (int) ((ullat - g.lat(v)) * (1 / hdpp)),
+                         (int) ((g.lon(w) - ullon) * (1 / wdpp)),
+                         (int) ((ullat - g.lat(w)) * (1 / hdpp)));
+        }
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+                image.getWidth());
+    }
+
+    private static BufferedImage image() {
+        return new BufferedImage(512, 256, BufferedImage.TYPE_INT_RGB);
+    }
+
+    private static Graphics2D graphics(BufferedImage image) {
+        return (Graphics2D) image.getGraphics();
+    }
+
+    @Test
+    public void testDrawsLikeTheGraph() {
+        List<Long> route = Arrays.asList(22L, 46L, 66L, 63L, 41L);
+        RouteOverlay overlay = RouteOverlay.of(graphTiny, route);
+        assertEquals(5, overlay.size());
+        /* No vertex falls exactly on a pixel edge in these views. There, the float position
+         * of the overlay may round to the pixel on the other side. */
+        double[][] views = {{0, 38.7, 0.7, 38}, {0.15, 38.5, 0.45, 38.15},
+            {0.33, 38.67, 0.52, 38.53}};
+        for (double[] v : views) {
+            BufferedImage expected = image();
+            BufferedImage actual = image();
+            drawFromGraph(graphTiny, route, graphics(expected), v[0], v[1], v[2], v[3], 512,
+                    256);
+            overlay.draw(graphics(actual), v[0], v[1], v[2], v[3], 512, 256);
+            assertArrayEquals(pixels(expected), pixels(actual));
+        }
+    }
+
+    @Test
+    public void testSkipsSegmentsOutsideTheRaster() {
+        List<Long> route = Arrays.asList(22L, 46L, 66L);
+        RouteOverlay overlay = RouteOverlay.of(graphTiny, route);
+        /* 22 is at (0.2, 38.2), 46 at (0.4, 38.6) and 66 at (0.6, 38.6). */
+        assertEquals(2, overlay.draw(graphics(image()), 0, 38.7, 0.7, 38, 512, 256));
+        assertEquals(1, overlay.draw(graphics(image()), 0.45, 38.7, 0.7, 38.5, 512, 256));
+        assertEquals(0, overlay.draw(graphics(image()), 0.45, 38.5, 0.7, 38.3, 512, 256));
+        assertEquals(0, overlay.draw(graphics(image()), 1, 39, 2, 38.9, 512, 256));
+
+        BufferedImage blank = image();
+        assertSame(RouteOverlay.EMPTY, RouteOverlay.of(graphTiny, Collections.emptyList()));
+        assertEquals(0, RouteOverlay.EMPTY.draw(graphics(blank), 0, 38.7, 0.7, 38, 512, 256));
+        assertArrayEquals(pixels(image()), pixels(blank));
+    }
+}
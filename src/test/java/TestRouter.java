@@ -17,15 +17,21 @@ public class TestRouter {
     private static final int NUM_TESTS = 8;
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
     private static GraphDB graph;
-    private static boolean initialized = false;
+    /** The test class the graph was loaded for, or null. */
+    private static Class<?> initialized;
 
     @Before
     public void setUp() throws Exception {
-        if (initialized) {
+        if (initialized == getClass()) {
             return;
         }
-        graph = new GraphDB(OSM_DB_PATH);
-        initialized = true;
+        graph = load(OSM_DB_PATH);
+        initialized = getClass();
+    }
+
+    /** Reads the graph of an OSM file. Overridden to run the same tests on other graphs. */
+    GraphDB load(String dbPath) throws Exception {
+        return new GraphDB(dbPath);
     }
 
     @Test
@@ -13,15 +13,21 @@ import static org.junit.Assert.assertEquals;
 public class TestRouterTiny {
     private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
     private static GraphDB graphTiny;
-    private static boolean initialized = false;
+    /** The test class the graph was loaded for, or null. */
+    private static Class<?> initialized;
 
     @Before
     public void setUp() throws Exception {
-        if (initialized) {
+        if (initialized == getClass()) {
             return;
         }
-        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
-        initialized = true;
+        graphTiny = load(OSM_DB_PATH_TINY);
+        initialized = getClass();
+    }
+
+    /** Reads the graph of an OSM file. Overridden to run the same tests on other graphs. */
+    GraphDB load(String dbPath) throws Exception {
+        return new GraphDB(dbPath);
     }
 
     @Test
@@ -0,0 +1,10 @@
+/**
+ * Runs the TestRouterTiny tests on the graph read back from a snapshot in off-heap mode,
+ * where it is searched in the mapped file instead of on the heap.
+ */
+public class TestRouterTinyOffHeap extends TestRouterTiny {
+    @Override
+    GraphDB load(String dbPath) throws Exception {
+        return TestGraphSnapshot.offHeap(dbPath);
+    }
+}
@@ -0,0 +1,184 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that every Router.SearchMode finds the same routes as plain A* on the tiny graph
+ * and on the queries of path_params.txt.
+ */
+public class TestSearchModes {
+    private static final String PARAMS_FILE = "path_params.txt";
+    private static final String RESULTS_FILE = "path_results.txt";
+    private static final int NUM_TESTS = 8;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graph;
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        graph.setContractionHierarchy(ContractionHierarchy.build(graph));
+        graph.setLandmarks(Landmarks.select(graph, Landmarks.DEFAULT_COUNT));
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        graphTiny.setContractionHierarchy(ContractionHierarchy.build(graphTiny));
+        graphTiny.setLandmarks(Landmarks.select(graphTiny, 2));
+        initialized = true;
+    }
+
+    @Test
+    public void testTinyGraph() {
+        double[][] queries = {{0.2, 38.2, 0.6, 38.6}, {0.2, 38.2, 0.1, 38.1},
+            {0.4, 38.1, 0.4, 38.6}, {0.6, 38.6, 0.5, 38.5}, {0.6, 38.6, 0.6, 38.6}};
+        for (double[] q : queries) {
+            List<Long> expected = Router.shortestPath(graphTiny, q[0], q[1], q[2], q[3]);
+            for (Router.SearchMode mode : Router.SearchMode.values()) {
+                assertEquals("Mode " + mode + " found a different path.", expected,
+                        Router.shortestPath(graphTiny, q[0], q[1], q[2], q[3], mode));
+            }
+        }
+    }
+
+    @Test
+    public void testParseAndFallBack() {
+        assertEquals(Router.SearchMode.BIDIRECTIONAL, Router.SearchMode.parse("Bidirectional"));
+        assertEquals(Router.SearchMode.CH, Router.SearchMode.parse(" ch"));
+        for (String unknown : new String[] {"bidi", "", "a*"}) {
+            try {
+                Router.SearchMode.parse(unknown);
+                fail("Parsed the unknown mode " + unknown);
+            } catch (IllegalArgumentException expected) {
+                // rejected
+            }
+        }
+        GraphDB bare = new GraphDB(OSM_DB_PATH_TINY);
+        assertEquals(Router.SearchMode.ASTAR, Router.SearchMode.CH.on(bare));
+        assertEquals(Router.SearchMode.ASTAR, Router.SearchMode.ALT.on(bare));
+        assertEquals(Router.SearchMode.BIDIRECTIONAL,
+                Router.SearchMode.BIDIRECTIONAL.on(bare));
+        assertEquals(Router.SearchMode.CH, Router.SearchMode.CH.on(graphTiny));
+        assertEquals(Router.SearchMode.ALT, Router.SearchMode.ALT.on(graphTiny));
+    }
+
+    @Test
+    public void testLandmarksRoundTrip() throws Exception {
+        File file = File.createTempFile("tiny", ".landmarks");
+        file.deleteOnExit();
+        Landmarks selected = Landmarks.select(graphTiny, 2);
+        selected.save(file.getPath());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        g.setLandmarks(Landmarks.load(file.getPath(), g));
+        assertEquals(selected.size(), g.landmarks().size());
+        for (long s : g.vertices()) {
+            for (long t : g.vertices()) {
+                int source = g.indexOf(s);
+                int goal = g.indexOf(t);
+                int[] active = selected.active(source, goal);
+                assertEquals(selected.lowerBound(source, goal, active),
+                        g.landmarks().lowerBound(source, goal, active), 0.0);
+                assertEquals(Router.shortestPath(g, g.lon(s), g.lat(s), g.lon(t), g.lat(t)),
+                        Router.shortestPath(g, g.lon(s), g.lat(s), g.lon(t), g.lat(t),
+                                Router.SearchMode.ALT));
+            }
+        }
+    }
+
+    @Test
+    public void testHierarchyRoundTrip() throws Exception {
+        File file = File.createTempFile("tiny", ".ch");
+        file.deleteOnExit();
+        graphTiny.contractionHierarchy().save(file.getPath());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        g.setContractionHierarchy(ContractionHierarchy.load(file.getPath(), g));
+        for (long s : g.vertices()) {
+            for (long t : g.vertices()) {
+                assertEquals(Router.shortestPath(g, g.lon(s), g.lat(s), g.lon(t), g.lat(t)),
+                        Router.shortestPath(g, g.lon(s), g.lat(s), g.lon(t), g.lat(t),
+                                Router.SearchMode.CH));
+            }
+        }
+    }
+
+    @Test
+    public void testDamagedHierarchyIsRejected() throws Exception {
+        File file = File.createTempFile("tiny", ".ch");
+        file.deleteOnExit();
+        ContractionHierarchy ch = graphTiny.contractionHierarchy();
+        int n = graphTiny.numVertices();
+        /* Header of 16 bytes, then 16 per vertex: id, rank, end offset; then 16 per edge:
+         * target, weight, middle. */
+        int[][] damage = {{16 + 12, 1 << 20}, {16 + 12, -1}, {16 + 16 * n, n},
+            {16 + 16 * n + 12, n + 3}, {16 + 8, n}};
+        for (int[] d : damage) {
+            ch.save(file.getPath());
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.seek(d[0]);
+                out.writeInt(d[1]);
+            }
+            assertLoadFails(file);
+        }
+        ch.save(file.getPath());
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() - 4);
+        }
+        assertLoadFails(file);
+    }
+
+    private static void assertLoadFails(File file) {
+        try {
+            ContractionHierarchy.load(file.getPath(), graphTiny);
+            fail("Loaded a damaged hierarchy.");
+        } catch (IOException expected) {
+            // rejected
+        }
+    }
+
+    @Test
+    public void testShortestPath() throws Exception {
+        List<String> params = Files.readAllLines(Paths.get(PARAMS_FILE),
+                Charset.defaultCharset());
+        List<String> results = Files.readAllLines(Paths.get(RESULTS_FILE),
+                Charset.defaultCharset());
+        int paramIdx = 2; // ignore comment lines
+        int resultIdx = 2;
+        for (int i = 0; i < NUM_TESTS; i++) {
+            double[] q = new double[4];
+            for (int j = 0; j < 4; j++) {
+                q[j] = Double.parseDouble(params.get(paramIdx + j));
+            }
+            paramIdx += 4;
+            int numVertices = Integer.parseInt(results.get(resultIdx));
+            resultIdx += 1;
+            List<Long> expected = new ArrayList<>();
+            for (int j = 0; j < numVertices; j++) {
+                expected.add(Long.parseLong(results.get(resultIdx + j)));
+            }
+            resultIdx += numVertices;
+
+            for (Router.SearchMode mode : Router.SearchMode.values()) {
+                assertEquals("Mode " + mode + " did not match the expected results.", expected,
+                        Router.shortestPath(graph, q[0], q[1], q[2], q[3], mode));
+            }
+        }
+    }
+}
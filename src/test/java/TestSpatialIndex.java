@@ -0,0 +1,103 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the k-d tree behind GraphDB.closest against a linear scan over every vertex.
+ */
+public class TestSpatialIndex {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int NUM_QUERIES = 200;
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testClosestMatchesLinearScan() {
+        Random r = new Random(61);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = randomLon(r);
+            double lat = randomLat(r);
+            List<Long> expected = byDistance(lon, lat);
+            assertEquals(distanceTo(expected.get(0), lon, lat),
+                    distanceTo(graph.closest(lon, lat), lon, lat), 1e-12);
+        }
+    }
+
+    @Test
+    public void testKNearest() {
+        Random r = new Random(62);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = randomLon(r);
+            double lat = randomLat(r);
+            List<Long> expected = byDistance(lon, lat);
+            List<Long> actual = graph.closest(lon, lat, 10);
+            assertEquals(10, actual.size());
+            for (int j = 0; j < actual.size(); j++) {
+                assertEquals(distanceTo(expected.get(j), lon, lat),
+                        distanceTo(actual.get(j), lon, lat), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testWithin() {
+        Random r = new Random(63);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = randomLon(r);
+            double lat = randomLat(r);
+            double radius = r.nextDouble() * 0.25;
+            int expected = 0;
+            for (long v : graph.vertices()) {
+                if (distanceTo(v, lon, lat) <= radius) {
+                    expected += 1;
+                }
+            }
+            List<Long> actual = graph.within(lon, lat, radius);
+            assertEquals(expected, actual.size());
+            for (long v : actual) {
+                assertTrue(distanceTo(v, lon, lat) <= radius + 1e-9);
+            }
+            /* The squared chord of a negative radius is positive; it must not match. */
+            assertEquals(0, graph.within(lon, lat, -radius - 0.5).size());
+        }
+    }
+
+    private static double randomLon(Random r) {
+        return MapServer.ROOT_ULLON
+                + r.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+    }
+
+    private static double randomLat(Random r) {
+        return MapServer.ROOT_LRLAT
+                + r.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+    }
+
+    private static double distanceTo(long v, double lon, double lat) {
+        return GraphDB.distance(graph.lon(v), graph.lat(v), lon, lat);
+    }
+
+    private static List<Long> byDistance(double lon, double lat) {
+        List<Long> all = new ArrayList<>();
+        for (long v : graph.vertices()) {
+            all.add(v);
+        }
+        all.sort(Comparator.comparingDouble(v -> distanceTo(v, lon, lat)));
+        return all;
+    }
+}
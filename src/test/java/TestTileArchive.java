@@ -0,0 +1,118 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTileArchive {
+    /** Writes the tiles of depths 0 to 2 as random bytes of different lengths, plus a stray. */
+    private static File writeTiles() throws IOException {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        Random random = new Random(17);
+        for (int depth = 0; depth <= 2; depth++) {
+            for (int x = 0; x < 1 << depth; x++) {
+                for (int y = 0; y < 1 << depth; y++) {
+                    write(new File(dir, "d" + depth + "_x" + x + "_y" + y + ".png"),
+                            random.nextInt(5000));
+                }
+            }
+        }
+        write(new File(dir, "README.txt"), 10);
+        return dir;
+    }
+
+    private static void write(File file, int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] b = new byte[buf.remaining()];
+        buf.get(b);
+        return b;
+    }
+
+    private static String pack(File dir) throws IOException {
+        File archive = File.createTempFile("tiles", ".tiles");
+        archive.deleteOnExit();
+        assertEquals(21, TileArchive.pack(dir.getPath() + File.separator, archive.getPath()));
+        return archive.getPath();
+    }
+
+    @Test
+    public void testKey() {
+        assertEquals(0, TileArchive.key("d0_x0_y0.png"));
+        assertEquals(1, TileArchive.key("d1_x0_y0.png"));
+        assertEquals(2, TileArchive.key("d1_x1_y0.png"));
+        assertEquals(3, TileArchive.key("d1_x0_y1.png"));
+        assertEquals(5, TileArchive.key("d2_x0_y0.png"));
+        assertEquals(20, TileArchive.key("d2_x3_y3.png"));
+        assertEquals(21, TileArchive.key("d3_x0_y0.png"));
+        assertEquals(((1L << 60) - 1) / 3, TileArchive.key("d30_x0_y0.png"));
+        assertEquals(-1, TileArchive.key("d1_x2_y0.png"));
+        assertEquals(-1, TileArchive.key("d1_x01_y0.png"));
+        assertEquals(-1, TileArchive.key("d1_y0_x0.png"));
+        assertEquals(-1, TileArchive.key("x1_x0_y0.png"));
+        assertEquals(-1, TileArchive.key("d1_x0_y0.jpg"));
+        assertEquals(-1, TileArchive.key("README.txt"));
+    }
+
+    @Test
+    public void testPackAndRead() throws IOException {
+        File dir = writeTiles();
+        TileStore loose = new TileStore.Directory(dir.getPath() + File.separator);
+        TileArchive archive = TileArchive.open(pack(dir));
+        assertEquals(21, archive.size());
+        for (int depth = 0; depth <= 2; depth++) {
+            for (int x = 0; x < 1 << depth; x++) {
+                for (int y = 0; y < 1 << depth; y++) {
+                    String name = "d" + depth + "_x" + x + "_y" + y + ".png";
+                    byte[] expected = bytes(loose.read(name));
+                    assertEquals(expected.length, archive.length(name));
+                    assertArrayEquals(expected, bytes(archive.read(name)));
+                    assertTrue(archive.etag(name).startsWith("\""));
+                }
+            }
+        }
+        assertNotEquals(archive.etag("d0_x0_y0.png"), archive.etag("d1_x0_y0.png"));
+        assertEquals(-1, archive.length("d3_x0_y0.png"));
+        assertNull(archive.read("README.txt"));
+        assertNull(archive.etag("d1_x2_y0.png"));
+        assertNull(archive.stream("d3_x0_y0.png"));
+    }
+
+    @Test
+    public void testOpenPrefersArchive() throws IOException {
+        File dir = writeTiles();
+        String root = dir.getPath() + File.separator;
+        String path = pack(dir);
+        assertTrue(TileStore.open(root, path) instanceof TileArchive);
+        assertTrue(TileStore.open(root, path + ".missing") instanceof TileStore.Directory);
+
+        /* An index entry pointing past the end of the file is rejected. */
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(16 + 8);
+            file.writeLong(1L << 30);
+        }
+        try {
+            TileArchive.open(path);
+            fail("Opened a corrupt archive.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("is corrupt."));
+        }
+        assertTrue(TileStore.open(root, path) instanceof TileStore.Directory);
+    }
+}
@@ -0,0 +1,69 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+public class TestTileCache {
+    private static final long TILE_BYTES = 4L * MapServer.TILE_SIZE * MapServer.TILE_SIZE;
+
+    /** Writes the tiles of depths 0 to 2, each filled with a color made from its name. */
+    private static String writeTiles() throws IOException {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        for (int depth = 0; depth <= 2; depth++) {
+            for (int x = 0; x < 1 << depth; x++) {
+                for (int y = 0; y < 1 << depth; y++) {
+                    BufferedImage tile = new BufferedImage(MapServer.TILE_SIZE,
+                            MapServer.TILE_SIZE, BufferedImage.TYPE_3BYTE_BGR);
+                    tile.setRGB(7, 9, depth << 16 | x << 8 | y);
+                    File file = new File(dir, "d" + depth + "_x" + x + "_y" + y + ".png");
+                    file.deleteOnExit();
+                    ImageIO.write(tile, "png", file);
+                }
+            }
+        }
+        return dir.getPath() + File.separator;
+    }
+
+    @Test
+    public void testHitsAndEviction() throws IOException {
+        TileCache cache = new TileCache(new TileStore.Directory(writeTiles()), 2 * TILE_BYTES);
+        BufferedImage a = cache.get("d1_x0_y1.png");
+        assertNotNull(a);
+        assertEquals(BufferedImage.TYPE_INT_RGB, a.getType());
+        assertEquals(1 << 16 | 1, a.getRGB(7, 9) & 0xffffff);
+        assertSame(a, cache.get("d1_x0_y1.png"));
+        cache.get("d1_x1_y1.png");
+        assertSame(a, cache.get("d1_x0_y1.png"));
+        /* d1_x1_y1 is now the least recently used, so it makes room for d2_x3_y3. */
+        cache.get("d2_x3_y3.png");
+        assertEquals(2, cache.size());
+        assertEquals(2 * TILE_BYTES, cache.bytes());
+        assertSame(a, cache.get("d1_x0_y1.png"));
+        assertEquals(3, cache.hits());
+        assertEquals(3, cache.misses());
+        assertEquals(1, cache.evictions());
+    }
+
+    @Test
+    public void testWarmUp() throws IOException {
+        TileCache cache = new TileCache(new TileStore.Directory(writeTiles()), 10 * TILE_BYTES);
+        /* Depth 2 would not fit, and depth 3 does not exist. */
+        assertEquals(5, cache.warmUp(3));
+        assertEquals(5, cache.size());
+        assertNotNull(cache.get("d1_x1_y0.png"));
+        assertEquals(1, cache.hits());
+        assertEquals(0, cache.misses());
+
+        cache = new TileCache(new TileStore.Directory(writeTiles()), 100 * TILE_BYTES);
+        assertEquals(21, cache.warmUp(3));
+        assertEquals(0, cache.evictions());
+    }
+}
@@ -0,0 +1,63 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTileEndpoint {
+    @Test
+    public void testTileName() {
+        assertEquals("d0_x0_y0.png", TileStore.tileName("0", "0", "0.png"));
+        assertEquals("d7_x127_y5.png", TileStore.tileName("7", "127", "5.png"));
+        assertNull(TileStore.tileName("7", "128", "5.png"));
+        assertNull(TileStore.tileName("1", "0", "2.png"));
+        assertNull(TileStore.tileName("1", "0", "1.jpg"));
+        assertNull(TileStore.tileName("1", "0", "1"));
+        assertNull(TileStore.tileName("1", "-1", "1.png"));
+        assertNull(TileStore.tileName("1", "01", "1.png"));
+        assertNull(TileStore.tileName("31", "0", "0.png"));
+        assertNull(TileStore.tileName("99999999999", "0", "0.png"));
+        assertNull(TileStore.tileName("2", "..", "0.png"));
+        assertNull(TileStore.tileName("", "0", ".png"));
+    }
+
+    @Test
+    public void testMatches() {
+        String etag = "\"16b3-4f2\"";
+        assertFalse(TileEndpoint.matches(null, etag));
+        assertTrue(TileEndpoint.matches(etag, etag));
+        assertTrue(TileEndpoint.matches("W/" + etag, etag));
+        assertTrue(TileEndpoint.matches("\"abc\", " + etag, etag));
+        assertTrue(TileEndpoint.matches("*", etag));
+        assertFalse(TileEndpoint.matches("\"16b3-4f3\"", etag));
+        assertFalse(TileEndpoint.matches("16b3-4f2", etag));
+    }
+
+    private static String etag(File file) {
+        return new TileStore.Directory(file.getParent() + File.separator).etag(file.getName());
+    }
+
+    @Test
+    public void testEtagChangesWithFile() throws IOException {
+        File file = File.createTempFile("d0_x0_y0", ".png");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[100]);
+        file.setLastModified(1500000000000L);
+        String etag = etag(file);
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        assertEquals(etag, etag(file));
+
+        Files.write(file.toPath(), new byte[101]);
+        file.setLastModified(1500000000000L);
+        assertNotEquals(etag, etag(file));
+        Files.write(file.toPath(), new byte[100]);
+        file.setLastModified(1500000001000L);
+        assertNotEquals(etag, etag(file));
+    }
+}
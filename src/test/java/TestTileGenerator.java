@@ -0,0 +1,171 @@
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestTileGenerator {
+    private static final int SIZE = MapServer.TILE_SIZE;
+    private static final Color[] QUADRANTS = {Color.RED, Color.GREEN, Color.BLUE,
+        Color.YELLOW};
+
+    /** Returns a tile whose quarters are QUADRANTS, left to right and top to bottom. */
+    private static BufferedImage quadrants() {
+        BufferedImage tile = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        for (int q = 0; q < 4; q++) {
+            g.setColor(QUADRANTS[q]);
+            g.fillRect(q % 2 * SIZE / 2, q / 2 * SIZE / 2, SIZE / 2, SIZE / 2);
+        }
+        g.dispose();
+        return tile;
+    }
+
+    /** Writes d0_x0_y0.png as a quadrants tile into a new folder. */
+    private static String writeRoot() throws IOException {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        File file = new File(dir, "d0_x0_y0.png");
+        file.deleteOnExit();
+        ImageIO.write(quadrants(), "png", file);
+        return dir.getPath() + File.separator;
+    }
+
+    private static String generatedFolder() throws IOException {
+        File dir = Files.createTempDirectory("generated").toFile();
+        dir.deleteOnExit();
+        return dir.getPath() + File.separator;
+    }
+
+    private static void awaitIdle(TileGenerator generator) throws InterruptedException {
+        for (int i = 0; i < 1000 && generator.pending() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, generator.pending());
+    }
+
+    /** Returns a query two tiles of depth 9 wide at the distance per pixel of depth 9. */
+    private static Map<String, Double> query(int x, int y) {
+        double tileWidth = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / 512;
+        double tileHeight = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / 512;
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", MapServer.ROOT_ULLON + (x + 0.5) * tileWidth);
+        params.put("ullat", MapServer.ROOT_ULLAT - (y + 0.5) * tileHeight);
+        params.put("lrlon", MapServer.ROOT_ULLON + (x + 2.5) * tileWidth);
+        params.put("lrlat", MapServer.ROOT_ULLAT - (y + 1.5) * tileHeight);
+        params.put("w", 2.0 * SIZE);
+        params.put("h", 1.0 * SIZE);
+        return params;
+    }
+
+    @Test
+    public void testScale() {
+        BufferedImage ancestor = quadrants();
+        for (int q = 0; q < 4; q++) {
+            BufferedImage tile = TileGenerator.scale(ancestor, 1, q % 2, q / 2);
+            assertEquals(QUADRANTS[q].getRGB(), tile.getRGB(SIZE / 2, SIZE / 2));
+            assertEquals(QUADRANTS[q].getRGB(), tile.getRGB(SIZE / 4, 3 * SIZE / 4));
+        }
+        /* Three levels down, column 5 of 8 is inside the right half. */
+        BufferedImage tile = TileGenerator.scale(ancestor, 3, 5, 6);
+        assertEquals(Color.YELLOW.getRGB(), tile.getRGB(SIZE / 2, SIZE / 2));
+    }
+
+    @Test
+    public void testGeneratesInTheBackground() throws Exception {
+        String root = writeRoot();
+        String folder = generatedFolder();
+        TileGenerator generator = new TileGenerator(new TileStore.Directory(root), folder, 1,
+                Long.MAX_VALUE);
+        Rasterer rasterer = new Rasterer(9, generator);
+        /* Near the lower right corner of the map, in the yellow quarter. */
+        Map<String, Double> params = query(500, 400);
+
+        Rasterer.Grid grid = rasterer.getGrid(params);
+        assertEquals(Rasterer.MAX_DEPTH, grid.depth);
+        awaitIdle(generator);
+        grid = rasterer.getGrid(params);
+        assertEquals(9, grid.depth);
+        assertEquals(3, grid.cols);
+        assertEquals(2, grid.rows);
+        assertEquals(6, generator.generated());
+        assertTrue(generator.isReady(grid));
+        assertTrue(new File(folder + grid.tileName(1, 2)).isFile());
+        try (InputStream in = generator.stream(grid.tileName(1, 2))) {
+            BufferedImage tile = ImageIO.read(in);
+            assertEquals(Color.YELLOW.getRGB(), tile.getRGB(SIZE / 2, SIZE / 2));
+        }
+        assertEquals(new TileStore.Directory(root).etag("d0_x0_y0.png"),
+                generator.etag("d0_x0_y0.png"));
+
+        /* A new generator finds the tiles generated before. */
+        TileGenerator restarted = new TileGenerator(new TileStore.Directory(root), folder, 1,
+                Long.MAX_VALUE);
+        assertEquals(6, restarted.generated());
+        assertTrue(restarted.isReady(grid));
+        assertEquals(9, new Rasterer(9, restarted).getGrid(params).depth);
+        assertEquals(Rasterer.MAX_DEPTH, new Rasterer(9, restarted).getGrid(query(10, 10)).depth);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyRead() throws Exception {
+        String root = writeRoot();
+        String folder = generatedFolder();
+        TileGenerator unbounded = new TileGenerator(new TileStore.Directory(root), folder, 1,
+                Long.MAX_VALUE);
+        Map<String, Double> params = query(500, 400);
+        new Rasterer(9, unbounded).getGrid(params);
+        awaitIdle(unbounded);
+        Rasterer.Grid grid = new Rasterer(9, unbounded).getGrid(params);
+        assertEquals(9, grid.depth);
+        assertEquals(6, unbounded.generated());
+
+        /* Restarted with room for all but about one tile, one tile is deleted. */
+        long capacity = unbounded.bytes() - 1;
+        TileGenerator bounded = new TileGenerator(new TileStore.Directory(root), folder, 1,
+                capacity);
+        assertEquals(5, bounded.generated());
+        assertEquals(1, bounded.evictions());
+        assertTrue(bounded.bytes() <= capacity);
+        assertEquals(5, new File(folder).list().length);
+        assertFalse(bounded.isReady(grid));
+
+        /* With room for seven and a half tiles, six new ones push out the four not read
+         * since the restart, and keep the one that was. */
+        TileGenerator larger = new TileGenerator(new TileStore.Directory(root), folder, 1,
+                unbounded.bytes() * 5 / 4);
+        String kept = grid.tileName(0, 0).equals(firstMissing(larger, grid))
+                ? grid.tileName(1, 2) : grid.tileName(0, 0);
+        assertTrue(larger.read(kept).remaining() > 0);
+        new Rasterer(9, larger).getGrid(query(300, 300));
+        awaitIdle(larger);
+        assertEquals(4, larger.evictions());
+        assertEquals(7, larger.generated());
+        assertTrue(larger.isReady(kept));
+        assertTrue(new File(folder + kept).isFile());
+        assertEquals(7, new File(folder).list().length);
+    }
+
+    /** Returns the name of the first tile of grid that is not ready, or null. */
+    private static String firstMissing(TileGenerator generator, Rasterer.Grid grid) {
+        for (int r = 0; r < grid.rows; r++) {
+            for (int c = 0; c < grid.cols; c++) {
+                if (!generator.isReady(grid.tileName(r, c))) {
+                    return grid.tileName(r, c);
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,188 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTrie {
+    @Test
+    public void testTop() {
+        Trie trie = new Trie(2);
+        trie.insert("car", 0, 1);
+        trie.insert("cart", 1, 5);
+        trie.insert("cat", 2, 3);
+        trie.insert("dog", 3, 3);
+        assertEquals(4, trie.size());
+        assertArrayEquals(new int[] {1, 2}, trie.top("", 10));
+        assertArrayEquals(new int[] {1, 2}, trie.top("ca", 2));
+        assertArrayEquals(new int[] {1}, trie.top("ca", 1));
+        assertArrayEquals(new int[] {1, 0}, trie.top("car", 2));
+        assertArrayEquals(new int[] {3}, trie.top("d", 2));
+        assertArrayEquals(new int[0], trie.top("cow", 2));
+        assertTrue(trie.contains("car"));
+        assertFalse(trie.contains("ca"));
+    }
+
+    @Test
+    public void testCompact() {
+        Trie trie = new Trie(2);
+        trie.insert("car", 0, 1);
+        trie.insert("cart", 1, 5);
+        trie.insert("carton", 2, 3);
+        trie.insert("dog", 3, 3);
+        assertEquals(10, trie.nodes());
+        CompactTrie compact = trie.compact();
+        /* The root, "car", "t", "on" and "dog". */
+        assertEquals(5, compact.nodes());
+        assertEquals(4, compact.size());
+        assertArrayEquals(new int[] {1, 2}, compact.top("", 10));
+        assertArrayEquals(new int[] {1, 2}, compact.top("c", 2));
+        assertArrayEquals(new int[] {1, 2}, compact.top("car", 2));
+        assertArrayEquals(new int[] {2}, compact.top("carto", 1));
+        assertArrayEquals(new int[] {3}, compact.top("do", 2));
+        assertArrayEquals(new int[0], compact.top("cat", 2));
+        assertArrayEquals(new int[0], compact.top("cartons", 2));
+        assertArrayEquals(new int[0], compact.top("x", 2));
+        assertTrue(compact.contains("car"));
+        assertTrue(compact.contains("carton"));
+        assertFalse(compact.contains("ca"));
+        assertFalse(compact.contains("carto"));
+        assertFalse(compact.contains(""));
+    }
+
+    @Test
+    public void testInsertTwice() {
+        Trie trie = new Trie(2);
+        trie.insert("car", 0, 1);
+        try {
+            trie.insert("car", 1, 1);
+            fail("Inserted a word twice.");
+        } catch (IllegalArgumentException expected) {
+            assertArrayEquals(new int[] {0}, trie.top("car", 2));
+        }
+    }
+
+    /**
+     * Compares the top words of every prefix, from the trie and the compacted trie, with a
+     * sort of all the words.
+     */
+    @Test
+    public void testTopMatchesSort() {
+        Random random = new Random(7);
+        int k = 5;
+        Trie trie = new Trie(k);
+        List<String> words = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        while (words.size() < 500) {
+            StringBuilder word = new StringBuilder();
+            for (int i = 1 + random.nextInt(6); i > 0; i--) {
+                word.append((char) ('a' + random.nextInt(4)));
+            }
+            if (!words.contains(word.toString())) {
+                weights.add(random.nextInt(10));
+                trie.insert(word.toString(), words.size(), weights.get(words.size()));
+                words.add(word.toString());
+            }
+        }
+        CompactTrie compact = trie.compact();
+        for (String prefix : words) {
+            for (int end = 0; end <= prefix.length(); end++) {
+                String p = prefix.substring(0, end);
+                List<Integer> matches = new ArrayList<>();
+                for (int v = 0; v < words.size(); v++) {
+                    if (words.get(v).startsWith(p)) {
+                        matches.add(v);
+                    }
+                }
+                matches.sort(Comparator.comparing((Integer v) -> -weights.get(v))
+                        .thenComparing(v -> v));
+                int[] expected = matches.stream().limit(k).mapToInt(v -> v).toArray();
+                assertArrayEquals(expected, trie.top(p, k));
+                assertArrayEquals(expected, compact.top(p, k));
+            }
+            assertTrue(compact.contains(prefix));
+        }
+    }
+
+    /** Returns the fewest edits that turn query into a prefix of word. */
+    private static int prefixDistance(String query, String word) {
+        int[] row = new int[query.length() + 1];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = j;
+        }
+        int best = row[query.length()];
+        for (int i = 0; i < word.length(); i++) {
+            int[] next = new int[row.length];
+            next[0] = i + 1;
+            for (int j = 1; j < row.length; j++) {
+                int replace = row[j - 1] + (query.charAt(j - 1) == word.charAt(i) ? 0 : 1);
+                next[j] = Math.min(replace, Math.min(row[j], next[j - 1]) + 1);
+            }
+            row = next;
+            best = Math.min(best, row[query.length()]);
+        }
+        return best;
+    }
+
+    @Test
+    public void testFuzzy() {
+        Trie trie = new Trie(10);
+        String[] words = {"berkeley", "berkley bowl", "burger king", "bart", "barts"};
+        for (int i = 0; i < words.length; i++) {
+            trie.insert(words[i], i, 1);
+        }
+        CompactTrie compact = trie.compact();
+        Map<Integer, Integer> found = compact.fuzzy("berkel", 1, 10);
+        assertEquals(2, found.size());
+        assertEquals(0, (int) found.get(0));
+        assertEquals(1, (int) found.get(1));
+        /* "bart" and "barts" have a letter more, the others two edits more. */
+        assertEquals(2, compact.fuzzy("brt", 1, 10).size());
+        assertEquals(5, compact.fuzzy("brt", 2, 10).size());
+        assertEquals(0, compact.fuzzy("xyzzy", 2, 10).size());
+    }
+
+    /** Compares the words found with a few edits with the distance to every word. */
+    @Test
+    public void testFuzzyMatchesDistances() {
+        Random random = new Random(11);
+        Trie trie = new Trie(1000);
+        List<String> words = new ArrayList<>();
+        while (words.size() < 300) {
+            StringBuilder word = new StringBuilder();
+            for (int i = 2 + random.nextInt(8); i > 0; i--) {
+                word.append((char) ('a' + random.nextInt(5)));
+            }
+            if (!words.contains(word.toString())) {
+                trie.insert(word.toString(), words.size(), 1);
+                words.add(word.toString());
+            }
+        }
+        CompactTrie compact = trie.compact();
+        for (int q = 0; q < 200; q++) {
+            StringBuilder query = new StringBuilder();
+            for (int i = 1 + random.nextInt(7); i > 0; i--) {
+                query.append((char) ('a' + random.nextInt(6)));
+            }
+            for (int d = 0; d <= 2; d++) {
+                Map<Integer, Integer> expected = new HashMap<>();
+                for (int v = 0; v < words.size(); v++) {
+                    int distance = prefixDistance(query.toString(), words.get(v));
+                    if (distance <= d) {
+                        expected.put(v, distance);
+                    }
+                }
+                assertEquals(expected, compact.fuzzy(query.toString(), d, 1000));
+            }
+        }
+    }
+}